@@ -26,6 +26,19 @@ public class Tracer {
 			engine = new Engine("example.scene", 240, 144, 5000, 10, t);
 			//engine = new Engine("example.scene", 1920, 1080, 80, 10, t);
 
+			// Capture on every core; 1 captures on this thread alone
+			engine.getCamera().threads = Runtime.getRuntime().availableProcessors();
+
+			// Split each pixel's samples into chunks that idle workers can
+			// steal; this keeps every core busy on small, heavily sampled
+			// captures. 0 keeps every pixel on a single worker
+			engine.getCamera().sampleGrain = 250;
+
+			// Let each pixel stop sampling once it has converged, taking
+			// anywhere from minSamples up to the samples per pixel above
+			//engine.getCamera().adaptive = true;
+			//engine.getCamera().errorThreshold = 0.005;
+
 			// A preview is much faster than capturing, rendering all shapes as
 			// solid and only sampling each virtual pixel once
 			//engine.savePreviewTo("preview.png");
@@ -37,6 +50,9 @@ public class Tracer {
 
 			// Saves a normalized heatmap of how long each pixel took to render
 			//ImageIO.write(t.gridHeatmap(), "PNG", new File("heatmap.png"));
+
+			// Saves a map of how many samples each pixel took
+			//ImageIO.write(engine.getCamera().sampleMap(), "PNG", new File("samples.png"));
 		} catch (SceneFormattingException | IOException e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -1,12 +1,22 @@
 package tracer;
 
 import java.awt.image.BufferedImage;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
+import tracer.accelerators.ScreenBins;
+import tracer.samplers.RandomSampler;
+import tracer.samplers.Sampler;
 import tracer.utils.Color;
 import tracer.utils.GridTimerDelegate;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
 import tracer.utils.Range;
 import tracer.utils.Ray;
+import tracer.utils.SampleStatistics;
 import tracer.utils.Vector;
 
 /**
@@ -30,64 +40,121 @@ public class Camera {
 		}
 
 		public void run() {
-			for (int x = 0; x < width; x++) {
-				if (timer != null)
-					timer.gridEventStart(x, row);
-				
-				film[x][row] = getPixel(x, row).quantize();
-	
-				if (timer != null)
-					timer.gridEventStop(x, row);
-			}
+			for (int x = 0; x < width; x++)
+				developPixel(scene, x, row);
 		}
 		
 		public void shutdown() {
 			System.out.println("Finished row " + (row + 1));
 		}
-		
+	}
+
+	/**
+	 * A unit of work for the parallel capture. A TileMaker is responsible for
+	 * a contiguous run of tiles, and splits itself in half until it holds a
+	 * single tile, so idle workers can steal the other halves. Expensive tiles
+	 * (like those behind glass) are balanced out this way, where a static
+	 * striping of the rows would leave workers waiting on the slowest stripe.
+	 * 
+	 * @author mld2443
+	 * @see <a href="https://en.wikipedia.org/wiki/Work_stealing">Wikipedia:
+	 *      Work Stealing</a>
+	 */
+	@SuppressWarnings("serial")
+	public class TileMaker extends RecursiveAction {
+		final Scene scene;
+		final int first, last;
+
+		/**
+		 * Sets up a run of tiles to capture.
+		 * 
+		 * @param scene
+		 *            The scene to capture
+		 * @param first
+		 *            Index of the first tile, counting left to right then top
+		 *            to bottom
+		 * @param last
+		 *            Index one past the final tile
+		 */
+		TileMaker(final Scene scene, final int first, final int last) {
+			this.scene = scene;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new TileMaker(scene, first, middle), new TileMaker(scene, middle, last));
+				return;
+			}
+
+			developTile(scene, first);
+		}
+	}
+
+	/**
+	 * A unit of work for splitting the samples of a single pixel. The samples
+	 * are divided into chunks of {@link Camera#sampleGrain}, and each chunk
+	 * writes its partial sum into its own slot of a shared array, so the sums
+	 * can be reduced in order once every chunk has finished.
+	 * 
+	 * @author mld2443
+	 */
+	@SuppressWarnings("serial")
+	public class SampleMaker extends RecursiveAction {
+		final Scene scene;
+		final int x, y, first, last;
+		final double[] partials;
+
 		/**
-		 * Helper method to sample our scene multiple times defined by
-		 * {@link Camera#sampling} and average the value. It constructs the
-		 * {@link Ray} using the screen space coordinate vectors.
+		 * Sets up a run of sample chunks for a pixel.
+		 * 
+		 * @param scene
+		 *            The scene to sample
 		 * @param x
 		 *            X coordinate on our virtual screen
 		 * @param y
 		 *            Y coordinate on our virtual screen
-		 * @return Average {@link Color} of this pixel
+		 * @param first
+		 *            Index of the first chunk
+		 * @param last
+		 *            Index one past the final chunk
+		 * @param partials
+		 *            The red, green and blue partial sums for every chunk
 		 */
-		private Color getPixel(final int x, final int y) {
-			Color pixel = Color.black();
-
-			// Collect samples of the scene for this current pixel
-			for (int s = 0; s < sampling; s++) {
-				// Randomly generate offsets for the current subsample
-				final double xCoord = x + rand.nextDouble();
-				final double yCoord = y + rand.nextDouble();
-
-				// Get the subsample position and construct a ray from it
-				final Vector screenSpacePosition = Vector.sum(origin, iHat.scale(xCoord), jHat.scale(yCoord));
-				final Ray cast = new Ray(position, screenSpacePosition);
+		SampleMaker(final Scene scene, final int x, final int y, final int first, final int last,
+				final double[] partials) {
+			this.scene = scene;
+			this.x = x;
+			this.y = y;
+			this.first = first;
+			this.last = last;
+			this.partials = partials;
+		}
 
-				pixel = Color.add(pixel, scene.castRay(cast, frustum, depth));
+		@Override
+		protected void compute() {
+			if (last - first > 1) {
+				final int middle = (first + last) >>> 1;
+				invokeAll(new SampleMaker(scene, x, y, first, middle, partials),
+						new SampleMaker(scene, x, y, middle, last, partials));
+				return;
 			}
 
-			// Color correction
-			pixel = pixel.reduce(sampling);
-
-			// This brightens the image
-			//pixel = pixel.applyTransform(v -> Math.sqrt(v));
-
-			// This darkens the image
-			//pixel = pixel.applyTransform(v -> v*v);
-
-			return pixel;
+			sampleChunk(scene, x, y, first, partials);
 		}
 	}
 
 	/**
-	 * A static Random object with which to generate random floats [0,1).
+	 * The sampler every worker copies its random numbers from. Each sample is
+	 * drawn from a stream seeded by its pixel, its index and the sampler's
+	 * seed, so a capture is identical for any number of threads. A
+	 * {@link tracer.samplers.SequenceSampler SequenceSampler} reaches the same
+	 * noise level in fewer samples.
 	 */
-	private static final Random rand = new Random();
+	public Sampler sampler = new RandomSampler(0);
 
 	/**
 	 * The location of the Camera in space.
@@ -106,11 +173,113 @@ public class Camera {
 	 */
 	public int sampling;
 
+	/**
+	 * Whether each pixel stops sampling as soon as it has converged, instead
+	 * of always taking {@link Camera#sampling} samples. Samples are taken in
+	 * batches of {@link Camera#sampleBatch}, and a pixel stops once the
+	 * standard error of its mean falls to {@link Camera#errorThreshold},
+	 * taking at least {@link Camera#minSamples} and at most
+	 * {@link Camera#sampling}. {@link Camera#sampleGrain},
+	 * {@link Camera#packetSize} and {@link Camera#wavefrontSize} are unused.
+	 */
+	public boolean adaptive = false;
+
+	/**
+	 * The number of samples every pixel takes before it may stop sampling
+	 * {@link Camera#adaptive adaptively}. Taken as 1 if less.
+	 */
+	public int minSamples = 32;
+
+	/**
+	 * The number of samples taken between checks of whether a pixel has
+	 * converged, when sampling {@link Camera#adaptive adaptively}. Taken as 1
+	 * if less.
+	 */
+	public int sampleBatch = 16;
+
+	/**
+	 * The standard error of a pixel's mean color at which it has converged,
+	 * when sampling {@link Camera#adaptive adaptively}. A little over one
+	 * step of an 8-bit channel by default.
+	 */
+	public double errorThreshold = 0.005;
+
 	/**
 	 * The maximum number of times a single sample ray will bounce.
 	 */
 	public int depth;
 
+	/**
+	 * The number of worker threads used by {@link Camera#captureScene(Scene)}.
+	 * A value of 1 captures the scene on the calling thread.
+	 */
+	public int threads = 1;
+
+	/**
+	 * The width and height in pixels of the square tiles handed to each
+	 * worker during a parallel capture.
+	 */
+	public int tileSize = 16;
+
+	/**
+	 * The number of samples in each chunk when the samples of a single pixel
+	 * are split across workers. This keeps every core busy on small, heavily
+	 * sampled captures. A value of 0 keeps each pixel on a single worker.
+	 */
+	public int sampleGrain = 0;
+
+	/**
+	 * Whether samples are traced by the allocation-free {@link PathTracer}
+	 * rather than by {@link Scene#castRay}. Both give the same image.
+	 */
+	public boolean pathTracer = true;
+
+	/**
+	 * The number of samples of a pixel whose camera rays are traced together
+	 * in a {@link Packet} until their first hit. Only used with the
+	 * {@link Camera#pathTracer path tracer}; 1 or less traces every ray alone.
+	 */
+	public int packetSize = 1;
+
+	/**
+	 * The number of paths each sample {@link PathTracer#splits splits} into
+	 * at its first diffuse or glass bounce, sharing its camera ray and first
+	 * hit. Fewer samples then give the same noise. Only used with the
+	 * {@link Camera#pathTracer path tracer}, and not by a
+	 * {@link Camera#wavefrontSize wavefront}; 1 never splits.
+	 */
+	public int splitting = 1;
+
+	/**
+	 * The number of paths a {@link WavefrontTracer} advances together, when
+	 * greater than 0. Each tile is then traced as a wavefront instead of pixel
+	 * by pixel, and {@link Camera#sampleGrain} and
+	 * {@link Camera#packetSize} are unused.
+	 */
+	public int wavefrontSize = 0;
+
+	/**
+	 * Whether the samples of a pixel check the shape its earlier samples hit
+	 * first before any other. This pays off when the hierarchy is shallow
+	 * compared to the cost of its shapes.
+	 */
+	public boolean pixelHints = false;
+
+	/**
+	 * Whether primary rays only check the listed shapes that can be seen from
+	 * their tile. Shapes in a hierarchy are culled by the hierarchy instead.
+	 */
+	public boolean tileCulling = true;
+
+	/**
+	 * Whether the first hits of camera rays are looked up in the scene
+	 * {@link Scene#rasterize rasterized} for this camera, rather than searched
+	 * for. Only bounces after the first are traced; the image is the same.
+	 * Only used with the {@link Camera#pathTracer path tracer}, and takes the
+	 * place of {@link Camera#tileCulling} and {@link Camera#pixelHints}.
+	 */
+	public boolean rasterize = true;
+
 	/**
 	 * The range inside which a ray will detect a hit.
 	 * 
@@ -134,6 +303,43 @@ public class Camera {
 	 */
 	private int[][] film;
 
+	/**
+	 * The terms of every shape that depend only on the camera's position,
+	 * cached for the primary rays of the current capture.
+	 */
+	private OriginCache primaryOrigin;
+
+	/**
+	 * For every pixel, the shape its latest sample hit first, or -1. Later
+	 * samples of the pixel check that shape before any other, to close in
+	 * their window early. Samples of the same pixel may race to update it,
+	 * but it is only a hint, so any value gives the same image.
+	 */
+	private int[][] hints;
+
+	/**
+	 * The number of samples each pixel of the latest capture took.
+	 */
+	private int[][] sampleCounts;
+
+	/**
+	 * For every tile, the listed shapes whose bounds reach into the part of
+	 * the view the tile covers, or null if tiles aren't culled.
+	 */
+	private int[][] tileShapes;
+
+	/**
+	 * How far past its own pixels the view of a tile is widened when culling,
+	 * in pixels, so rounding can never cull a shape a ray could hit.
+	 */
+	private static final double CULLING_MARGIN = 0.01;
+
+	/**
+	 * The scene's shapes rasterized for the current capture, or null if
+	 * first hits are searched for.
+	 */
+	private ScreenBins screenBins;
+
 	/**
 	 * Timer delegate; If a timer is given, {@link Camera} will report its
 	 * actions to it for timing.
@@ -207,6 +413,8 @@ public class Camera {
 		this.origin = Vector.sum(unitDirection, iStar.scale(-screenWidth), jStar.scale(-screenHeight));
 
 		this.film = new int[width][height];
+		this.hints = new int[width][height];
+		this.sampleCounts = new int[width][height];
 
 		if (timer != null)
 			this.timer.setGridSize(width, height);
@@ -233,6 +441,422 @@ public class Camera {
 		return timer;
 	}
 
+	/**
+	 * Captures a single tile of the film.
+	 * 
+	 * @param scene
+	 *            The scene to capture
+	 * @param tile
+	 *            Index of the tile, counting left to right then top to bottom
+	 */
+	private void developTile(final Scene scene, final int tile) {
+		// Find the bounds of our single tile, clipped to the film
+		final int tilesWide = (width + tileSize - 1) / tileSize;
+		final int left = (tile % tilesWide) * tileSize, top = (tile / tilesWide) * tileSize;
+		final int right = Math.min(left + tileSize, width), bottom = Math.min(top + tileSize, height);
+
+		if (wavefrontSize > 0 && !adaptive) {
+			developWavefront(scene, left, top, right, bottom);
+			return;
+		}
+
+		// Every pixel belongs to exactly one tile, so no two workers ever
+		// write the same element of the film
+		for (int y = top; y < bottom; y++)
+			for (int x = left; x < right; x++)
+				developPixel(scene, x, y);
+	}
+
+	/**
+	 * Captures a tile of the film with a {@link WavefrontTracer}. The samples
+	 * of the tile are fed to the wavefront in batches, pixel by pixel, and
+	 * each pixel is developed as soon as its final batch is done. Samples are
+	 * summed in the same order as {@link Camera#getPixel(Scene, int, int)
+	 * getPixel} without chunks sums them.
+	 * 
+	 * @param scene
+	 *            The scene to capture
+	 * @param left
+	 *            The first column of the tile
+	 * @param top
+	 *            The first row of the tile
+	 * @param right
+	 *            One past the final column
+	 * @param bottom
+	 *            One past the final row
+	 */
+	private void developWavefront(final Scene scene, final int left, final int top, final int right,
+			final int bottom) {
+		final int wide = right - left, pixels = wide * (bottom - top);
+		final WavefrontTracer tracer = new WavefrontTracer(scene,
+				(int) Math.min(wavefrontSize, (long) pixels * sampling), sampler);
+		final int[] owners = new int[tracer.capacity()];
+		final double[] sums = new double[3 * pixels];
+		final double lower = frustum.lower, upper = frustum.upper;
+
+		for (int pixel = 0, developed = 0; pixel < pixels; pixel++) {
+			final int x = left + pixel % wide, y = top + pixel / wide;
+
+			if (timer != null)
+				timer.gridEventStart(x, y);
+
+			for (int s = 0; s < sampling; s++) {
+				owners[tracer.size()] = pixel;
+				final Sampler sampler = tracer.add();
+				sampler.startSample(x, y, s);
+
+				// Randomly generate offsets for the current subsample
+				final double xCoord = x + sampler.nextDouble();
+				final double yCoord = y + sampler.nextDouble();
+
+				tracer.aim(position.x, position.y, position.z, origin.x + iHat.x * xCoord + jHat.x * yCoord,
+						origin.y + iHat.y * xCoord + jHat.y * yCoord, origin.z + iHat.z * xCoord + jHat.z * yCoord,
+						upper);
+
+				final boolean last = pixel == pixels - 1 && s == sampling - 1;
+				if (tracer.size() < tracer.capacity() && !last)
+					continue;
+
+				// Trace the full batch, and gather up each pixel's samples
+				tracer.trace(lower, depth);
+				for (int lane = 0; lane < tracer.size(); lane++) {
+					sums[3 * owners[lane]] += tracer.r[lane];
+					sums[3 * owners[lane] + 1] += tracer.g[lane];
+					sums[3 * owners[lane] + 2] += tracer.b[lane];
+				}
+				tracer.clear();
+
+				// Every pixel before the one whose sample was added last is
+				// done, and so is that one if it was its final sample
+				final int done = s == sampling - 1 ? pixel + 1 : pixel;
+				for (; developed < done; developed++) {
+					final int dx = left + developed % wide, dy = top + developed / wide;
+					final Color sum = new Color(sums[3 * developed], sums[3 * developed + 1],
+							sums[3 * developed + 2]);
+					film[dx][dy] = sum.reduce(sampling).quantize();
+
+					if (timer != null)
+						timer.gridEventStop(dx, dy);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the listed shapes each tile can see. The view of a tile is the
+	 * pyramid from our position through the corners of the tile on our
+	 * virtual screen, and a shape is left out if its bounds lie entirely
+	 * outside one of the pyramid's four sides.
+	 * 
+	 * @param scene
+	 *            The scene to cull
+	 * @return The visible listed shapes for every tile
+	 */
+	private int[][] cullTiles(final Scene scene) {
+		final int tilesWide = (width + tileSize - 1) / tileSize, tilesHigh = (height + tileSize - 1) / tileSize;
+		final int[][] lists = new int[tilesWide * tilesHigh][];
+		final double[] corners = new double[12], normals = new double[12];
+
+		for (int tile = 0; tile < lists.length; tile++) {
+			final int left = (tile % tilesWide) * tileSize, top = (tile / tilesWide) * tileSize;
+			final int right = Math.min(left + tileSize, width), bottom = Math.min(top + tileSize, height);
+
+			// Directions through the corners, going around the tile
+			final double[] us = { left - CULLING_MARGIN, right + CULLING_MARGIN, right + CULLING_MARGIN,
+					left - CULLING_MARGIN };
+			final double[] vs = { top - CULLING_MARGIN, top - CULLING_MARGIN, bottom + CULLING_MARGIN,
+					bottom + CULLING_MARGIN };
+			for (int c = 0; c < 4; c++) {
+				corners[3 * c] = origin.x + iHat.x * us[c] + jHat.x * vs[c];
+				corners[3 * c + 1] = origin.y + iHat.y * us[c] + jHat.y * vs[c];
+				corners[3 * c + 2] = origin.z + iHat.z * us[c] + jHat.z * vs[c];
+			}
+
+			// The direction through the middle of the tile is inside every side
+			final double mx = corners[0] + corners[6], my = corners[1] + corners[7], mz = corners[2] + corners[8];
+
+			// Each side is spanned by the directions through two neighboring
+			// corners
+			for (int c = 0; c < 4; c++) {
+				final int a = 3 * c, b = 3 * ((c + 1) % 4);
+				double nx = corners[a + 1] * corners[b + 2] - corners[a + 2] * corners[b + 1];
+				double ny = corners[a + 2] * corners[b] - corners[a] * corners[b + 2];
+				double nz = corners[a] * corners[b + 1] - corners[a + 1] * corners[b];
+
+				if (nx * mx + ny * my + nz * mz < 0) {
+					nx = -nx;
+					ny = -ny;
+					nz = -nz;
+				}
+
+				normals[a] = nx;
+				normals[a + 1] = ny;
+				normals[a + 2] = nz;
+			}
+
+			lists[tile] = scene.cullListed(position.x, position.y, position.z, normals);
+		}
+
+		return lists;
+	}
+
+	/**
+	 * Captures a single pixel of the film, reporting to the timer if there is
+	 * one. Each pixel is only ever written by one worker.
+	 * 
+	 * @param scene
+	 *            The scene to capture
+	 * @param x
+	 *            X coordinate on our virtual screen
+	 * @param y
+	 *            Y coordinate on our virtual screen
+	 */
+	private void developPixel(final Scene scene, final int x, final int y) {
+		if (timer != null)
+			timer.gridEventStart(x, y);
+
+		film[x][y] = getPixel(scene, x, y).quantize();
+
+		if (timer != null)
+			timer.gridEventStop(x, y);
+	}
+
+	/**
+	 * Helper method to sample our scene multiple times defined by
+	 * {@link Camera#sampling} and average the value. It constructs the
+	 * {@link Ray} using the screen space coordinate vectors.
+	 * 
+	 * @param scene
+	 *            The scene to sample
+	 * @param x
+	 *            X coordinate on our virtual screen
+	 * @param y
+	 *            Y coordinate on our virtual screen
+	 * @return Average {@link Color} of this pixel
+	 */
+	private Color getPixel(final Scene scene, final int x, final int y) {
+		Color pixel;
+		int samples = sampling;
+
+		if (adaptive) {
+			final SampleStatistics statistics = new SampleStatistics();
+			final int least = Math.max(1, minSamples), batch = Math.max(1, sampleBatch);
+			double r = 0.0, g = 0.0, b = 0.0;
+
+			// Take batches of samples until the pixel converges, carrying on
+			// the same sample streams a fixed number of samples would use
+			for (samples = 0; samples < sampling;) {
+				final int next = Math.min(samples < least ? least : samples + batch, sampling);
+				final Color sum = sampleRange(scene, x, y, samples, next, statistics);
+				r += sum.r;
+				g += sum.g;
+				b += sum.b;
+				samples = next;
+
+				if (samples >= least && statistics.standardError() <= errorThreshold)
+					break;
+			}
+			pixel = new Color(r, g, b);
+		} else if (sampleGrain > 0 && sampling > sampleGrain) {
+			final int chunks = (sampling + sampleGrain - 1) / sampleGrain;
+			final double[] partials = new double[3 * chunks];
+
+			// Inside the pool idle workers may steal chunks of this pixel;
+			// otherwise the chunks are taken one after another
+			if (ForkJoinTask.inForkJoinPool())
+				new SampleMaker(scene, x, y, 0, chunks, partials).invoke();
+			else
+				for (int chunk = 0; chunk < chunks; chunk++)
+					sampleChunk(scene, x, y, chunk, partials);
+
+			// Reduce the partial sums in order
+			double r = 0.0, g = 0.0, b = 0.0;
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				r += partials[3 * chunk];
+				g += partials[3 * chunk + 1];
+				b += partials[3 * chunk + 2];
+			}
+			pixel = new Color(r, g, b);
+		} else
+			pixel = sampleRange(scene, x, y, 0, sampling, null);
+
+		sampleCounts[x][y] = samples;
+
+		// Color correction
+		pixel = pixel.reduce(samples);
+
+		// This brightens the image
+		//pixel = pixel.applyTransform(v -> Math.sqrt(v));
+
+		// This darkens the image
+		//pixel = pixel.applyTransform(v -> v*v);
+
+		return pixel;
+	}
+
+	/**
+	 * Computes the partial sum of a single chunk of {@link Camera#sampleGrain}
+	 * samples and stores it in the chunk's slot.
+	 * 
+	 * @param scene
+	 *            The scene to sample
+	 * @param x
+	 *            X coordinate on our virtual screen
+	 * @param y
+	 *            Y coordinate on our virtual screen
+	 * @param chunk
+	 *            Index of the chunk to sample
+	 * @param partials
+	 *            The red, green and blue partial sums for every chunk
+	 */
+	private void sampleChunk(final Scene scene, final int x, final int y, final int chunk, final double[] partials) {
+		final int first = chunk * sampleGrain;
+		final Color sum = sampleRange(scene, x, y, first, Math.min(first + sampleGrain, sampling), null);
+
+		partials[3 * chunk] = sum.r;
+		partials[3 * chunk + 1] = sum.g;
+		partials[3 * chunk + 2] = sum.b;
+	}
+
+	/**
+	 * Sums a range of samples of a pixel without averaging them.
+	 * 
+	 * @param scene
+	 *            The scene to sample
+	 * @param x
+	 *            X coordinate on our virtual screen
+	 * @param y
+	 *            Y coordinate on our virtual screen
+	 * @param first
+	 *            Index of the first sample
+	 * @param last
+	 *            Index one past the final sample
+	 * @param statistics
+	 *            Receives every sample as it is taken, or null. Samples are
+	 *            then never traced in packets
+	 * @return The sum of the sampled {@link Color Colors}
+	 */
+	private Color sampleRange(final Scene scene, final int x, final int y, final int first, final int last,
+			final SampleStatistics statistics) {
+		if (pathTracer && packetSize > 1 && statistics == null)
+			return samplePackets(scene, x, y, first, last);
+
+		final Sampler sampler = this.sampler.copy();
+		final PathTracer tracer = pathTracer ? new PathTracer(scene) : null;
+		final double lower = frustum.lower, upper = frustum.upper;
+		if (tracer != null)
+			tracer.splits = splitting;
+		final int[] candidates = tileShapes == null ? null
+				: tileShapes[(y / tileSize) * ((width + tileSize - 1) / tileSize) + x / tileSize];
+		double r = 0.0, g = 0.0, b = 0.0;
+
+		// Collect samples of the scene for this current pixel
+		for (int s = first; s < last; s++) {
+			sampler.startSample(x, y, s);
+
+			// Randomly generate offsets for the current subsample
+			final double xCoord = x + sampler.nextDouble();
+			final double yCoord = y + sampler.nextDouble();
+
+			// Get the subsample position relative to the camera
+			final double sx = origin.x + iHat.x * xCoord + jHat.x * yCoord;
+			final double sy = origin.y + iHat.y * xCoord + jHat.y * yCoord;
+			final double sz = origin.z + iHat.z * xCoord + jHat.z * yCoord;
+
+			final double sr, sg, sb;
+			if (tracer != null && screenBins != null) {
+				tracer.trace(primaryOrigin, screenBins, x, y, sx, sy, sz, lower, upper, depth, sampler);
+				sr = tracer.r;
+				sg = tracer.g;
+				sb = tracer.b;
+			} else if (tracer != null) {
+				tracer.trace(primaryOrigin, candidates, pixelHints ? hints[x][y] : -1, sx, sy, sz, lower, upper,
+						depth, sampler);
+				if (pixelHints && tracer.firstShape >= 0)
+					hints[x][y] = tracer.firstShape;
+				sr = tracer.r;
+				sg = tracer.g;
+				sb = tracer.b;
+			} else {
+				// Construct a ray from the subsample position
+				final Ray cast = new Ray(position, new Vector(sx, sy, sz));
+				final Color sample = scene.castRay(cast, frustum, depth, sampler);
+				sr = sample.r;
+				sg = sample.g;
+				sb = sample.b;
+			}
+
+			r += sr;
+			g += sg;
+			b += sb;
+			if (statistics != null)
+				statistics.add(sr, sg, sb);
+		}
+
+		return new Color(r, g, b);
+	}
+
+	/**
+	 * Sums a range of samples of a pixel like
+	 * {@link Camera#sampleRange(Scene, int, int, int, int, SampleStatistics) sampleRange}, but
+	 * finds the first hits of up to {@link Camera#packetSize} samples at once.
+	 * After their first hit the samples scatter in every direction, so each
+	 * one carries on alone.
+	 * 
+	 * @param scene
+	 *            The scene to sample
+	 * @param x
+	 *            X coordinate on our virtual screen
+	 * @param y
+	 *            Y coordinate on our virtual screen
+	 * @param first
+	 *            Index of the first sample
+	 * @param last
+	 *            Index one past the final sample
+	 * @return The sum of the sampled {@link Color Colors}
+	 */
+	private Color samplePackets(final Scene scene, final int x, final int y, final int first, final int last) {
+		final Sampler sampler = this.sampler.copy();
+		final PathTracer tracer = new PathTracer(scene);
+		tracer.splits = splitting;
+		final Packet packet = new Packet(Math.min(packetSize, last - first));
+		final double lower = frustum.lower, upper = frustum.upper;
+		double r = 0.0, g = 0.0, b = 0.0;
+
+		for (int start = first; start < last; start += packet.capacity()) {
+			final int end = Math.min(start + packet.capacity(), last);
+			packet.reset(position.x, position.y, position.z);
+
+			// Aim every ray of the packet the same way sampleRange does
+			for (int s = start; s < end; s++) {
+				sampler.startSample(x, y, s);
+
+				final double xCoord = x + sampler.nextDouble();
+				final double yCoord = y + sampler.nextDouble();
+
+				packet.add(origin.x + iHat.x * xCoord + jHat.x * yCoord,
+						origin.y + iHat.y * xCoord + jHat.y * yCoord,
+						origin.z + iHat.z * xCoord + jHat.z * yCoord, upper);
+			}
+
+			tracer.intersect(packet, lower);
+
+			// Restart each sample's stream and skip past its aim to carry on
+			for (int s = start; s < end; s++) {
+				sampler.startSample(x, y, s);
+				sampler.nextDouble();
+				sampler.nextDouble();
+
+				tracer.trace(packet, s - start, lower, upper, depth, sampler);
+				r += tracer.r;
+				g += tracer.g;
+				b += tracer.b;
+			}
+		}
+
+		return new Color(r, g, b);
+	}
+
 	/**
 	 * Takes our color values from {@link Camera#film} and puts them into a
 	 * {@link BufferedImage}. This complexity of this function is dwarfed by the
@@ -260,6 +884,27 @@ public class Camera {
 		return negative;
 	}
 
+	/**
+	 * Draws how many samples each pixel of the latest capture took, from
+	 * black for none to white for {@link Camera#sampling}. Without
+	 * {@link Camera#adaptive adaptive} sampling every pixel is white.
+	 * 
+	 * @return A {@link BufferedImage} of the sample counts ready to be output
+	 *         into a file
+	 */
+	public BufferedImage sampleMap() {
+		BufferedImage map = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final int gray = (int) Math.min(255L * sampleCounts[x][y] / Math.max(sampling, 1), 255);
+				map.setRGB(x, y, gray << 16 | gray << 8 | gray);
+			}
+		}
+
+		return map;
+	}
+
 	/**
 	 * Fast scene rendering intended to help with staging a {@link Scene}. This
 	 * method samples each pixel only once and returns the Color of the nearest
@@ -299,11 +944,69 @@ public class Camera {
 		return developFilm();
 	}
 
+	/**
+	 * Tops up an irradiance cache for this camera's view. A probe path is
+	 * traced through every few pixels, each ending where it would first look
+	 * the cache up, and records are gathered wherever those points aren't
+	 * covered yet. Rows of probes are traced in parallel, but their points
+	 * are kept in row order, so the cache is the same for any number of
+	 * threads.
+	 * 
+	 * @param scene
+	 *            The scene to capture
+	 * @param cache
+	 *            The scene's cache
+	 */
+	private void fillIrradianceCache(final Scene scene, final IrradianceCache cache) {
+		final int spacing = Math.max(1, cache.probeSpacing);
+		final int rows = (height + spacing - 1) / spacing;
+		final IrradianceCache.Points[] found = new IrradianceCache.Points[rows];
+		final double lower = frustum.lower, upper = frustum.upper;
+
+		final IntConsumer probeRow = row -> {
+			final PathTracer tracer = new PathTracer(scene);
+			final Sampler sampler = this.sampler.copy();
+			final int y = row * spacing;
+			tracer.probes = new IrradianceCache.Points();
+
+			for (int x = 0; x < width; x += spacing) {
+				sampler.startSample(x, y, 0);
+
+				final double xCoord = x + sampler.nextDouble();
+				final double yCoord = y + sampler.nextDouble();
+				final double sx = origin.x + iHat.x * xCoord + jHat.x * yCoord;
+				final double sy = origin.y + iHat.y * xCoord + jHat.y * yCoord;
+				final double sz = origin.z + iHat.z * xCoord + jHat.z * yCoord;
+
+				tracer.trace(position.x, position.y, position.z, sx, sy, sz, lower, upper, depth, sampler);
+			}
+
+			found[row] = tracer.probes;
+		};
+
+		// One pool serves the probes and every round of gathering
+		final ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			RangeAction.run(pool, rows, probeRow);
+
+			final IrradianceCache.Points points = new IrradianceCache.Points();
+			for (IrradianceCache.Points row : found)
+				points.addAll(row);
+
+			cache.fill(scene, points, lower, upper, depth, sampler, pool);
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+	}
+
 	/**
 	 * The ultimate function of the Camera, this function performs the actual
 	 * ray casting. If this were a real camera, this function would be the
-	 * shutter button. The casting is done in a scanline manner, left to right,
-	 * then top to bottom.
+	 * shutter button. With a single {@link Camera#threads thread} the casting
+	 * is done in a scanline manner, left to right, then top to bottom.
+	 * Otherwise the film is split into {@link Camera#tileSize square tiles}
+	 * which are scheduled on a work-stealing pool.
 	 * 
 	 * @param scene
 	 *            The scene to capture
@@ -313,10 +1016,67 @@ public class Camera {
 		if (timer != null)
 			timer.eventStart("Capture Scene");
 
-		// Iterate over every row on our virtual screen
-		for (int row = 0; row < height; row++) {
-			RowMaker pixel = new RowMaker(scene, row);
-			pixel.run();
+		primaryOrigin = scene.cacheOrigin(position.x, position.y, position.z);
+		for (int[] column : hints)
+			Arrays.fill(column, -1);
+		for (int[] column : sampleCounts)
+			Arrays.fill(column, sampling);
+
+		if (rasterize && pathTracer) {
+			if (timer != null)
+				timer.eventStart("Rasterize");
+			screenBins = scene.rasterize(position, origin, iHat, jHat, width, height, tileSize);
+			if (timer != null)
+				timer.eventStop("Rasterize");
+		} else
+			screenBins = null;
+
+		if (tileCulling && screenBins == null) {
+			if (timer != null)
+				timer.eventStart("Cull Tiles");
+			tileShapes = cullTiles(scene);
+			if (timer != null)
+				timer.eventStop("Cull Tiles");
+		} else
+			tileShapes = null;
+
+		if (scene.photonMap != null) {
+			if (timer != null)
+				timer.eventStart("Trace Photons");
+			scene.photonMap.build(scene, frustum.lower, frustum.upper, depth, sampler, threads);
+			if (timer != null)
+				timer.eventStop("Trace Photons");
+		}
+
+		if (scene.irradianceCache != null) {
+			if (timer != null)
+				timer.eventStart("Fill Irradiance Cache");
+			fillIrradianceCache(scene, scene.irradianceCache);
+			if (timer != null)
+				timer.eventStop("Fill Irradiance Cache");
+		}
+
+		if (threads > 1) {
+			final int tiles = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+			final ForkJoinPool pool = new ForkJoinPool(threads);
+
+			// The pool's join guarantees that every write to the film is
+			// visible by the time we develop it
+			try {
+				pool.invoke(new TileMaker(scene, 0, tiles));
+			} finally {
+				pool.shutdown();
+			}
+		} else if (wavefrontSize > 0) {
+			final int tiles = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+			for (int tile = 0; tile < tiles; tile++)
+				developTile(scene, tile);
+		} else {
+			// Iterate over every row on our virtual screen
+			for (int row = 0; row < height; row++) {
+				RowMaker pixel = new RowMaker(scene, row);
+				pixel.run();
+			}
 		}
 
 		if (timer != null)
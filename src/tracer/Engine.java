@@ -3,6 +3,8 @@ package tracer;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,12 +12,18 @@ import java.util.Map;
 import javax.imageio.ImageIO;
 
 import tracer.materials.Dielectric;
+import tracer.materials.Emissive;
 import tracer.materials.Lambertian;
 import tracer.materials.Material;
 import tracer.materials.Metallic;
+import tracer.samplers.HaltonSampler;
+import tracer.samplers.RandomSampler;
+import tracer.samplers.SobolSampler;
 import tracer.shapes.Plane;
 import tracer.shapes.Quadric;
 import tracer.shapes.Sphere;
+import tracer.utils.Color;
+import tracer.utils.EnvironmentMap;
 import tracer.utils.FileParser;
 import tracer.utils.GridTimerDelegate;
 import tracer.utils.Vector;
@@ -47,17 +55,22 @@ public class Engine {
 		this.timer.eventStop("Parse file \"" + filename + "\"");
 
 		this.timer.eventStart("Allocate Scene and Camera");
-		allocateFromEntries(descriptors, width, height, sampling, depth);
+		allocateFromEntries(descriptors, Paths.get(filename).toAbsolutePath().getParent(), width, height, sampling,
+				depth);
 		this.timer.eventStop("Allocate Scene and Camera");
 
 		if (this.scene == null)
 			throw new SceneFormattingException("File missing Scene descriptor");
 		if (this.camera == null)
 			throw new SceneFormattingException("File missing Camera descriptor");
+
+		this.timer.eventStart("Prepare Scene");
+		this.scene.prepare();
+		this.timer.eventStop("Prepare Scene");
 	}
 
-	private void allocateFromEntries(final List<Entry> descriptors, final int width, final int height,
-			final int sampling, final int depth) throws SceneFormattingException {
+	private void allocateFromEntries(final List<Entry> descriptors, final Path directory, final int width,
+			final int height, final int sampling, final int depth) throws IOException, SceneFormattingException {
 		Map<String, Material> materials = new HashMap<>();
 
 		for (final Entry entry : descriptors) {
@@ -66,6 +79,59 @@ public class Engine {
 				case "scene":
 					final double index = Double.parseDouble(entry.properties.get("index"));
 					this.scene = new Scene(index);
+
+					// Optionally choose how the scene finds the nearest shape
+					final String accelerator = entry.properties.getOrDefault("accelerator", "linear");
+					if (accelerator.equals("bvh"))
+						this.scene.useHierarchy = true;
+					else if (!accelerator.equals("linear"))
+						throw new SceneFormattingException("Unknown accelerator: " + accelerator);
+
+					final String layout = entry.properties.getOrDefault("layout", "objects");
+					if (layout.equals("packed"))
+						this.scene.usePacking = true;
+					else if (!layout.equals("objects"))
+						throw new SceneFormattingException("Unknown layout: " + layout);
+
+					final String compile = entry.properties.getOrDefault("compile", "false");
+					if (compile.equals("true"))
+						this.scene.useCompiler = true;
+					else if (!compile.equals("false"))
+						throw new SceneFormattingException("Unknown compile option: " + compile);
+
+					// Optionally recolor the sky, for instance to light a scene
+					// with lights alone
+					if (entry.properties.containsKey("sky"))
+						this.scene.sky = new Color(entry.properties.get("sky"));
+					if (entry.properties.containsKey("zenith"))
+						this.scene.zenith = new Color(entry.properties.get("zenith"));
+
+					// Optionally surround the scene with an HDR image instead,
+					// found relative to the scene file
+					if (entry.properties.containsKey("environment"))
+						this.scene.environment = EnvironmentMap
+								.read(directory.resolve(entry.properties.get("environment")).toString());
+
+					// Optionally end dim paths early past a number of bounces
+					if (entry.properties.containsKey("roulette"))
+						this.scene.rouletteDepth = Integer.parseInt(entry.properties.get("roulette"));
+
+					// Optionally look bounced light up in a cache, with the
+					// given error bound
+					if (entry.properties.containsKey("irradiance")) {
+						final double error = Double.parseDouble(entry.properties.get("irradiance"));
+						if (!(error > 0.0))
+							throw new SceneFormattingException("Irradiance error must be positive: " + error);
+						this.scene.irradianceCache = new IrradianceCache(error);
+					}
+
+					// Optionally map caustics with photons, gathered within a
+					// given spread
+					if (entry.properties.containsKey("caustics")) {
+						this.scene.photonMap = new PhotonMap(Integer.parseInt(entry.properties.get("caustics")));
+						if (entry.properties.containsKey("spread"))
+							this.scene.photonMap.radius = Double.parseDouble(entry.properties.get("spread"));
+					}
 					break;
 
 				case "camera":
@@ -78,18 +144,38 @@ public class Engine {
 					if ((up = new Vector(entry.properties.get("position"))) != null) {
 						camera.aimCamera(fov, dir, up);
 					}
-					break;
 
-				case "lambertian":
-					materials.put(entry.name, new Lambertian(entry.properties));
+					// Optionally choose where the numbers for each sample come from
+					final String sampler = entry.properties.getOrDefault("sampler", "random");
+					if (sampler.equals("sobol"))
+						this.camera.sampler = new SobolSampler(0);
+					else if (sampler.equals("halton"))
+						this.camera.sampler = new HaltonSampler(0);
+					else if (sampler.equals("random"))
+						this.camera.sampler = new RandomSampler(0);
+					else
+						throw new SceneFormattingException("Unknown sampler: " + sampler);
 					break;
 
+				case "lambertian":
 				case "metallic":
-					materials.put(entry.name, new Metallic(entry.properties));
-					break;
-
 				case "dielectric":
-					materials.put(entry.name, new Dielectric(entry.properties));
+				case "emissive":
+					final Material made;
+					if (entry.type.equals("lambertian"))
+						made = new Lambertian(entry.properties);
+					else if (entry.type.equals("metallic"))
+						made = new Metallic(entry.properties);
+					else if (entry.type.equals("emissive"))
+						made = new Emissive(entry.properties);
+					else
+						made = new Dielectric(entry.properties);
+
+					// Optionally cap how deep a path may be when it bounces off
+					if (entry.properties.containsKey("bounces"))
+						made.bounces = Integer.parseInt(entry.properties.get("bounces"));
+
+					materials.put(entry.name, made);
 					break;
 
 				case "plane":
@@ -103,7 +189,7 @@ public class Engine {
 					if (entry.type.equals("plane"))
 						this.scene.addShape(new Plane(material, entry.properties));
 					else if (entry.type.equals("quadric"))
-						this.scene.addShape(new Quadric(material, entry.properties));
+						this.scene.addShape(Quadric.fromProperties(material, entry.properties));
 					else
 						this.scene.addShape(new Sphere(material, entry.properties));
 					break;
@@ -118,6 +204,16 @@ public class Engine {
 		}
 	}
 
+	/**
+	 * Getter for the camera, so its capture settings may be adjusted before
+	 * saving.
+	 * 
+	 * @return The camera described by the scene file
+	 */
+	public Camera getCamera() {
+		return camera;
+	}
+
 	public void saveCaptureTo(final String filename) throws IOException {
 		// Get our capture
 		final BufferedImage image = camera.captureScene(scene);
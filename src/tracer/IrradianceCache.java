@@ -0,0 +1,475 @@
+package tracer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import tracer.samplers.Sampler;
+import tracer.utils.Hit;
+import tracer.utils.Path;
+
+/**
+ * A sparse cache of the light arriving at diffuse surfaces, for paths that
+ * have already bounced off of one diffuse surface. That light is smooth, so
+ * rather than bounce yet again and follow each path to its end, such a path
+ * interpolates the light from records gathered nearby. Light from lights is
+ * still {@link Scene#sampleLight sampled} directly at the hit, since
+ * shadows are anything but smooth; only what a bounce would have found is
+ * looked up.
+ *
+ * Each record holds the light a surface point gathers from many bounces,
+ * along with the harmonic mean distance to the shapes around it. A record
+ * is trusted at a nearby point as long as the distance between them,
+ * relative to that mean, plus the difference in their normals, stays under
+ * the {@link IrradianceCache#error error} bound; so records are dense in
+ * corners and sparse across open floors. A hit no record can be trusted at
+ * simply bounces as usual.
+ *
+ * Before a capture the cache is {@link Camera#captureScene(Scene) topped
+ * up} for the camera's view: probe paths find where lookups will happen,
+ * and records are gathered in parallel wherever none can be trusted yet.
+ * Records are never changed during a capture, so lookups are safe from
+ * every worker, and the cache can be kept with its scene for any number of
+ * frames, as long as nothing in the scene moves.
+ *
+ * @author mld2443
+ * @see "Ward, Rubinstein and Clear, A Ray Tracing Solution for Diffuse
+ *      Interreflection (1988)"
+ */
+public class IrradianceCache {
+	/**
+	 * The values kept for each record: its point, its normal, the harmonic
+	 * mean distance to its surroundings, and the light it gathered.
+	 */
+	private static final int STRIDE = 10;
+
+	/**
+	 * How far apart records may be, where a larger error allows fewer
+	 * records and smoother, blurrier light. Somewhere around 0.1 to 0.3 is
+	 * typical.
+	 */
+	public final double error;
+
+	/**
+	 * The number of bounces gathered for each record.
+	 */
+	public int gatherRays = 64;
+
+	/**
+	 * The least and most the mean distance of a record may be, in scene
+	 * units, so records are neither packed without end into corners nor
+	 * stretched across the whole scene.
+	 */
+	public double minSpacing = 0.25, maxSpacing = 8.0;
+
+	/**
+	 * The number of pixels between the probe paths the camera traces to find
+	 * where lookups will happen.
+	 */
+	public int probeSpacing = 4;
+
+	/**
+	 * The most rounds of gathering a single capture may run; whatever is
+	 * still uncovered after that simply bounces as usual.
+	 */
+	public int maxRounds = 64;
+
+	/**
+	 * Every record, {@link IrradianceCache#STRIDE} values apiece.
+	 */
+	private double[] records = new double[0];
+	private int size = 0;
+
+	/**
+	 * The records that may be trusted somewhere within each cell of a grid.
+	 * Cells are found by their {@link IrradianceCache#pack packed}
+	 * coordinates in an open-addressed table, and a cell found in slot
+	 * {@code s} lists the records from {@code listed[starts[s]]} up to
+	 * {@code listed[starts[s + 1]]}.
+	 */
+	private long[] cells = new long[0];
+	private int[] starts = new int[0], listed = new int[0];
+	private double cellSize = 1.0;
+
+	/**
+	 * Marks an empty slot of the table, which no packed key can equal.
+	 */
+	private static final long EMPTY = -1L;
+
+	/**
+	 * Points and normals of diffuse hits, as they are found by probe paths.
+	 */
+	static final class Points {
+		double[] values = new double[6 * 64];
+		int size = 0;
+
+		void add(final Hit hit) {
+			if (6 * size == values.length)
+				values = Arrays.copyOf(values, 2 * values.length);
+
+			final int at = 6 * size++;
+			values[at] = hit.px;
+			values[at + 1] = hit.py;
+			values[at + 2] = hit.pz;
+			values[at + 3] = hit.nx;
+			values[at + 4] = hit.ny;
+			values[at + 5] = hit.nz;
+		}
+
+		void addAll(final Points points) {
+			for (int i = 0; i < points.size; i++) {
+				if (6 * size == values.length)
+					values = Arrays.copyOf(values, 2 * values.length);
+				System.arraycopy(points.values, 6 * i, values, 6 * size++, 6);
+			}
+		}
+	}
+
+	/**
+	 * Sets up an empty cache.
+	 *
+	 * @param error
+	 *            How far apart records may be
+	 */
+	public IrradianceCache(final double error) {
+		this.error = error;
+	}
+
+	/**
+	 * @return The number of records in the cache
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the cache, for when the scene has changed.
+	 */
+	public void clear() {
+		records = new double[0];
+		size = 0;
+		cells = new long[0];
+		starts = new int[0];
+		listed = new int[0];
+	}
+
+	/**
+	 * Adds the light interpolated from the records trusted at a hit, scaled
+	 * by the path's throughput, to what the path has gathered.
+	 *
+	 * @param hit
+	 *            The resolved hit on a diffuse surface
+	 * @param path
+	 *            The path that reached it
+	 * @return false if no record can be trusted at the hit, in which case the
+	 *         path is left as it was
+	 */
+	boolean lookup(final Hit hit, final Path path) {
+		final int slot = find(cells, key(hit.px, hit.py, hit.pz));
+		if (slot < 0)
+			return false;
+
+		double total = 0.0, r = 0.0, g = 0.0, b = 0.0;
+		for (int i = starts[slot]; i < starts[slot + 1]; i++) {
+			final int id = listed[i];
+			final double weight = weight(id, hit.px, hit.py, hit.pz, hit.nx, hit.ny, hit.nz);
+			if (weight == 0.0)
+				continue;
+
+			final int at = STRIDE * id;
+			total += weight;
+			r += weight * records[at + 7];
+			g += weight * records[at + 8];
+			b += weight * records[at + 9];
+		}
+
+		if (total == 0.0)
+			return false;
+
+		path.lr += path.r * r / total;
+		path.lg += path.g * g / total;
+		path.lb += path.b * b / total;
+		return true;
+	}
+
+	/**
+	 * How much a record is trusted at a point, from Ward's error estimate.
+	 *
+	 * @return The weight of the record, or 0 if it can't be trusted there
+	 */
+	private double weight(final int id, final double px, final double py, final double pz, final double nx,
+			final double ny, final double nz) {
+		final int at = STRIDE * id;
+		final double dx = px - records[at], dy = py - records[at + 1], dz = pz - records[at + 2];
+		final double rx = records[at + 3], ry = records[at + 4], rz = records[at + 5], radius = records[at + 6];
+
+		// Points in front of the record's surface see things it doesn't
+		if ((dx * (nx + rx) + dy * (ny + ry) + dz * (nz + rz)) * 0.5 < -0.05 * radius)
+			return 0.0;
+
+		final double estimate = Math.sqrt(dx * dx + dy * dy + dz * dz) / radius
+				+ Math.sqrt(Math.max(0.0, 1.0 - (nx * rx + ny * ry + nz * rz)));
+		if (estimate >= error)
+			return 0.0;
+
+		return 1.0 / Math.max(estimate, 1e-9);
+	}
+
+	/**
+	 * Whether any record can be trusted at a point.
+	 */
+	private boolean covers(final double[] points, final int at) {
+		final int slot = find(cells, key(points[at], points[at + 1], points[at + 2]));
+		if (slot >= 0)
+			for (int i = starts[slot]; i < starts[slot + 1]; i++)
+				if (weight(listed[i], points[at], points[at + 1], points[at + 2], points[at + 3], points[at + 4],
+						points[at + 5]) > 0.0)
+					return true;
+
+		return false;
+	}
+
+	/**
+	 * Gathers records wherever none can be trusted at the points probe paths
+	 * found. The points are visited in order, and each round gathers a record
+	 * for every point not yet covered and not near another point of the same
+	 * round, where what counts as near shrinks from round to round. The
+	 * records of a round are gathered in parallel, and only added once the
+	 * round is over, so the cache comes out the same for any number of
+	 * threads. At most {@link IrradianceCache#maxRounds} rounds are run.
+	 *
+	 * @param scene
+	 *            The scene the cache belongs to
+	 * @param points
+	 *            The points probe paths found
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps each bounce will take before being
+	 *            absorbed or reaching the sky
+	 * @param sampler
+	 *            The sampler each record's bounces are drawn from a copy of
+	 * @param pool
+	 *            The pool gathering records, or null to gather them on this
+	 *            thread
+	 */
+	void fill(final Scene scene, final Points points, final double lower, final double upper, final int depth,
+			final Sampler sampler, final ForkJoinPool pool) {
+		// Rounds start out picking points far apart, in case a few records
+		// cover everything, and pick them closer together as they go
+		double spacing = error * maxSpacing;
+
+		for (int round = 0; round < maxRounds; round++, spacing = Math.max(0.5 * spacing, error * minSpacing)) {
+			// Pick out the points still uncovered, but only one in each
+			// neighborhood per round, since one record may cover the rest
+			final long[] picked = table(points.size);
+			final int[] picks = new int[points.size];
+			int count = 0;
+
+			for (int i = 0; i < points.size; i++) {
+				final int at = 6 * i;
+				if (covers(points.values, at))
+					continue;
+
+				final long key = key(points.values[at], points.values[at + 1], points.values[at + 2], spacing);
+				final int slot = insert(picked, key);
+				if (picked[slot] == EMPTY) {
+					picked[slot] = key;
+					picks[count++] = at;
+				}
+			}
+
+			if (count == 0)
+				return;
+
+			final double[] gathered = new double[STRIDE * count];
+			final int first = size;
+
+			RangeAction.run(pool, count,
+					i -> gather(scene, points.values, picks[i], first + i, gathered, lower, upper, depth, sampler));
+
+			records = Arrays.copyOf(records, STRIDE * (size + count));
+			System.arraycopy(gathered, 0, records, STRIDE * size, gathered.length);
+			size += count;
+			index();
+		}
+	}
+
+	/**
+	 * Gathers a single record by bouncing off of its point many times.
+	 *
+	 * @param number
+	 *            The record's number, which picks its sampler streams
+	 */
+	private void gather(final Scene scene, final double[] points, final int at, final int number,
+			final double[] gathered, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		final PathTracer tracer = new PathTracer(scene);
+		final Sampler bounces = sampler.copy();
+		final double px = points[at], py = points[at + 1], pz = points[at + 2];
+		final double nx = points[at + 3], ny = points[at + 4], nz = points[at + 5];
+		double r = 0.0, g = 0.0, b = 0.0, inverse = 0.0;
+
+		for (int k = 0; k < gatherRays; k++) {
+			bounces.startSample(number, -1, k);
+			bounces.startBounce(0);
+
+			// Bounce exactly as a diffuse surface would
+			final double z = 1.0 - 2.0 * bounces.nextDouble();
+			final double phi = 2.0 * Math.PI * bounces.nextDouble();
+			final double s = Math.sqrt(Math.max(0.0, 1.0 - z * z));
+			final double dx = nx + s * Math.cos(phi), dy = ny + s * Math.sin(phi), dz = nz + z;
+			final double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+			if (length == 0.0)
+				continue;
+
+			final double cosine = (nx * dx + ny * dy + nz * dz) / length;
+			tracer.traceFrom(px, py, pz, dx, dy, dz, Math.max(0.0, cosine) / Math.PI, lower, upper, depth,
+					bounces);
+
+			r += tracer.r;
+			g += tracer.g;
+			b += tracer.b;
+			if (tracer.firstDistance < Double.POSITIVE_INFINITY)
+				inverse += 1.0 / tracer.firstDistance;
+		}
+
+		final double mean = inverse > 0.0 ? gatherRays / inverse : maxSpacing;
+		final int to = STRIDE * (number - size);
+
+		gathered[to] = px;
+		gathered[to + 1] = py;
+		gathered[to + 2] = pz;
+		gathered[to + 3] = nx;
+		gathered[to + 4] = ny;
+		gathered[to + 5] = nz;
+		gathered[to + 6] = Math.max(minSpacing, Math.min(mean, maxSpacing));
+		gathered[to + 7] = r / gatherRays;
+		gathered[to + 8] = g / gatherRays;
+		gathered[to + 9] = b / gatherRays;
+	}
+
+	/**
+	 * Rebuilds the grid, listing each record in every cell its trusted
+	 * neighborhood reaches. The cells are twice as wide as the mean
+	 * neighborhood, so few records are listed in any one cell, and few cells
+	 * list any one record.
+	 */
+	private void index() {
+		double reaches = 0.0;
+		for (int id = 0; id < size; id++)
+			reaches += error * records[STRIDE * id + 6];
+
+		cellSize = 2.0 * Math.max(reaches / size, error * minSpacing);
+
+		// The first pass counts the records in each cell, and the second
+		// lists them, in order, after the counts of every earlier slot
+		int entries = 0;
+		for (int id = 0; id < size; id++)
+			entries += span(id, 0) * span(id, 1) * span(id, 2);
+
+		final long[] grown = table(entries);
+		final int[] counts = new int[grown.length + 1];
+		final int[] ids = new int[entries];
+
+		for (int pass = 0; pass < 2; pass++) {
+			for (int id = 0; id < size; id++) {
+				final int at = STRIDE * id;
+				final double reach = error * records[at + 6];
+
+				final long x0 = cell(records[at] - reach), x1 = cell(records[at] + reach);
+				final long y0 = cell(records[at + 1] - reach), y1 = cell(records[at + 1] + reach);
+				final long z0 = cell(records[at + 2] - reach), z1 = cell(records[at + 2] + reach);
+
+				for (long x = x0; x <= x1; x++)
+					for (long y = y0; y <= y1; y++)
+						for (long z = z0; z <= z1; z++) {
+							final long key = pack(x, y, z);
+							final int slot = insert(grown, key);
+							grown[slot] = key;
+
+							if (pass == 0)
+								counts[slot + 1]++;
+							else
+								ids[counts[slot]++] = id;
+						}
+			}
+
+			// Turn the counts into where each slot's list starts, then, once
+			// the lists are filled, back again
+			if (pass == 0)
+				for (int slot = 0; slot < grown.length; slot++)
+					counts[slot + 1] += counts[slot];
+			else {
+				System.arraycopy(counts, 0, counts, 1, grown.length);
+				counts[0] = 0;
+			}
+		}
+
+		cells = grown;
+		starts = counts;
+		listed = ids;
+	}
+
+	/**
+	 * @return The number of cells a record's trusted neighborhood reaches
+	 *         along one axis
+	 */
+	private int span(final int id, final int axis) {
+		final int at = STRIDE * id + axis;
+		final double reach = error * records[STRIDE * id + 6];
+		return (int) (cell(records[at] + reach) - cell(records[at] - reach) + 1);
+	}
+
+	/**
+	 * Makes an empty table with room for some number of keys, with at least
+	 * half of its slots always left empty.
+	 */
+	private static long[] table(final int keys) {
+		final long[] table = new long[Integer.highestOneBit(Math.max(1, keys)) << 2];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	/**
+	 * @return The slot holding a key, or the empty slot where it belongs
+	 */
+	private static int insert(final long[] table, final long key) {
+		final int mask = table.length - 1;
+		int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (table[slot] != key && table[slot] != EMPTY)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * @return The slot holding a key, or -1 if it isn't in the table
+	 */
+	private static int find(final long[] table, final long key) {
+		if (table.length == 0)
+			return -1;
+
+		final int slot = insert(table, key);
+		return table[slot] == key ? slot : -1;
+	}
+
+	private long cell(final double coordinate) {
+		return (long) Math.floor(coordinate / cellSize);
+	}
+
+	private long key(final double x, final double y, final double z) {
+		return pack(cell(x), cell(y), cell(z));
+	}
+
+	private static long key(final double x, final double y, final double z, final double size) {
+		return pack((long) Math.floor(x / size), (long) Math.floor(y / size), (long) Math.floor(z / size));
+	}
+
+	/**
+	 * Packs the coordinates of a cell into one key, 21 bits apiece.
+	 */
+	private static long pack(final long x, final long y, final long z) {
+		return ((x & 0x1FFFFF) << 42) | ((y & 0x1FFFFF) << 21) | (z & 0x1FFFFF);
+	}
+}
@@ -0,0 +1,480 @@
+package tracer;
+
+import tracer.accelerators.ScreenBins;
+import tracer.materials.Material;
+import tracer.samplers.Sampler;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
+import tracer.utils.Path;
+
+/**
+ * An allocation-free alternative to {@link Scene#castRay}. The path being
+ * followed lives in a reusable {@link Path} and the nearest hit in a reusable
+ * {@link Hit}, and the colors it bounces off of are folded into its throughput
+ * as it goes, instead of being collected in a list. It makes the same choices
+ * as castRay, so both produce the same image.
+ * 
+ * Camera rays may also be traced in a {@link Packet}; the packet finds every
+ * first hit together, and then each sample carries on by itself.
+ * 
+ * Each worker needs its own PathTracer.
+ * 
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Path_tracing">Wikipedia: Path
+ *      Tracing</a>
+ */
+public class PathTracer {
+	private final Scene scene;
+	private final Path path = new Path();
+	private final Hit hit = new Hit();
+	private final Hit shadow = new Hit();
+
+	/**
+	 * The color the most recent {@link PathTracer#trace traced} sample
+	 * detected.
+	 */
+	public double r, g, b;
+
+	/**
+	 * Index of the shape the most recent sample hit first, or -1 if it hit
+	 * nothing.
+	 */
+	public int firstShape = -1;
+
+	/**
+	 * The number of paths each sample splits into at its first random
+	 * bounce, off of a {@link Material#scattersRandomly() diffuse or glass}
+	 * surface. The splits share everything up to that bounce, including the
+	 * camera ray, and each carries an equal share of the sample. 1 never
+	 * splits.
+	 */
+	public int splits = 1;
+
+	/**
+	 * The distance to the first hit of the most recent
+	 * {@link PathTracer#traceFrom traced bounce}, or infinity if it reached
+	 * the sky.
+	 */
+	public double firstDistance = Double.POSITIVE_INFINITY;
+
+	/**
+	 * Where probe paths keep the points an {@link IrradianceCache} would be
+	 * looked up at, or null when tracing as usual. Probe paths end at those
+	 * points instead of carrying on.
+	 */
+	IrradianceCache.Points probes = null;
+
+	/**
+	 * Sets up a tracer for a scene.
+	 * 
+	 * @param scene
+	 *            The scene to trace
+	 */
+	public PathTracer(final Scene scene) {
+		this.scene = scene;
+	}
+
+	/**
+	 * Traces a single sample through the scene, and leaves the color it
+	 * detected in {@link PathTracer#r r}, {@link PathTracer#g g} and
+	 * {@link PathTracer#b b}.
+	 * 
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Direction of the ray of any length, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps our ray will take before being absorbed or
+	 *            reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce
+	 */
+	public void trace(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double lower, final double upper, final int depth, final Sampler sampler) {
+		path.set(ox, oy, oz, dx, dy, dz);
+		follow(null, null, -1, false, lower, upper, depth, sampler);
+	}
+
+	/**
+	 * Traces a single sample like {@link PathTracer#trace(double, double,
+	 * double, double, double, double, double, double, int, Sampler) trace},
+	 * starting from an origin whose terms were already
+	 * {@link Scene#cacheOrigin cached}.
+	 * 
+	 * @param origin
+	 *            Origin of the ray, with its terms cached
+	 * @param candidates
+	 *            The only listed shapes the first segment could hit, or null
+	 * @param hint
+	 *            Index of a shape the ray is likely to hit first, such as the
+	 *            {@link PathTracer#firstShape first shape} of a neighboring
+	 *            sample, or -1
+	 * @param dx
+	 *            Direction of the ray of any length, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps our ray will take before being absorbed or
+	 *            reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce
+	 */
+	public void trace(final OriginCache origin, final int[] candidates, final int hint, final double dx,
+			final double dy, final double dz, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		path.set(origin.ox, origin.oy, origin.oz, dx, dy, dz);
+		follow(origin, candidates, hint, false, lower, upper, depth, sampler);
+	}
+
+	/**
+	 * Traces a single sample from a camera like {@link PathTracer#trace(double,
+	 * double, double, double, double, double, double, double, int, Sampler)
+	 * trace}, looking its first hit up in the shapes
+	 * {@link Scene#rasterize rasterized} for the camera. Only the bounces
+	 * after it are searched for.
+	 * 
+	 * @param origin
+	 *            The camera's position, with its terms cached
+	 * @param bins
+	 *            The shapes rasterized for the camera
+	 * @param x
+	 *            The column of the pixel the ray passes through
+	 * @param y
+	 *            The row of the pixel the ray passes through
+	 * @param dx
+	 *            Direction of the ray of any length, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps our ray will take before being absorbed or
+	 *            reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce
+	 */
+	public void trace(final OriginCache origin, final ScreenBins bins, final int x, final int y, final double dx,
+			final double dy, final double dz, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		path.set(origin.ox, origin.oy, origin.oz, dx, dy, dz);
+		scene.findNearest(origin, bins, x, y, path.dx, path.dy, path.dz, lower, upper, hit);
+		follow(null, null, -1, true, lower, upper, depth, sampler);
+	}
+
+	/**
+	 * Traces a single bounce off of a diffuse surface, as the surface's own
+	 * bounce would have been traced, and leaves the light it found in
+	 * {@link PathTracer#r r}, {@link PathTracer#g g} and
+	 * {@link PathTracer#b b}, and the distance it went in
+	 * {@link PathTracer#firstDistance firstDistance}. Used to gather the
+	 * records of an {@link IrradianceCache}; the surface's bounce counts as
+	 * the path's first diffuse bounce, so records already in the cache may be
+	 * looked up past it.
+	 * 
+	 * @param ox
+	 *            The point on the surface, with oy and oz
+	 * @param dx
+	 *            Direction of the bounce of any length, with dy and dz
+	 * @param pdf
+	 *            The chance density of the bounce's direction
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps the bounce will take before being
+	 *            absorbed or reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce after this one
+	 */
+	void traceFrom(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double pdf, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		path.set(ox, oy, oz, dx, dy, dz);
+		path.reset();
+		path.diffuseBounces = 1;
+		path.pdf = pdf;
+		path.sx = ox;
+		path.sy = oy;
+		path.sz = oz;
+		firstDistance = Double.POSITIVE_INFINITY;
+
+		walk(null, null, -1, false, 1, lower, upper, depth, sampler, false);
+	}
+
+	/**
+	 * Finds the first hit of every ray of a packet.
+	 * 
+	 * @param packet
+	 *            The rays to trace
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 */
+	public void intersect(final Packet packet, final double lower) {
+		scene.findNearest(packet, lower, hit);
+	}
+
+	/**
+	 * Carries on tracing one ray of a packet whose first hits were already
+	 * {@link PathTracer#intersect(Packet, double) found}, exactly as
+	 * {@link PathTracer#trace(double, double, double, double, double, double,
+	 * double, double, int, Sampler) trace} would have.
+	 * 
+	 * @param packet
+	 *            The packet the ray belongs to
+	 * @param lane
+	 *            Which ray of the packet
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps our ray will take before being absorbed or
+	 *            reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce, already past
+	 *            the numbers used to aim the ray
+	 */
+	public void trace(final Packet packet, final int lane, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		path.ox = packet.ox;
+		path.oy = packet.oy;
+		path.oz = packet.oz;
+		path.dx = packet.dx[lane];
+		path.dy = packet.dy[lane];
+		path.dz = packet.dz[lane];
+
+		hit.shape = packet.shape[lane];
+		hit.distance = packet.nearest[lane];
+
+		follow(null, null, -1, true, lower, upper, depth, sampler);
+	}
+
+	/**
+	 * Follows the path from its first segment until it is absorbed or reaches
+	 * the sky.
+	 * 
+	 * @param origin
+	 *            The cached origin of the first segment, or null
+	 * @param candidates
+	 *            The only listed shapes the first segment could hit, or null
+	 * @param hint
+	 *            A shape the first segment is likely to hit, or -1
+	 * @param primary
+	 *            Whether the nearest hit of the first segment is already in
+	 *            the hit
+	 */
+	private void follow(final OriginCache origin, final int[] candidates, final int hint, final boolean primary,
+			final double lower, final double upper, final int depth, final Sampler sampler) {
+		path.reset();
+		firstShape = -1;
+
+		walk(origin, candidates, hint, primary, 0, lower, upper, depth, sampler, splits > 1);
+	}
+
+	/**
+	 * Walks the path from one of its bounces until it is absorbed or reaches
+	 * the sky, and leaves the color it detected in {@link PathTracer#r r},
+	 * {@link PathTracer#g g} and {@link PathTracer#b b}.
+	 * 
+	 * @param first
+	 *            The number of times the path has already bounced
+	 * @param split
+	 *            Whether the path should be split at its next random bounce
+	 */
+	private void walk(final OriginCache origin, final int[] candidates, final int hint, final boolean primary,
+			final int first, final double lower, double upper, final int depth, final Sampler sampler,
+			final boolean split) {
+		for (int bounce = first;; bounce++) {
+			// Base case; try changing the color and seeing what you get!
+			if (bounce >= depth) {
+				absorb();
+				return;
+			}
+
+			// Check to see if our ray hits an object, or just shoots into the sky
+			if (primary && bounce == 0) {
+				if (hit.shape < 0)
+					break;
+			} else if (origin != null && bounce == 0) {
+				if (!scene.findNearest(origin, candidates, hint, path.dx, path.dy, path.dz, lower, upper, hit))
+					break;
+			} else if (!scene.findNearest(path.ox, path.oy, path.oz, path.dx, path.dy, path.dz, lower, upper, hit))
+				break;
+
+			if (bounce == 0)
+				firstShape = hit.shape;
+			if (bounce == first)
+				firstDistance = hit.distance;
+
+			final Material material = scene.getShape(hit.shape).material;
+
+			// Materials past their bounce budget absorb the path
+			if (bounce >= material.bounces) {
+				absorb();
+				return;
+			}
+
+			// Lights end the path with the light they give off
+			if (material.emits()) {
+				scene.gatherEmitted(path, hit.shape);
+				absorb();
+				return;
+			}
+
+			scene.getShape(hit.shape).resolve(hit, path.ox, path.oy, path.oz, path.dx, path.dy, path.dz);
+
+			// Fold the color of that object into the path and bounce
+			path.r *= material.color.r;
+			path.g *= material.color.g;
+			path.b *= material.color.b;
+
+			// Past the first diffuse bounce, bounced light may come from the
+			// irradiance cache
+			if (probes != null && path.diffuseBounces > 0 && material.isDiffuse()) {
+				probes.add(hit);
+				absorb();
+				return;
+			} else if (scene.lookupIrradiance(path, hit)) {
+				// The record's own bounces could find the light, one step out
+				sampler.startBounce(bounce);
+				scene.sampleLight(path, hit, lower, upper - hit.distance, 0, depth, shadow, sampler);
+				absorb();
+				return;
+			}
+
+			if (split && material.scattersRandomly()) {
+				split(bounce, lower, upper - hit.distance, depth, sampler);
+				return;
+			}
+
+			// If the ray is absorbed for any reason while scattering, return
+			// only the light it gathered
+			if (!bounce(bounce, lower, upper - hit.distance, depth, sampler)) {
+				absorb();
+				return;
+			}
+
+			upper -= hit.distance;
+		}
+
+		// The sky is where all the light comes from
+		scene.skyBox(path);
+		r = path.r + path.lr;
+		g = path.g + path.lg;
+		b = path.b + path.lb;
+	}
+
+	/**
+	 * Ends the path without reaching the sky, leaving only the light it
+	 * gathered from lights along the way.
+	 */
+	private void absorb() {
+		r = path.lr;
+		g = path.lg;
+		b = path.lb;
+	}
+
+	/**
+	 * Scatters the path off of the resolved hit, samples a light from it if
+	 * it is diffuse, and plays Russian roulette with what's left of it.
+	 * 
+	 * @param bounce
+	 *            The number of times the path has already bounced
+	 * @param upper
+	 *            Farthest distance at which to register a collision past the
+	 *            hit
+	 * @return false if the path was absorbed or ended
+	 */
+	private boolean bounce(final int bounce, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		sampler.startBounce(bounce);
+		if (!scene.scatter(path, hit, sampler))
+			return false;
+
+		// Diffuse surfaces look straight at a light too
+		scene.sampleLight(path, hit, lower, upper, bounce, depth, shadow, sampler);
+
+		// Paths that carry too little light may be ended early
+		final double factor = scene.roulette(path.r, path.g, path.b, bounce + 1, sampler);
+		if (factor == 0.0)
+			return false;
+
+		path.r *= factor;
+		path.g *= factor;
+		path.b *= factor;
+		return true;
+	}
+
+	/**
+	 * Splits the path at the resolved hit into {@link PathTracer#splits}
+	 * paths, each scattered on its own and walked to the end, and averages
+	 * their colors. Every split is drawn from its own
+	 * {@link Sampler#startSplit(int, int) stream}.
+	 * 
+	 * @param bounce
+	 *            The number of times the path has already bounced
+	 * @param upper
+	 *            Farthest distance at which to register a collision past the
+	 *            hit
+	 */
+	private void split(final int bounce, final double lower, final double upper, final int depth,
+			final Sampler sampler) {
+		// Everything each split starts from, since walking overwrites it
+		final double ox = path.ox, oy = path.oy, oz = path.oz, dx = path.dx, dy = path.dy, dz = path.dz;
+		final double tr = path.r, tg = path.g, tb = path.b, lr = path.lr, lg = path.lg, lb = path.lb;
+		final double pdf = path.pdf;
+		final boolean caustic = path.caustic;
+		final double distance = hit.distance, px = hit.px, py = hit.py, pz = hit.pz;
+		final double nx = hit.nx, ny = hit.ny, nz = hit.nz;
+		final int shape = hit.shape, diffuseBounces = path.diffuseBounces;
+		double sr = 0.0, sg = 0.0, sb = 0.0;
+
+		for (int k = 0; k < splits; k++) {
+			path.ox = ox;
+			path.oy = oy;
+			path.oz = oz;
+			path.dx = dx;
+			path.dy = dy;
+			path.dz = dz;
+			path.r = tr;
+			path.g = tg;
+			path.b = tb;
+			path.lr = lr;
+			path.lg = lg;
+			path.lb = lb;
+			path.pdf = pdf;
+			path.diffuseBounces = diffuseBounces;
+			path.caustic = caustic;
+			hit.distance = distance;
+			hit.px = px;
+			hit.py = py;
+			hit.pz = pz;
+			hit.nx = nx;
+			hit.ny = ny;
+			hit.nz = nz;
+			hit.shape = shape;
+
+			sampler.startSplit(k, splits);
+			if (bounce(bounce, lower, upper, depth, sampler))
+				walk(null, null, -1, false, bounce + 1, lower, upper, depth, sampler, false);
+			else
+				absorb();
+
+			sr += r;
+			sg += g;
+			sb += b;
+		}
+
+		r = sr / splits;
+		g = sg / splits;
+		b = sb / splits;
+	}
+}
@@ -0,0 +1,635 @@
+package tracer;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import tracer.materials.Emissive;
+import tracer.materials.Material;
+import tracer.samplers.Sampler;
+import tracer.shapes.Shape;
+import tracer.shapes.Sphere;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.Path;
+
+/**
+ * A map of the caustics in a scene: light focused onto diffuse surfaces by
+ * mirrors and glass. Paths bouncing off of a diffuse surface only find such
+ * light by chance, so it is the last part of an image to converge. Instead,
+ * photons are traced from the lights and the sky through the
+ * {@link Scene#focuses(int) focusing shapes} before a capture, and every
+ * diffuse hit {@link PhotonMap#gather(Path, Hit) gathers} the photons that
+ * landed nearby. Paths that reach a light or the sky past a focusing shape
+ * right after a diffuse bounce are then left dark, since the map already
+ * holds that light.
+ *
+ * Photons are only aimed at a sphere around the bounded focusing shapes, and
+ * only those that bounce off of one of them before reaching a diffuse
+ * surface are kept. They are traced in batches of fixed size, in parallel,
+ * and kept in the order they were emitted, so the map comes out the same for
+ * any number of threads. The map never holds more photons than it was made
+ * for, and is kept in a kd-tree laid out in flat arrays, with each node at
+ * the middle of the range its subtree covers.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Photon_mapping">Wikipedia:
+ *      Photon Mapping</a>
+ * @see "Jensen, Global Illumination using Photon Maps (1996)"
+ */
+public class PhotonMap {
+	/**
+	 * The values kept for each photon while it is traced: where it landed,
+	 * the direction it arrived in, its power, and the number it was emitted
+	 * as.
+	 */
+	private static final int STRIDE = 10;
+
+	/**
+	 * The number of batches traced at once.
+	 */
+	private static final int BATCHES = 16;
+
+	/**
+	 * The most photons the map can hold.
+	 */
+	public final int capacity;
+
+	/**
+	 * The radius within which photons are gathered at a diffuse hit. Smaller
+	 * caustics are sharper, but noisier.
+	 */
+	public double radius = 0.5;
+
+	/**
+	 * The most photons that may be emitted for each one the map can hold,
+	 * since most photons never reach a focusing shape or a diffuse surface.
+	 */
+	public int emissionLimit = 16;
+
+	/**
+	 * The number of photons each batch emits.
+	 */
+	public int batchSize = 4096;
+
+	/**
+	 * Where each photon landed, the direction it arrived in and its power, in
+	 * the order of the tree, three values apiece; and the axis each node of
+	 * the tree splits.
+	 */
+	private double[] positions = new double[0];
+	private float[] directions = new float[0], powers = new float[0];
+	private byte[] axes = new byte[0];
+	private int size = 0;
+	private boolean built = false;
+
+	/**
+	 * The sphere photons are aimed at, around every bounded focusing shape.
+	 */
+	private double cx, cy, cz, cr;
+
+	/**
+	 * The shapes photons are emitted from, and the running total of the
+	 * chance of each being picked. The sky is listed as -1.
+	 */
+	private int[] sources = new int[0];
+	private double[] sourceTotals = new double[0];
+
+	/**
+	 * Sets up an empty map.
+	 *
+	 * @param capacity
+	 *            The most photons the map can hold
+	 */
+	public PhotonMap(final int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return The number of photons in the map
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the map, for when the scene has changed; it is traced again
+	 * before the next capture.
+	 */
+	public void clear() {
+		positions = new double[0];
+		directions = powers = new float[0];
+		axes = new byte[0];
+		size = 0;
+		built = false;
+	}
+
+	/**
+	 * Adds the light of the photons that landed near a diffuse hit, scaled by
+	 * the path's throughput, to what the path has gathered. Only photons that
+	 * arrived on the side the normal faces, and close to the plane of the
+	 * hit, count.
+	 *
+	 * @param path
+	 *            The path, whose throughput includes the color of the surface
+	 * @param hit
+	 *            The resolved hit
+	 */
+	void gather(final Path path, final Hit hit) {
+		if (size == 0)
+			return;
+
+		// A diffuse surface reflects its color over pi of the light arriving
+		// on it, and the light is spread over the disk it was gathered from
+		final double scale = 1.0 / (Math.PI * Math.PI * radius * radius);
+		gather(0, size, path, hit, scale);
+	}
+
+	/**
+	 * Gathers the photons of one subtree.
+	 *
+	 * @param low
+	 *            The first photon of the subtree
+	 * @param high
+	 *            One past the last photon of the subtree
+	 */
+	private void gather(int low, int high, final Path path, final Hit hit, final double scale) {
+		final double squared = radius * radius;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1, at = 3 * middle;
+			final double dx = positions[at] - hit.px, dy = positions[at + 1] - hit.py,
+					dz = positions[at + 2] - hit.pz;
+
+			if (dx * dx + dy * dy + dz * dz <= squared
+					&& Math.abs(dx * hit.nx + dy * hit.ny + dz * hit.nz) <= 0.25 * radius
+					&& directions[at] * hit.nx + directions[at + 1] * hit.ny + directions[at + 2] * hit.nz < 0.0) {
+				path.lr += path.r * powers[at] * scale;
+				path.lg += path.g * powers[at + 1] * scale;
+				path.lb += path.b * powers[at + 2] * scale;
+			}
+
+			// Search the side the hit is on first, and the other only if the
+			// gathering sphere crosses the split
+			final double delta = axes[middle] == 0 ? -dx : axes[middle] == 1 ? -dy : -dz;
+			if (delta < 0.0) {
+				gather(low, middle, path, hit, scale);
+				if (delta * delta > squared)
+					return;
+				low = middle + 1;
+			} else {
+				gather(middle + 1, high, path, hit, scale);
+				if (delta * delta > squared)
+					return;
+				high = middle;
+			}
+		}
+	}
+
+	/**
+	 * Traces photons through the scene until the map is full or too many have
+	 * been emitted, unless the map was already traced. Does nothing if no
+	 * bounded shape focuses light, or nothing gives off any.
+	 *
+	 * @param scene
+	 *            The scene the map belongs to
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param depth
+	 *            The most bounces a photon may take
+	 * @param sampler
+	 *            The sampler each batch draws from a copy of
+	 * @param threads
+	 *            The number of workers tracing batches
+	 */
+	void build(final Scene scene, final double lower, final double upper, final int depth, final Sampler sampler,
+			final int threads) {
+		if (built)
+			return;
+		built = true;
+
+		if (!aim(scene) || !gatherSources(scene))
+			return;
+
+		double[] stored = new double[STRIDE * Math.min(capacity, 1 << 16)];
+		final double[][] batches = new double[BATCHES][];
+		final long limit = (long) emissionLimit * capacity;
+		long emitted = 0;
+		int count = 0;
+
+		// One pool serves every pass
+		final ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		try {
+			while (count < capacity && emitted < limit) {
+				final long first = emitted;
+				RangeAction.run(pool, BATCHES,
+						b -> batches[b] = trace(scene, first + (long) b * batchSize, lower, upper, depth, sampler));
+
+				emitted += (long) BATCHES * batchSize;
+
+				// Keep the photons in the order they were emitted, until the
+				// map is full; the photons emitted after the last one kept
+				// don't count
+				for (double[] photons : batches) {
+					final int landed = (int) photons[photons.length - 1];
+					final int kept = Math.min(landed, capacity - count);
+
+					if (STRIDE * (count + kept) > stored.length)
+						stored = Arrays.copyOf(stored, Math.min(STRIDE * capacity, Math.max(2 * stored.length,
+								STRIDE * (count + kept))));
+					System.arraycopy(photons, 0, stored, STRIDE * count, STRIDE * kept);
+					count += kept;
+
+					if (count == capacity) {
+						emitted = (long) stored[STRIDE * count - 1] + 1;
+						break;
+					}
+				}
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+
+		store(stored, count, emitted);
+	}
+
+	/**
+	 * Finds the sphere photons are aimed at.
+	 *
+	 * @return false if there are no bounded focusing shapes
+	 */
+	private boolean aim(final Scene scene) {
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+
+		for (int i = 0; i < scene.getShapeCount(); i++) {
+			if (!scene.focuses(i))
+				continue;
+
+			final BoundingBox bounds = scene.getShape(i).getBounds();
+			minX = Math.min(minX, bounds.minX);
+			minY = Math.min(minY, bounds.minY);
+			minZ = Math.min(minZ, bounds.minZ);
+			maxX = Math.max(maxX, bounds.maxX);
+			maxY = Math.max(maxY, bounds.maxY);
+			maxZ = Math.max(maxZ, bounds.maxZ);
+		}
+
+		if (minX > maxX)
+			return false;
+
+		cx = 0.5 * (minX + maxX);
+		cy = 0.5 * (minY + maxY);
+		cz = 0.5 * (minZ + maxZ);
+		cr = 0.5 * Math.sqrt((maxX - minX) * (maxX - minX) + (maxY - minY) * (maxY - minY)
+				+ (maxZ - minZ) * (maxZ - minZ));
+		return true;
+	}
+
+	/**
+	 * Lists the sky and every {@link Scene#isLight(int) light} as sources,
+	 * picked by the power they give off.
+	 *
+	 * @return false if nothing gives off any light
+	 */
+	private boolean gatherSources(final Scene scene) {
+		final int count = scene.getShapeCount();
+		final int[] found = new int[count + 1];
+		final double[] powers = new double[count + 1];
+		double total = 0.0;
+		int listed = 0;
+
+		// The sky's light passing through the disk photons are aimed through
+		final double sky = skyPower(scene) * Math.PI * cr * cr;
+		if (sky > 0.0) {
+			found[listed] = -1;
+			powers[listed++] = sky;
+			total += sky;
+		}
+
+		// A sphere gives off pi times its brightness from every bit of its
+		// surface
+		for (int i = 0; i < count; i++) {
+			if (!scene.isLight(i))
+				continue;
+
+			final Sphere sphere = (Sphere) scene.getShape(i);
+			final Emissive material = (Emissive) sphere.material;
+			final double power = luminance(material.color.r, material.color.g, material.color.b) * material.strength
+					* 4.0 * Math.PI * Math.PI * sphere.radius * sphere.radius;
+
+			found[listed] = i;
+			powers[listed++] = power;
+			total += power;
+		}
+
+		if (total <= 0.0)
+			return false;
+
+		sources = Arrays.copyOf(found, listed);
+		sourceTotals = new double[listed];
+		for (int s = 0; s < listed; s++)
+			sourceTotals[s] = (s > 0 ? sourceTotals[s - 1] : 0.0) + powers[s] / total;
+		sourceTotals[listed - 1] = 1.0;
+		return true;
+	}
+
+	/**
+	 * The light arriving from the whole sky onto a surface facing it head on,
+	 * as a luminance.
+	 */
+	private static double skyPower(final Scene scene) {
+		if (scene.environment == null)
+			return 4.0 * Math.PI * 0.5 * (luminance(scene.sky.r, scene.sky.g, scene.sky.b)
+					+ luminance(scene.zenith.r, scene.zenith.g, scene.zenith.b));
+
+		final double[] r = scene.environment.r, g = scene.environment.g, b = scene.environment.b;
+		final int width = scene.environment.width, height = scene.environment.height;
+		double total = 0.0;
+
+		for (int y = 0; y < height; y++) {
+			final double sine = Math.sin(Math.PI * (y + 0.5) / height);
+			for (int x = 0, p = y * width; x < width; x++, p++)
+				total += Math.max(0.0, luminance(r[p], g[p], b[p])) * sine;
+		}
+
+		return total * 2.0 * Math.PI * Math.PI / (width * height);
+	}
+
+	private static double luminance(final double r, final double g, final double b) {
+		return 0.2126 * r + 0.7152 * g + 0.0722 * b;
+	}
+
+	/**
+	 * Traces one batch of photons.
+	 *
+	 * @param first
+	 *            The number the first photon of the batch is emitted as
+	 * @return The photons that landed, {@link PhotonMap#STRIDE} values
+	 *         apiece, followed by the number of them
+	 */
+	private double[] trace(final Scene scene, final long first, final double lower, final double upper,
+			final int depth, final Sampler batch) {
+		final Sampler sampler = batch.copy();
+		final Path path = new Path();
+		final Hit hit = new Hit();
+		double[] landed = new double[STRIDE * 256 + 1];
+		int count = 0;
+
+		for (int k = 0; k < batchSize; k++) {
+			// Photons are numbered past what an int holds once the map is
+			// large, so the high bits pick the stream's column
+			final long number = first + k;
+			sampler.startSample((int) (number >>> 31), -2, (int) (number & Integer.MAX_VALUE));
+			sampler.startBounce(0);
+			if (!emit(scene, path, upper, sampler))
+				continue;
+
+			for (int bounce = 1; bounce < depth; bounce++) {
+				if (!scene.findNearest(path.ox, path.oy, path.oz, path.dx, path.dy, path.dz, lower, upper, hit))
+					break;
+
+				final Shape shape = scene.getShape(hit.shape);
+				final Material material = shape.material;
+				if (material.emits() || (bounce == 1 && !scene.focuses(hit.shape)))
+					break;
+
+				shape.resolve(hit, path.ox, path.oy, path.oz, path.dx, path.dy, path.dz);
+
+				// Photons land on the first diffuse surface past a focusing shape
+				if (material.isDiffuse()) {
+					if (STRIDE * (count + 1) >= landed.length)
+						landed = Arrays.copyOf(landed, 2 * landed.length);
+
+					final int at = STRIDE * count++;
+					landed[at] = hit.px;
+					landed[at + 1] = hit.py;
+					landed[at + 2] = hit.pz;
+					landed[at + 3] = path.dx;
+					landed[at + 4] = path.dy;
+					landed[at + 5] = path.dz;
+					landed[at + 6] = path.r;
+					landed[at + 7] = path.g;
+					landed[at + 8] = path.b;
+					landed[at + 9] = number;
+					break;
+				}
+
+				path.r *= material.color.r;
+				path.g *= material.color.g;
+				path.b *= material.color.b;
+
+				sampler.startBounce(bounce);
+				if (!scene.scatter(path, hit, sampler))
+					break;
+			}
+		}
+
+		landed = Arrays.copyOf(landed, STRIDE * count + 1);
+		landed[STRIDE * count] = count;
+		return landed;
+	}
+
+	/**
+	 * Emits a photon from a source picked by its power, aimed at the sphere
+	 * around the focusing shapes, and sets the path's throughput to the
+	 * photon's power.
+	 *
+	 * @return false if the photon was emitted with no power
+	 */
+	private boolean emit(final Scene scene, final Path path, final double upper, final Sampler sampler) {
+		final double pick = sampler.nextDouble();
+		int s = 0;
+		while (s < sources.length - 1 && sourceTotals[s] <= pick)
+			s++;
+		final double chance = sourceTotals[s] - (s > 0 ? sourceTotals[s - 1] : 0.0);
+
+		path.reset();
+
+		if (sources[s] < 0) {
+			// Pick a direction toward the sky, and where to cross the disk
+			// facing it
+			final double pdf;
+			if (scene.environment != null)
+				pdf = scene.environment.sample(sampler.nextDouble(), sampler.nextDouble(), path);
+			else {
+				path.randomInUnitSphere(sampler);
+				pdf = 1.0 / (4.0 * Math.PI);
+			}
+			if (pdf == 0.0)
+				return false;
+
+			final double wx = path.rx, wy = path.ry, wz = path.rz;
+			final double u = cr * Math.sqrt(sampler.nextDouble()), phi = 2.0 * Math.PI * sampler.nextDouble();
+
+			// The sky's light in that direction
+			path.dx = wx;
+			path.dy = wy;
+			path.dz = wz;
+			scene.skyBox(path);
+
+			final double power = Math.PI * cr * cr / (pdf * chance);
+			path.r *= power;
+			path.g *= power;
+			path.b *= power;
+
+			final double sign = Math.copySign(1.0, wz);
+			final double a = -1.0 / (sign + wz), c = wx * wy * a;
+			final double ox = cx + u * (Math.cos(phi) * (1.0 + sign * wx * wx * a) + Math.sin(phi) * c);
+			final double oy = cy + u * (Math.cos(phi) * sign * c + Math.sin(phi) * (sign + wy * wy * a));
+			final double oz = cz + u * (Math.cos(phi) * -sign * wx + Math.sin(phi) * -wy);
+
+			// Start far enough out that anything in the way is in the way
+			final double far = 0.5 * upper;
+			path.set(ox + far * wx, oy + far * wy, oz + far * wz, -wx, -wy, -wz);
+			return true;
+		}
+
+		// Pick a point on the light, and a direction within the cone the
+		// sphere around the focusing shapes fills from there
+		final Sphere sphere = (Sphere) scene.getShape(sources[s]);
+		final Emissive material = (Emissive) sphere.material;
+
+		path.randomInUnitSphere(sampler);
+		final double nx = path.rx, ny = path.ry, nz = path.rz;
+		final double px = sphere.position.x + sphere.radius * nx, py = sphere.position.y + sphere.radius * ny,
+				pz = sphere.position.z + sphere.radius * nz;
+
+		final double wx = cx - px, wy = cy - py, wz = cz - pz;
+		final double distance = Math.sqrt(wx * wx + wy * wy + wz * wz);
+		final double dx, dy, dz, cone;
+
+		if (distance <= cr) {
+			path.randomInUnitSphere(sampler);
+			dx = path.rx;
+			dy = path.ry;
+			dz = path.rz;
+			cone = 4.0 * Math.PI;
+		} else {
+			final double ratio = cr * cr / (distance * distance);
+			final double opening = ratio / (1.0 + Math.sqrt(1.0 - ratio));
+			cone = 2.0 * Math.PI * opening;
+
+			final double ax = wx / distance, ay = wy / distance, az = wz / distance;
+			final double cosTheta = 1.0 - sampler.nextDouble() * opening;
+			final double sinTheta = Math.sqrt(Math.max(0.0, 1.0 - cosTheta * cosTheta));
+			final double phi = 2.0 * Math.PI * sampler.nextDouble();
+			final double u = sinTheta * Math.cos(phi), v = sinTheta * Math.sin(phi);
+
+			final double sign = Math.copySign(1.0, az);
+			final double a = -1.0 / (sign + az), c = ax * ay * a;
+			dx = u * (1.0 + sign * ax * ax * a) + v * c + cosTheta * ax;
+			dy = u * sign * c + v * (sign + ay * ay * a) + cosTheta * ay;
+			dz = u * -sign * ax + v * -ay + cosTheta * az;
+		}
+
+		final double cosine = nx * dx + ny * dy + nz * dz;
+		if (cosine <= 0.0)
+			return false;
+
+		final double power = material.strength * cosine * 4.0 * Math.PI * sphere.radius * sphere.radius * cone
+				/ chance;
+		path.r = material.color.r * power;
+		path.g = material.color.g * power;
+		path.b = material.color.b * power;
+		path.set(px, py, pz, dx, dy, dz);
+		return true;
+	}
+
+	/**
+	 * Lays the photons that landed out as a kd-tree, and divides their power
+	 * among every photon emitted.
+	 */
+	private void store(final double[] stored, final int count, final long emitted) {
+		final int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+
+		axes = new byte[count];
+		split(stored, order, 0, count);
+
+		positions = new double[3 * count];
+		directions = new float[3 * count];
+		powers = new float[3 * count];
+
+		for (int i = 0; i < count; i++) {
+			final int from = STRIDE * order[i], to = 3 * i;
+			for (int k = 0; k < 3; k++) {
+				positions[to + k] = stored[from + k];
+				directions[to + k] = (float) stored[from + 3 + k];
+				powers[to + k] = (float) (stored[from + 6 + k] / emitted);
+			}
+		}
+
+		size = count;
+	}
+
+	/**
+	 * Arranges a range of photons into a subtree: the photon at the middle of
+	 * the range splits the rest along the axis they spread the most over, and
+	 * each half is arranged the same way.
+	 */
+	private void split(final double[] stored, final int[] order, final int low, final int high) {
+		if (high - low < 2) {
+			if (high > low)
+				axes[low] = 0;
+			return;
+		}
+
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		for (int i = low; i < high; i++) {
+			final int at = STRIDE * order[i];
+			minX = Math.min(minX, stored[at]);
+			minY = Math.min(minY, stored[at + 1]);
+			minZ = Math.min(minZ, stored[at + 2]);
+			maxX = Math.max(maxX, stored[at]);
+			maxY = Math.max(maxY, stored[at + 1]);
+			maxZ = Math.max(maxZ, stored[at + 2]);
+		}
+
+		final double spreadX = maxX - minX, spreadY = maxY - minY, spreadZ = maxZ - minZ;
+		final int axis = spreadX >= spreadY && spreadX >= spreadZ ? 0 : spreadY >= spreadZ ? 1 : 2;
+		final int middle = (low + high) >>> 1;
+
+		select(stored, order, low, high, middle, axis);
+		axes[middle] = (byte) axis;
+
+		split(stored, order, low, middle);
+		split(stored, order, middle + 1, high);
+	}
+
+	/**
+	 * Partially sorts a range of photons along an axis, so the photon at the
+	 * middle is in its sorted place, with none greater before it and none
+	 * less after it.
+	 */
+	private static void select(final double[] stored, final int[] order, int low, int high, final int middle,
+			final int axis) {
+		while (high - low > 1) {
+			final double pivot = stored[STRIDE * order[(low + high) >>> 1] + axis];
+			int i = low, j = high - 1;
+
+			while (i <= j) {
+				while (stored[STRIDE * order[i] + axis] < pivot)
+					i++;
+				while (stored[STRIDE * order[j] + axis] > pivot)
+					j--;
+				if (i <= j) {
+					final int swap = order[i];
+					order[i++] = order[j];
+					order[j--] = swap;
+				}
+			}
+
+			if (middle <= j)
+				high = j + 1;
+			else if (middle >= i)
+				low = i;
+			else
+				return;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package tracer;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * A unit of work for the passes that run before a capture. Like a
+ * {@link Camera.TileMaker}, a RangeAction is responsible for a contiguous
+ * run of indices, and splits itself in half until it holds a single index,
+ * so idle workers can steal the other halves.
+ *
+ * @author mld2443
+ */
+@SuppressWarnings("serial")
+final class RangeAction extends RecursiveAction {
+	final IntConsumer task;
+	final int first, last;
+
+	/**
+	 * Sets up a run of indices to work through.
+	 *
+	 * @param task
+	 *            The work to do for each index
+	 * @param first
+	 *            The first index
+	 * @param last
+	 *            One past the final index
+	 */
+	RangeAction(final IntConsumer task, final int first, final int last) {
+		this.task = task;
+		this.first = first;
+		this.last = last;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first > 1) {
+			final int middle = (first + last) >>> 1;
+			invokeAll(new RangeAction(task, first, middle), new RangeAction(task, middle, last));
+			return;
+		}
+
+		if (last > first)
+			task.accept(first);
+	}
+
+	/**
+	 * Works through every index from 0 up to a count, on a pool if there is
+	 * one, or in order otherwise. The pool's join guarantees that everything
+	 * the task wrote is visible once this returns.
+	 *
+	 * @param pool
+	 *            The pool to work on, or null to work on this thread
+	 * @param count
+	 *            The number of indices
+	 * @param task
+	 *            The work to do for each index
+	 */
+	static void run(final ForkJoinPool pool, final int count, final IntConsumer task) {
+		if (pool != null)
+			pool.invoke(new RangeAction(task, 0, count));
+		else
+			for (int i = 0; i < count; i++)
+				task.accept(i);
+	}
+}
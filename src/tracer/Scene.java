@@ -1,10 +1,26 @@
 package tracer;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 
+import tracer.accelerators.BoundingVolumeHierarchy;
+import tracer.accelerators.PackedShapes;
+import tracer.accelerators.ScreenBins;
+import tracer.compiler.CompiledScene;
+import tracer.compiler.SceneCompiler;
+import tracer.materials.Emissive;
+import tracer.materials.Material;
+import tracer.samplers.Sampler;
 import tracer.shapes.Shape;
+import tracer.shapes.Sphere;
+import tracer.utils.BoundingBox;
 import tracer.utils.Color;
+import tracer.utils.EnvironmentMap;
+import tracer.utils.Hit;
 import tracer.utils.Intersection;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
+import tracer.utils.Path;
 import tracer.utils.Range;
 import tracer.utils.Ray;
 import tracer.utils.Vector;
@@ -27,11 +43,132 @@ public class Scene {
 	 */
 	public Color sky = new Color(0.3, 0.5, 1.0);
 
+	/**
+	 * The color the sky fades to at the other end of its gradient. Scenes lit
+	 * only by {@link Emissive} lights can darken both ends.
+	 */
+	public Color zenith = Color.white();
+
+	/**
+	 * An image of the surroundings that takes the place of the sky gradient,
+	 * or null to use the gradient. Directions toward its bright parts are
+	 * sampled directly from every diffuse bounce.
+	 */
+	public EnvironmentMap environment = null;
+
+	/**
+	 * A cache of the light bounced around the scene, looked up past the
+	 * first diffuse bounce of every path instead of bouncing again, or null
+	 * to always bounce. It is filled for each capture's view, and kept for
+	 * later captures until {@link IrradianceCache#clear() cleared}.
+	 */
+	public IrradianceCache irradianceCache = null;
+
+	/**
+	 * A map of the caustics mirrors and glass focus onto diffuse surfaces,
+	 * gathered at every diffuse bounce instead of being found by chance, or
+	 * null to leave caustics to chance. It is traced before the first
+	 * capture, and kept for later captures until
+	 * {@link PhotonMap#clear() cleared}.
+	 */
+	public PhotonMap photonMap = null;
+
 	/**
 	 * This is the container for our scene's shapes.
 	 */
 	private LinkedList<Shape> things;
 
+	/**
+	 * Whether {@link Scene#prepare()} should gather the bounded shapes into a
+	 * {@link BoundingVolumeHierarchy}. Small scenes are often faster to check
+	 * by brute force.
+	 */
+	public boolean useHierarchy = false;
+
+	/**
+	 * Whether {@link Scene#prepare()} should pack spheres and quadrics into
+	 * {@link PackedShapes flat arrays}, both for the listed shapes and for the
+	 * leaves of the hierarchy.
+	 */
+	public boolean usePacking = false;
+
+	/**
+	 * Whether {@link Scene#prepare()} should {@link SceneCompiler compile} the
+	 * listed shapes and the materials into a class of their own. If there's no
+	 * compiler available, or too many shapes are listed, the scene is left as
+	 * it is.
+	 */
+	public boolean useCompiler = false;
+
+	/**
+	 * The number of bounces after which a path may be ended early by Russian
+	 * roulette, or -1 to follow every path until it is absorbed, reaches the
+	 * sky or runs out of depth. Paths that survive are brightened to make up
+	 * for those that were ended, so the image stays the same on average.
+	 * 
+	 * @see <a href="https://en.wikipedia.org/wiki/Russian_roulette">Wikipedia:
+	 *      Russian Roulette</a>
+	 */
+	public int rouletteDepth = -1;
+
+	/**
+	 * Our shapes gathered into an array by {@link Scene#prepare()}. A
+	 * {@link Hit} refers to a shape by its index here.
+	 */
+	private Shape[] shapes = new Shape[0];
+
+	/**
+	 * Indices of the shapes that are checked one by one; every shape, unless
+	 * there is a hierarchy, in which case only the unbounded shapes.
+	 */
+	private int[] listed = new int[0];
+
+	/**
+	 * The hierarchy over our bounded shapes. Only present if
+	 * {@link Scene#useHierarchy} was set when the scene was prepared.
+	 */
+	private BoundingVolumeHierarchy hierarchy = null;
+
+	/**
+	 * The listed shapes, packed as a single run. Only present if
+	 * {@link Scene#usePacking} was set when the scene was prepared.
+	 */
+	private PackedShapes packed = null;
+
+	/**
+	 * The listed shapes and every material, compiled. Only present if
+	 * {@link Scene#useCompiler} was set when the scene was prepared, and a
+	 * compiler was available.
+	 */
+	private CompiledScene compiled = null;
+
+	/**
+	 * The light given off by each shape, which is black unless it is made of
+	 * an {@link Emissive} material.
+	 */
+	private double[] emittedR = new double[0], emittedG = new double[0], emittedB = new double[0];
+
+	/**
+	 * Indices of the lights that can be sampled directly: every sphere that
+	 * gives off light. Each is picked with a chance proportional to its
+	 * power, and the running total of those chances is kept alongside, so a
+	 * light can be picked with a binary search however many there are.
+	 */
+	private int[] lights = new int[0];
+	private double[] lightTotals = new double[0];
+
+	/**
+	 * The chance of each shape being picked as a light, which is 0 for shapes
+	 * that can't be sampled directly.
+	 */
+	private double[] lightChances = new double[0];
+
+	/**
+	 * Whether each shape can focus light into caustics: every bounded shape
+	 * that is neither diffuse nor a light.
+	 */
+	private boolean[] focusing = new boolean[0];
+
 	/**
 	 * Scene constructor. Sets up parameters about our scene and prepares for
 	 * the loading of objects.
@@ -54,21 +191,568 @@ public class Scene {
 		things.add(shape);
 	}
 
+	/**
+	 * Readies the scene for capture once every shape has been added. This
+	 * builds the acceleration structures that were requested.
+	 */
+	public void prepare() {
+		shapes = things.toArray(new Shape[things.size()]);
+		hierarchy = null;
+		packed = null;
+		compiled = null;
+
+		int bounded = 0;
+		for (Shape shape : shapes)
+			if (useHierarchy && shape.getBounds() != null)
+				bounded++;
+
+		final int[] inside = new int[bounded];
+		listed = new int[shapes.length - bounded];
+
+		for (int i = 0, b = 0, l = 0; i < shapes.length; i++) {
+			if (useHierarchy && shapes[i].getBounds() != null)
+				inside[b++] = i;
+			else
+				listed[l++] = i;
+		}
+
+		if (useHierarchy)
+			hierarchy = new BoundingVolumeHierarchy(shapes, inside, usePacking);
+
+		if (usePacking)
+			packed = new PackedShapes(shapes, listed, new int[] { 0 });
+
+		if (useCompiler)
+			compiled = SceneCompiler.compile(shapes, listed);
+
+		gatherLights();
+
+		focusing = new boolean[shapes.length];
+		for (int i = 0; i < shapes.length; i++) {
+			final Material material = shapes[i].material;
+			focusing[i] = !material.isDiffuse() && !material.emits() && shapes[i].getBounds() != null;
+		}
+	}
+
+	/**
+	 * Finds the light given off by each shape, and gathers the spheres among
+	 * them into the list of lights, weighed by their power.
+	 */
+	private void gatherLights() {
+		emittedR = new double[shapes.length];
+		emittedG = new double[shapes.length];
+		emittedB = new double[shapes.length];
+		lightChances = new double[shapes.length];
+
+		final double[] powers = new double[shapes.length];
+		double total = 0.0;
+		int count = 0;
+
+		for (int i = 0; i < shapes.length; i++) {
+			if (!(shapes[i].material instanceof Emissive))
+				continue;
+
+			final Emissive material = (Emissive) shapes[i].material;
+			emittedR[i] = material.color.r * material.strength;
+			emittedG[i] = material.color.g * material.strength;
+			emittedB[i] = material.color.b * material.strength;
+
+			// A sphere's power goes with its brightness and its surface area
+			if (shapes[i] instanceof Sphere) {
+				final double radius = ((Sphere) shapes[i]).radius;
+				powers[i] = (0.2126 * emittedR[i] + 0.7152 * emittedG[i] + 0.0722 * emittedB[i]) * radius * radius;
+				if (powers[i] > 0.0) {
+					total += powers[i];
+					count++;
+				}
+			}
+		}
+
+		lights = new int[count];
+		lightTotals = new double[count];
+
+		for (int i = 0, l = 0; i < shapes.length; i++) {
+			if (powers[i] <= 0.0)
+				continue;
+
+			lightChances[i] = powers[i] / total;
+			lights[l] = i;
+			lightTotals[l] = (l > 0 ? lightTotals[l - 1] : 0.0) + lightChances[i];
+			l++;
+		}
+	}
+
+	/**
+	 * @return true if the scene was prepared with a {@link CompiledScene}
+	 */
+	public boolean isCompiled() {
+		return compiled != null;
+	}
+
+	/**
+	 * Caches the terms of every shape that depend only on the origin of a
+	 * ray.
+	 * 
+	 * @param ox
+	 *            The origin, with oy and oz
+	 * @return The filled cache, for
+	 *         {@link Scene#findNearest(OriginCache, int[], int, double, double, double, double, double, Hit)
+	 *         findNearest}
+	 */
+	public OriginCache cacheOrigin(final double ox, final double oy, final double oz) {
+		final OriginCache origin = new OriginCache(ox, oy, oz, shapes.length);
+
+		for (int i = 0; i < shapes.length; i++)
+			shapes[i].cacheOrigin(origin, i);
+
+		return origin;
+	}
+
+	/**
+	 * Picks out the listed shapes that a bundle of rays from a single origin
+	 * could hit. The rays must all stay in front of every plane given, which
+	 * all pass through the origin; a shape whose bounds lie entirely behind
+	 * any of them is left out. Unbounded shapes are always kept.
+	 * 
+	 * @param ox
+	 *            The origin of the rays, with oy and oz
+	 * @param normals
+	 *            Three components of the normal of each plane, pointing
+	 *            inward
+	 * @return Indices of the listed shapes the rays could hit, in the order
+	 *         they are listed
+	 */
+	public int[] cullListed(final double ox, final double oy, final double oz, final double[] normals) {
+		final int[] kept = new int[listed.length];
+		int count = 0;
+
+		shapes: for (int id : listed) {
+			final BoundingBox bounds = shapes[id].getBounds();
+
+			if (bounds != null)
+				for (int p = 0; p < normals.length; p += 3)
+					if (bounds.behindPlane(ox, oy, oz, normals[p], normals[p + 1], normals[p + 2]))
+						continue shapes;
+
+			kept[count++] = id;
+		}
+
+		return Arrays.copyOf(kept, count);
+	}
+
+	/**
+	 * Rasterizes every shape of the scene for a camera, so the first hits of
+	 * its rays can be looked up instead of searched for.
+	 * 
+	 * @param position
+	 *            The position of the camera
+	 * @param origin
+	 *            The top left of the camera's screen, relative to its position
+	 * @param iHat
+	 *            The width of a single pixel on the screen
+	 * @param jHat
+	 *            The height of a single pixel on the screen
+	 * @param width
+	 *            The width of the screen in pixels
+	 * @param height
+	 *            The height of the screen in pixels
+	 * @param binSize
+	 *            The width and height in pixels of each bin of the screen
+	 * @return The shapes binned across the screen
+	 */
+	public ScreenBins rasterize(final Vector position, final Vector origin, final Vector iHat, final Vector jHat,
+			final int width, final int height, final int binSize) {
+		return new ScreenBins(shapes, position, origin, iHat, jHat, width, height, binSize);
+	}
+
+	/**
+	 * @return The number of shapes the scene was prepared with
+	 */
+	public int getShapeCount() {
+		return shapes.length;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the shape
+	 * @return true if the shape is a light that can be sampled directly
+	 */
+	boolean isLight(final int index) {
+		return lightChances[index] > 0.0;
+	}
+
+	/**
+	 * @param index
+	 *            Index of the shape
+	 * @return true if the shape can focus light into caustics
+	 */
+	boolean focuses(final int index) {
+		return focusing[index];
+	}
+
+	/**
+	 * Fetches a shape by the index a {@link Hit} refers to it with.
+	 * 
+	 * @param index
+	 *            Index of the shape
+	 * @return The shape
+	 */
+	public Shape getShape(final int index) {
+		return shapes[index];
+	}
+
 	/**
 	 * Generate a color based on where you are looking. This function describes
 	 * a gradient that is white below the horizon and fades to {@link Scene#sky
 	 * sky color} the more upward you look.
 	 * 
 	 * This is essentially where *all* the light in the final capture comes
-	 * from. Try changing this method and seeing what happens!
+	 * from, besides any {@link Emissive} lights. Try changing this method and
+	 * seeing what happens!
 	 * 
 	 * @param direction
 	 *            The direction in which to sample our gradient
 	 * @return A color from the gradient
 	 */
 	private Color skyBox(final Vector direction) {
+		if (environment != null) {
+			final int p = environment.pixel(direction.x, direction.y, direction.z);
+			return new Color(environment.r[p], environment.g[p], environment.b[p]);
+		}
+
 		final double interpolate = (0.5 * (direction.z + 1.0));
-		return Color.linearBlend(sky, Color.white(), interpolate);
+		return Color.linearBlend(sky, zenith, interpolate);
+	}
+
+	/**
+	 * The same gradient as {@link Scene#skyBox(Vector)}, folded into the
+	 * throughput of a path that escaped in its current direction. If the
+	 * environment could also have been {@link Scene#sampleLight sampled}
+	 * from the path's last bounce, the two are weighed against each other.
+	 * 
+	 * @param path
+	 *            The path that reached the sky
+	 */
+	void skyBox(final Path path) {
+		// Caustics of the sky are in the photon map
+		if (path.caustic && photonMap != null) {
+			path.r = path.g = path.b = 0.0;
+			return;
+		}
+
+		if (environment != null) {
+			final int p = environment.pixel(path.dx, path.dy, path.dz);
+			double weight = 1.0;
+
+			if (path.pdf > 0.0) {
+				final double pdf = environment.pdf(path.dx, path.dy, path.dz);
+				weight = path.pdf * path.pdf / (path.pdf * path.pdf + pdf * pdf);
+			}
+
+			path.r *= environment.r[p] * weight;
+			path.g *= environment.g[p] * weight;
+			path.b *= environment.b[p] * weight;
+			return;
+		}
+
+		final double interpolate = (0.5 * (path.dz + 1.0));
+		final double remainder = 1.0 - interpolate;
+
+		path.r *= sky.r * remainder + zenith.r * interpolate;
+		path.g *= sky.g * remainder + zenith.g * interpolate;
+		path.b *= sky.b * remainder + zenith.b * interpolate;
+	}
+
+	/**
+	 * Bounces a path off of the material of the shape it hit, through the
+	 * compiled scene if there is one.
+	 * 
+	 * @param path
+	 *            The path to bounce
+	 * @param hit
+	 *            The resolved hit
+	 * @param sampler
+	 *            Source of the random numbers
+	 * @return false if the path was absorbed
+	 */
+	boolean scatter(final Path path, final Hit hit, final Sampler sampler) {
+		if (compiled != null)
+			return compiled.scatter(path, hit, refractionIndex, sampler);
+
+		return shapes[hit.shape].material.scatter(path, hit, refractionIndex, sampler);
+	}
+
+	/**
+	 * Plays {@link Scene#rouletteDepth Russian roulette} with a path. A path
+	 * survives with a chance equal to its brightest channel, so paths that
+	 * carry almost nothing are the likeliest to end.
+	 * 
+	 * @param r
+	 *            The throughput of the path, with g and b
+	 * @param bounces
+	 *            The number of times the path has bounced
+	 * @param sampler
+	 *            Source of the random number, drawn only if the path might
+	 *            end
+	 * @return The factor the throughput of the path must be scaled by, or 0
+	 *         if the path ended
+	 */
+	double roulette(final double r, final double g, final double b, final int bounces, final Sampler sampler) {
+		if (rouletteDepth < 0 || bounces < rouletteDepth)
+			return 1.0;
+
+		final double survival = Math.max(r, Math.max(g, b));
+		if (survival >= 1.0)
+			return 1.0;
+
+		if (sampler.nextDouble() >= survival)
+			return 0.0;
+		return 1.0 / survival;
+	}
+
+	/**
+	 * Adds the light given off by a shape a path has reached to what the path
+	 * has gathered. If the path bounced off of a diffuse surface to get here,
+	 * the light could also have been {@link Scene#sampleLight sampled}
+	 * directly from there, so the two are weighed against each other with
+	 * the power heuristic of multiple importance sampling.
+	 *
+	 * @param path
+	 *            The path, whose throughput doesn't yet include the shape
+	 * @param shape
+	 *            Index of the shape the path reached
+	 * @see <a href="https://graphics.stanford.edu/papers/veach_thesis/">Veach,
+	 *      Robust Monte Carlo Methods for Light Transport Simulation (1997)</a>
+	 */
+	void gatherEmitted(final Path path, final int shape) {
+		// Caustics of sampled lights are in the photon map
+		if (path.caustic && photonMap != null && lightChances[shape] > 0.0)
+			return;
+
+		double weight = 1.0;
+
+		if (path.pdf > 0.0 && lightChances[shape] > 0.0) {
+			final double cone = coneAngle(shape, path.sx, path.sy, path.sz);
+			if (cone > 0.0) {
+				final double pdf = lightChances[shape] / cone;
+				weight = path.pdf * path.pdf / (path.pdf * path.pdf + pdf * pdf);
+			}
+		}
+
+		path.lr += path.r * emittedR[shape] * weight;
+		path.lg += path.g * emittedG[shape] * weight;
+		path.lb += path.b * emittedB[shape] * weight;
+	}
+
+	/**
+	 * Looks up the light bounced onto a hit in the
+	 * {@link Scene#irradianceCache irradiance cache}, if the path has
+	 * already bounced off of a diffuse surface and the hit is diffuse too,
+	 * and adds it to what the path has gathered.
+	 *
+	 * @param path
+	 *            The path, whose throughput includes the color of the surface
+	 * @param hit
+	 *            The resolved hit
+	 * @return true if the cache covered the hit, in which case the path
+	 *         should end there once its lights are sampled
+	 */
+	boolean lookupIrradiance(final Path path, final Hit hit) {
+		return irradianceCache != null && path.diffuseBounces > 0 && shapes[hit.shape].material.isDiffuse()
+				&& irradianceCache.lookup(hit, path);
+	}
+
+	/**
+	 * Next event estimation at a bounce off of a diffuse surface. One light is
+	 * picked by its power, and a shadow ray is aimed at a random point of the
+	 * cone it fills as seen from the hit; if nothing stands in the way, the
+	 * light it gives off is added to what the path has gathered, weighed with
+	 * the power heuristic against the chance of the bounce finding it by
+	 * itself. If there is an {@link Scene#environment environment}, a second
+	 * shadow ray is aimed at it, drawn toward its bright parts, and weighed
+	 * the same way. The chance of the direction the path did bounce in is
+	 * kept, so a light or sky it reaches next can be
+	 * {@link Scene#gatherEmitted weighed} the same way. If the bounce can't
+	 * reach the light, because the path will run out of depth or the light's
+	 * bounce budget first, the shadow ray carries all of the light instead.
+	 * Caustics are gathered from the {@link Scene#photonMap photon map} too,
+	 * if there is one.
+	 *
+	 * @param path
+	 *            The path, already scattered off of the hit, whose throughput
+	 *            includes the color of the surface
+	 * @param hit
+	 *            The resolved hit the path scattered off of
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param bounce
+	 *            The number of times the path had bounced before the hit
+	 * @param depth
+	 *            The number of steps the path may take before being absorbed
+	 * @param shadow
+	 *            Space for the shadow ray's hit
+	 * @param sampler
+	 *            Source of the random numbers, drawn only if the surface is
+	 *            diffuse and the scene has lights
+	 * @see <a href="https://en.wikipedia.org/wiki/Path_tracing">Wikipedia: Path
+	 *      Tracing</a>
+	 */
+	void sampleLight(final Path path, final Hit hit, final double lower, final double upper, final int bounce,
+			final int depth, final Hit shadow, final Sampler sampler) {
+		path.pdf = 0.0;
+		if (!shapes[hit.shape].material.isDiffuse()) {
+			path.caustic = focusing[hit.shape] && path.diffuseBounces > 0;
+			return;
+		}
+
+		path.caustic = false;
+		path.diffuseBounces++;
+		if (photonMap != null)
+			photonMap.gather(path, hit);
+		if (lights.length == 0 && environment == null)
+			return;
+
+		final double px = hit.px, py = hit.py, pz = hit.pz, nx = hit.nx, ny = hit.ny, nz = hit.nz;
+
+		// A diffuse bounce picks directions with a chance density of their
+		// cosine over pi
+		path.pdf = Math.max(0.0, nx * path.dx + ny * path.dy + nz * path.dz) / Math.PI;
+		path.sx = px;
+		path.sy = py;
+		path.sz = pz;
+
+		// The bounce only finds anything if the path takes another step
+		final int next = bounce + 1;
+		if (environment != null)
+			sampleEnvironment(path, hit, lower, upper, next < depth, shadow, sampler);
+		if (lights.length == 0)
+			return;
+
+		final double u = sampler.nextDouble(), v = sampler.nextDouble();
+		final int light = pickLight(sampler.nextDouble());
+
+		final Sphere sphere = (Sphere) shapes[light];
+		final double cone = coneAngle(light, px, py, pz);
+		if (cone == 0.0)
+			return;
+
+		// Aim uniformly within the cone the sphere fills
+		final double wx = sphere.position.x - px, wy = sphere.position.y - py, wz = sphere.position.z - pz;
+		final double distance = Math.sqrt(wx * wx + wy * wy + wz * wz);
+		final double ax = wx / distance, ay = wy / distance, az = wz / distance;
+
+		final double cosTheta = 1.0 - u * cone / (2.0 * Math.PI);
+		final double sinTheta = Math.sqrt(Math.max(0.0, 1.0 - cosTheta * cosTheta));
+		final double phi = 2.0 * Math.PI * v;
+		final double s = sinTheta * Math.cos(phi), t = sinTheta * Math.sin(phi);
+
+		// Any two axes perpendicular to the cone's
+		final double sign = Math.copySign(1.0, az);
+		final double a = -1.0 / (sign + az), c = ax * ay * a;
+		final double bx = 1.0 + sign * ax * ax * a, by = sign * c, bz = -sign * ax;
+		final double tx = c, ty = sign + ay * ay * a, tz = -ay;
+
+		final double dx = s * bx + t * tx + cosTheta * ax;
+		final double dy = s * by + t * ty + cosTheta * ay;
+		final double dz = s * bz + t * tz + cosTheta * az;
+
+		final double cosine = nx * dx + ny * dy + nz * dz;
+		if (cosine <= 0.0)
+			return;
+
+		if (!findNearest(px, py, pz, dx, dy, dz, lower, upper, shadow) || shadow.shape != light)
+			return;
+
+		// With the surface's color already in the throughput, the light's share
+		// is bsdf / pdf, weighed by pdf^2 / (pdf^2 + bsdf^2) if the bounce
+		// could find it too
+		final double bsdf = cosine / Math.PI, pdf = lightChances[light] / cone;
+		final double share = next < depth && next < sphere.material.bounces
+				? bsdf * pdf / (bsdf * bsdf + pdf * pdf)
+				: bsdf / pdf;
+
+		path.lr += path.r * emittedR[light] * share;
+		path.lg += path.g * emittedG[light] * share;
+		path.lb += path.b * emittedB[light] * share;
+	}
+
+	/**
+	 * Aims a shadow ray from a diffuse hit at the
+	 * {@link Scene#environment environment}, in a direction drawn toward its
+	 * bright parts, and adds the light it sends along it to what the path
+	 * has gathered if nothing stands in the way.
+	 *
+	 * @param weighed
+	 *            Whether the bounce could reach the sky too, so the shadow
+	 *            ray's share is weighed against it
+	 */
+	private void sampleEnvironment(final Path path, final Hit hit, final double lower, final double upper,
+			final boolean weighed, final Hit shadow, final Sampler sampler) {
+		final double s = sampler.nextDouble(), t = sampler.nextDouble();
+		final double pdf = environment.sample(s, t, path);
+		if (pdf == 0.0)
+			return;
+
+		final double dx = path.rx, dy = path.ry, dz = path.rz;
+		final double cosine = hit.nx * dx + hit.ny * dy + hit.nz * dz;
+		if (cosine <= 0.0)
+			return;
+
+		if (findNearest(hit.px, hit.py, hit.pz, dx, dy, dz, lower, upper, shadow))
+			return;
+
+		final int p = environment.pixel(dx, dy, dz);
+		final double bsdf = cosine / Math.PI;
+		final double share = weighed ? bsdf * pdf / (bsdf * bsdf + pdf * pdf) : bsdf / pdf;
+
+		path.lr += path.r * environment.r[p] * share;
+		path.lg += path.g * environment.g[p] * share;
+		path.lb += path.b * environment.b[p] * share;
+	}
+
+	/**
+	 * Picks a light by its chance.
+	 *
+	 * @param x
+	 *            A random number in [0,1)
+	 * @return Index of the shape of the light
+	 */
+	private int pickLight(final double x) {
+		int low = 0, high = lights.length - 1;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (lightTotals[middle] > x)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+
+		return lights[low];
+	}
+
+	/**
+	 * The solid angle of the cone a spherical light fills, as seen from a
+	 * point.
+	 *
+	 * @param light
+	 *            Index of the shape of the light
+	 * @param px
+	 *            The point, with py and pz
+	 * @return The solid angle, or 0 if the point is inside the sphere
+	 */
+	private double coneAngle(final int light, final double px, final double py, final double pz) {
+		final Sphere sphere = (Sphere) shapes[light];
+		final double wx = sphere.position.x - px, wy = sphere.position.y - py, wz = sphere.position.z - pz;
+		final double squared = wx * wx + wy * wy + wz * wz, ratio = sphere.radius * sphere.radius / squared;
+
+		if (ratio >= 1.0)
+			return 0.0;
+
+		// One minus the cosine of the cone's half angle, without cancellation
+		return 2.0 * Math.PI * ratio / (1.0 + Math.sqrt(1.0 - ratio));
 	}
 
 	/**
@@ -83,7 +767,7 @@ public class Scene {
 	 */
 	public Color preview(final Ray ray, final Range<Double> window) {
 		// Check to see if our ray hits an object, or just shoots into the sky
-		final Intersection nearest = findNearest(ray, window);
+		final Intersection nearest = findNearest(ray, window.lower, window.upper);
 
 		// If we do not hit anything, return our sky color.
 		if (nearest == null)
@@ -107,83 +791,327 @@ public class Scene {
 	 * @param depth
 	 *            The number of recursive steps our ray will take before being
 	 *            absorbed or reaching the sky
+	 * @param sampler
+	 *            Source of the random numbers for every bounce
 	 * @return The combined colors our ray detected
 	 * @see <a href="https://en.wikipedia.org/wiki/Ray_casting">Wikipedia: Ray
 	 *      Casting</a>
 	 */
-	public Color castRay(final Ray ray, final Range<Double> frustum, final int depth) {
+	public Color castRay(final Ray ray, final Range<Double> frustum, final int depth, final Sampler sampler) {
 		Ray dir = ray;
-		Range<Double> window = frustum;
+		double upper = frustum.upper;
 		LinkedList<Color> colors = new LinkedList<>();
+		double tr = 1.0, tg = 1.0, tb = 1.0, weight = 1.0;
+
+		// Light from lights is gathered the same way a PathTracer gathers it
+		final Path gathered = new Path();
+		final Hit hit = new Hit(), shadow = new Hit();
+		gathered.reset();
 		
 		while (true) {
 			// Base case; try changing the color and seeing what you get!
 			if (colors.size() >= depth)
-				return Color.black();
+				return new Color(gathered.lr, gathered.lg, gathered.lb);
 	
 			// Check to see if our ray hits an object, or just shoots into the sky
-			final Intersection nearest = findNearest(dir, window);
+			final Intersection nearest = findNearest(dir, frustum.lower, upper);
 	
 			// If we do not hit anything, return our sky color.
 			if (nearest == null)
 				break;
 	
+			// Materials past their bounce budget absorb the ray
+			if (colors.size() >= nearest.material.bounces)
+				return new Color(gathered.lr, gathered.lg, gathered.lb);
+
+			// Lights end the ray with the light they give off
+			if (nearest.material.emits()) {
+				gathered.r = tr;
+				gathered.g = tg;
+				gathered.b = tb;
+				gatherEmitted(gathered, nearest.shape);
+				return new Color(gathered.lr, gathered.lg, gathered.lb);
+			}
+
+			hit.shape = nearest.shape;
+			hit.px = nearest.point.x;
+			hit.py = nearest.point.y;
+			hit.pz = nearest.point.z;
+			hit.nx = nearest.normal.x;
+			hit.ny = nearest.normal.y;
+			hit.nz = nearest.normal.z;
+
+			// Bounced light may come from the irradiance cache
+			if (irradianceCache != null) {
+				gathered.r = tr * nearest.material.color.r;
+				gathered.g = tg * nearest.material.color.g;
+				gathered.b = tb * nearest.material.color.b;
+				if (lookupIrradiance(gathered, hit)) {
+					// The record's own bounces could find the light, one step out
+					sampler.startBounce(colors.size());
+					sampleLight(gathered, hit, frustum.lower, upper - nearest.distance, 0, depth, shadow, sampler);
+					return new Color(gathered.lr, gathered.lg, gathered.lb);
+				}
+			}
+
 			// Get the color of that object and the bounce vector for recursion if
 			// there is recursion
+			sampler.startBounce(colors.size());
 			colors.add(nearest.material.color);
-			dir = nearest.material.scatter(dir, nearest.point, nearest.normal, refractionIndex);
+			dir = nearest.material.scatter(dir, nearest.point, nearest.normal, refractionIndex, sampler);
 	
-			// If the ray is absorbed for any reason while scattering, return black
+			// If the ray is absorbed for any reason while scattering, return
+			// only the light it gathered
 			if (dir == null)
-				return Color.black();
+				return new Color(gathered.lr, gathered.lg, gathered.lb);
+
+			tr *= nearest.material.color.r;
+			tg *= nearest.material.color.g;
+			tb *= nearest.material.color.b;
+
+			// Diffuse surfaces look straight at a light too
+			gathered.r = tr;
+			gathered.g = tg;
+			gathered.b = tb;
+			gathered.dx = dir.direction.x;
+			gathered.dy = dir.direction.y;
+			gathered.dz = dir.direction.z;
+			sampleLight(gathered, hit, frustum.lower, upper - nearest.distance, colors.size() - 1, depth, shadow,
+					sampler);
+
+			// Paths that carry too little light may be ended early
+			final double factor = roulette(tr, tg, tb, colors.size(), sampler);
+			if (factor == 0.0)
+				return new Color(gathered.lr, gathered.lg, gathered.lb);
+			tr *= factor;
+			tg *= factor;
+			tb *= factor;
+			weight *= factor;
 			
 			// Finally, we blend colors recursively
-			window = new Range<>(window.lower, window.upper - nearest.distance);
+			upper -= nearest.distance;
 		}
 		
-		Color sky = skyBox(dir.direction);
+		// The sky is weighed the same way a PathTracer weighs it
+		gathered.r = gathered.g = gathered.b = 1.0;
+		gathered.dx = dir.direction.x;
+		gathered.dy = dir.direction.y;
+		gathered.dz = dir.direction.z;
+		skyBox(gathered);
 		
-		double r = sky.r, g = sky.g, b = sky.b;
+		double r = gathered.r, g = gathered.g, b = gathered.b;
 		for (Color c : colors) {
 			r *= c.r;
 			g *= c.g;
 			b *= c.b;
 		}
 
-		return new Color(r,g,b);
+		return new Color(r * weight + gathered.lr, g * weight + gathered.lg, b * weight + gathered.lb);
 	}
 
 	/**
-	 * Given a ray, this checks all the {@link Shape shapes} in our list of
-	 * {@link Scene#things things} to see if our ray collides with it.
+	 * Finds the nearest intersection of a ray and resolves its point and
+	 * normal.
 	 * 
 	 * @param ray
 	 *            The ray to check for an intersection
-	 * @param window
-	 *            The range in which we check for collisions
-	 * @return The nearest detected intersection
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @return The nearest detected intersection, or null
+	 */
+	private Intersection findNearest(final Ray ray, final double lower, final double upper) {
+		final Hit hit = new Hit();
+		final Vector o = ray.origin, d = ray.direction;
+
+		if (!findNearest(o.x, o.y, o.z, d.x, d.y, d.z, lower, upper, hit))
+			return null;
+
+		final Shape shape = shapes[hit.shape];
+		shape.resolve(hit, o.x, o.y, o.z, d.x, d.y, d.z);
+
+		return new Intersection(hit.distance, new Vector(hit.px, hit.py, hit.pz), new Vector(hit.nx, hit.ny, hit.nz),
+				shape.material, hit.shape);
+	}
+
+	/**
+	 * Given a ray, this checks all the {@link Shape shapes} in our list of
+	 * {@link Scene#things things} to see if our ray collides with it. If the
+	 * scene was prepared with a {@link Scene#hierarchy hierarchy}, only the
+	 * shapes whose bounds the ray passes through are checked.
+	 * 
+	 * Only the distance and index of the nearest shape are found; its point
+	 * and normal are left to {@link Shape#resolve(Hit, double, double, double,
+	 * double, double, double) resolve}.
+	 * 
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape
+	 * @return true if a shape was hit
 	 */
-	private Intersection findNearest(final Ray ray, final Range<Double> window) {
+	public boolean findNearest(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double lower, double upper, final Hit hit) {
 		// total_rays += 1;
 
-		Intersection nearest = null;
-		Range<Double> currentWindow = window;
+		hit.shape = -1;
+
+		// This is a brute force check of every listed object; planes and other
+		// unbounded shapes can't be put in the hierarchy, so they are checked
+		// first to narrow its window
+		if (compiled != null) {
+			upper = compiled.findNearest(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+		} else if (packed != null) {
+			if (packed.findNearest(0, ox, oy, oz, dx, dy, dz, lower, upper, hit))
+				upper = hit.distance;
+		} else {
+			for (int id : listed) {
+				final double distance = shapes[id].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+
+				// Update our value of the nearest object if a new collision was
+				// found inside the window, and reduce the window to check for new
+				// collisions
+				if (distance != Shape.MISS) {
+					upper = distance;
+					hit.distance = distance;
+					hit.shape = id;
+				}
+			}
+		}
+
+		if (hierarchy != null)
+			hierarchy.findNearest(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+
+		return hit.shape >= 0;
+	}
 
-		// This is a brute force check of every object in the scene
-		for (Shape shape : things) {
-			// If our ray has hit something already, reduce the window to check
-			// for new collisions
-			if (nearest != null)
-				currentWindow = new Range<>(window.lower, nearest.distance);
+	/**
+	 * Finds the nearest shape for every ray of a packet at once, in the same
+	 * order as {@link Scene#findNearest(double, double, double, double, double,
+	 * double, double, double, Hit) findNearest} does for a single ray.
+	 * 
+	 * @param packet
+	 *            The rays to check, whose windows end at their
+	 *            {@link Packet#nearest nearest} hits and are narrowed in place
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param scratch
+	 *            Space for one-sided materials and for traversing the
+	 *            hierarchy
+	 */
+	public void findNearest(final Packet packet, final double lower, final Hit scratch) {
+		for (int id : listed)
+			shapes[id].intersectPacket(id, packet, lower, scratch);
 
-			Intersection candidate = shape.intersectRay(ray, currentWindow);
+		if (hierarchy != null)
+			hierarchy.findNearest(packet, lower, scratch);
+	}
 
-			// Update our value of the nearest object if a new collision was
-			// found inside the window
-			if (candidate != null)
-				nearest = candidate;
+	/**
+	 * The same search as {@link Scene#findNearest(double, double, double,
+	 * double, double, double, double, double, Hit) findNearest}, for a ray
+	 * from an origin that was {@link Scene#cacheOrigin cached}. Compiled and
+	 * packed shapes are still checked their own way, unless only some
+	 * candidates are to be checked.
+	 * 
+	 * A hint, such as the shape an earlier ray through the same pixel hit
+	 * first, is checked before anything else. If the ray hits it, the window
+	 * closes in to that hit right away, and the hierarchy can skip every box
+	 * beyond it. The hinted shape is checked again in its turn, so the
+	 * nearest hit is the same as without a hint.
+	 * 
+	 * @param origin
+	 *            The origin of the ray, with its terms cached
+	 * @param candidates
+	 *            The only listed shapes the ray could hit, as
+	 *            {@link Scene#cullListed culled} for a bundle of rays it
+	 *            belongs to, or null to check every listed shape
+	 * @param hint
+	 *            Index of a shape to check first, or -1
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape
+	 * @return true if a shape was hit
+	 */
+	public boolean findNearest(final OriginCache origin, final int[] candidates, final int hint, final double dx,
+			final double dy, final double dz, final double lower, double upper, final Hit hit) {
+		final double ox = origin.ox, oy = origin.oy, oz = origin.oz;
+
+		if (hint >= 0) {
+			final double distance = shapes[hint].intersectRay(origin, hint, dx, dy, dz, lower, upper, hit);
+			if (distance != Shape.MISS)
+				upper = distance;
+		}
+
+		hit.shape = -1;
+
+		if (candidates == null && compiled != null) {
+			upper = compiled.findNearest(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+		} else if (candidates == null && packed != null) {
+			if (packed.findNearest(0, ox, oy, oz, dx, dy, dz, lower, upper, hit))
+				upper = hit.distance;
+		} else {
+			for (int id : candidates != null ? candidates : listed) {
+				final double distance = shapes[id].intersectRay(origin, id, dx, dy, dz, lower, upper, hit);
+
+				if (distance != Shape.MISS) {
+					upper = distance;
+					hit.distance = distance;
+					hit.shape = id;
+				}
+			}
 		}
 
-		return nearest;
+		if (hierarchy != null)
+			hierarchy.findNearest(origin, dx, dy, dz, lower, upper, hit);
+
+		return hit.shape >= 0;
+	}
+
+	/**
+	 * The same search as {@link Scene#findNearest(OriginCache, int[], int,
+	 * double, double, double, double, double, Hit) findNearest}, for a ray
+	 * from the camera the scene was {@link Scene#rasterize rasterized} for.
+	 * The nearest hit is looked up in the camera's bins, and only if two
+	 * shapes are hit at exactly the same distance is the scene searched as
+	 * usual, so the hit is always the same.
+	 * 
+	 * @param origin
+	 *            The camera's position, with its terms cached
+	 * @param bins
+	 *            The shapes rasterized for the camera
+	 * @param x
+	 *            The column of the pixel the ray passes through
+	 * @param y
+	 *            The row of the pixel the ray passes through
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape
+	 * @return true if a shape was hit
+	 */
+	public boolean findNearest(final OriginCache origin, final ScreenBins bins, final int x, final int y,
+			final double dx, final double dy, final double dz, final double lower, final double upper,
+			final Hit hit) {
+		if (bins.findNearest(origin, x, y, dx, dy, dz, lower, upper, hit))
+			return hit.shape >= 0;
+
+		return findNearest(origin, null, -1, dx, dy, dz, lower, upper, hit);
 	}
 }
@@ -0,0 +1,378 @@
+package tracer;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import tracer.materials.Material;
+import tracer.samplers.Sampler;
+import tracer.utils.Hit;
+import tracer.utils.Path;
+
+/**
+ * A path tracer organized as a wavefront. Instead of following one sample
+ * from the camera all the way to the sky, a WavefrontTracer holds a whole
+ * batch of paths and advances all of them one bounce at a time, in stages:
+ * every live path is intersected with the scene, the hits are sorted into
+ * bins by {@link Material}, and then each material scatters its own bin.
+ * Paths that are absorbed or reach the sky drop out, and the rest carry on
+ * until none are left.
+ *
+ * Every path follows exactly the same steps as it would in a
+ * {@link PathTracer}, drawing from its own copy of the sampler, so both
+ * produce the same image. A WavefrontTracer must not be shared between
+ * workers.
+ *
+ * @author mld2443
+ * @see "Laine, Karras and Aila, Megakernels Considered Harmful: Wavefront Path
+ *      Tracing on GPUs (2013)"
+ */
+public class WavefrontTracer {
+	private final Scene scene;
+
+	/**
+	 * Every distinct material of the scene, and the index into it of the
+	 * material of each shape.
+	 */
+	private final Material[] materials;
+	private final int[] shapeMaterials;
+
+	/**
+	 * The paths of the batch and the sampler streams they draw from.
+	 */
+	private final Path[] paths;
+	private final Sampler[] samplers;
+
+	/**
+	 * The far end of the window of each path, which shrinks with every
+	 * bounce.
+	 */
+	private final double[] uppers;
+
+	/**
+	 * The latest hit of each path, kept between the intersection and
+	 * scattering stages.
+	 */
+	private final double[] distances, px, py, pz, nx, ny, nz;
+	private final int[] shapes;
+
+	/**
+	 * The live paths, and the same paths sorted by material.
+	 */
+	private final int[] live, sorted;
+
+	/**
+	 * The number of hits on each material, and then where each material's
+	 * bin begins.
+	 */
+	private final int[] bins;
+
+	/**
+	 * The scratch hit shared by every path.
+	 */
+	private final Hit hit = new Hit();
+
+	/**
+	 * The scratch hit for shadow rays aimed at lights.
+	 */
+	private final Hit shadow = new Hit();
+
+	/**
+	 * The color each path of the latest batch detected.
+	 */
+	public final double[] r, g, b;
+
+	/**
+	 * The number of paths in the batch.
+	 */
+	private int size = 0;
+
+	/**
+	 * Sets up a wavefront over a scene.
+	 *
+	 * @param scene
+	 *            The scene to trace, already prepared
+	 * @param capacity
+	 *            The greatest number of paths in a batch
+	 * @param sampler
+	 *            The sampler each path gets a copy of
+	 */
+	public WavefrontTracer(final Scene scene, final int capacity, final Sampler sampler) {
+		this.scene = scene;
+
+		// Number the materials in the order they first appear
+		final IdentityHashMap<Material, Integer> numbers = new IdentityHashMap<>();
+		shapeMaterials = new int[scene.getShapeCount()];
+		for (int i = 0; i < shapeMaterials.length; i++) {
+			final Material material = scene.getShape(i).material;
+			if (!numbers.containsKey(material))
+				numbers.put(material, numbers.size());
+			shapeMaterials[i] = numbers.get(material);
+		}
+
+		materials = new Material[numbers.size()];
+		for (int i = 0; i < shapeMaterials.length; i++)
+			materials[shapeMaterials[i]] = scene.getShape(i).material;
+
+		paths = new Path[capacity];
+		samplers = new Sampler[capacity];
+		for (int i = 0; i < capacity; i++) {
+			paths[i] = new Path();
+			samplers[i] = sampler.copy();
+		}
+
+		uppers = new double[capacity];
+		distances = new double[capacity];
+		px = new double[capacity];
+		py = new double[capacity];
+		pz = new double[capacity];
+		nx = new double[capacity];
+		ny = new double[capacity];
+		nz = new double[capacity];
+		shapes = new int[capacity];
+		live = new int[capacity];
+		sorted = new int[capacity];
+		bins = new int[materials.length + 1];
+		r = new double[capacity];
+		g = new double[capacity];
+		b = new double[capacity];
+	}
+
+	/**
+	 * @return The greatest number of paths in a batch
+	 */
+	public int capacity() {
+		return paths.length;
+	}
+
+	/**
+	 * @return The number of paths in the batch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Empties the batch.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds a path to the batch, whose sampler must then be
+	 * {@link Sampler#startSample(int, int, int) started} and used to aim it
+	 * with {@link WavefrontTracer#aim}.
+	 *
+	 * @return The sampler of the new path
+	 */
+	public Sampler add() {
+		return samplers[size++];
+	}
+
+	/**
+	 * Aims the newest path of the batch.
+	 *
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Direction of the ray of any length, with dy and dz
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 */
+	public void aim(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double upper) {
+		final int lane = size - 1;
+
+		paths[lane].set(ox, oy, oz, dx, dy, dz);
+		paths[lane].reset();
+		uppers[lane] = upper;
+	}
+
+	/**
+	 * Traces every path of the batch until it is absorbed or reaches the sky,
+	 * leaving the color each one detected in {@link WavefrontTracer#r r},
+	 * {@link WavefrontTracer#g g} and {@link WavefrontTracer#b b}.
+	 *
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param depth
+	 *            The number of steps a path will take before being absorbed or
+	 *            reaching the sky
+	 */
+	public void trace(final double lower, final int depth) {
+		int count = size;
+		for (int i = 0; i < count; i++)
+			live[i] = i;
+
+		for (int bounce = 0; count > 0; bounce++) {
+			// Base case; every path still bouncing is absorbed
+			if (bounce >= depth) {
+				for (int i = 0; i < count; i++)
+					absorb(live[i]);
+				break;
+			}
+
+			count = intersect(count, lower);
+			sort(count);
+			count = scatter(count, bounce, lower, depth);
+		}
+	}
+
+	/**
+	 * The intersection stage. Paths that miss everything reach the sky and
+	 * drop out; the rest have their hits resolved and recorded.
+	 *
+	 * @return The number of paths still live
+	 */
+	private int intersect(final int count, final double lower) {
+		int kept = 0;
+
+		for (int i = 0; i < count; i++) {
+			final int lane = live[i];
+			final Path path = paths[lane];
+
+			if (!scene.findNearest(path.ox, path.oy, path.oz, path.dx, path.dy, path.dz, lower, uppers[lane],
+					hit)) {
+				// The sky is where all the light comes from
+				scene.skyBox(path);
+				r[lane] = path.r + path.lr;
+				g[lane] = path.g + path.lg;
+				b[lane] = path.b + path.lb;
+				continue;
+			}
+
+			scene.getShape(hit.shape).resolve(hit, path.ox, path.oy, path.oz, path.dx, path.dy, path.dz);
+
+			shapes[lane] = hit.shape;
+			distances[lane] = hit.distance;
+			px[lane] = hit.px;
+			py[lane] = hit.py;
+			pz[lane] = hit.pz;
+			nx[lane] = hit.nx;
+			ny[lane] = hit.ny;
+			nz[lane] = hit.nz;
+
+			live[kept++] = lane;
+		}
+
+		return kept;
+	}
+
+	/**
+	 * Sorts the live paths into bins by the material they hit, keeping their
+	 * order within each bin.
+	 */
+	private void sort(final int count) {
+		Arrays.fill(bins, 0);
+
+		for (int i = 0; i < count; i++)
+			bins[shapeMaterials[shapes[live[i]]] + 1]++;
+
+		for (int m = 0; m < materials.length; m++)
+			bins[m + 1] += bins[m];
+
+		for (int i = 0; i < count; i++)
+			sorted[bins[shapeMaterials[shapes[live[i]]]]++] = live[i];
+
+		// Counting up moved each bin's start to the next bin's
+		for (int m = materials.length; m > 0; m--)
+			bins[m] = bins[m - 1];
+		bins[0] = 0;
+	}
+
+	/**
+	 * The scattering stage, one material at a time. Absorbed paths drop out,
+	 * as do paths past the material's bounce budget, paths that reached a
+	 * light, paths covered by the irradiance cache, and paths ended by
+	 * Russian roulette. Paths scattered off of a diffuse material sample a
+	 * light on the way.
+	 *
+	 * @return The number of paths still live
+	 */
+	private int scatter(final int count, final int bounce, final double lower, final int depth) {
+		int kept = 0;
+
+		for (int m = 0; m < materials.length; m++) {
+			final Material material = materials[m];
+			final double cr = material.color.r, cg = material.color.g, cb = material.color.b;
+
+			// The whole bin is past the material's bounce budget
+			if (bounce >= material.bounces) {
+				for (int i = bins[m], end = bins[m + 1]; i < end; i++)
+					absorb(sorted[i]);
+				continue;
+			}
+
+			// The whole bin reached a light
+			if (material.emits()) {
+				for (int i = bins[m], end = bins[m + 1]; i < end; i++) {
+					scene.gatherEmitted(paths[sorted[i]], shapes[sorted[i]]);
+					absorb(sorted[i]);
+				}
+				continue;
+			}
+
+			for (int i = bins[m], end = bins[m + 1]; i < end; i++) {
+				final int lane = sorted[i];
+				final Path path = paths[lane];
+
+				hit.shape = shapes[lane];
+				hit.distance = distances[lane];
+				hit.px = px[lane];
+				hit.py = py[lane];
+				hit.pz = pz[lane];
+				hit.nx = nx[lane];
+				hit.ny = ny[lane];
+				hit.nz = nz[lane];
+
+				// Fold the color of that object into the path and bounce
+				path.r *= cr;
+				path.g *= cg;
+				path.b *= cb;
+
+				samplers[lane].startBounce(bounce);
+
+				// Bounced light may come from the irradiance cache
+				if (scene.lookupIrradiance(path, hit)) {
+					// The record's own bounces could find the light, one step out
+					scene.sampleLight(path, hit, lower, uppers[lane] - distances[lane], 0, depth, shadow,
+							samplers[lane]);
+					absorb(lane);
+					continue;
+				}
+
+				if (!material.scatter(path, hit, scene.refractionIndex, samplers[lane])) {
+					absorb(lane);
+					continue;
+				}
+
+				scene.sampleLight(path, hit, lower, uppers[lane] - distances[lane], bounce, depth, shadow,
+						samplers[lane]);
+
+				final double factor = scene.roulette(path.r, path.g, path.b, bounce + 1, samplers[lane]);
+				if (factor == 0.0) {
+					absorb(lane);
+					continue;
+				}
+				path.r *= factor;
+				path.g *= factor;
+				path.b *= factor;
+
+				uppers[lane] -= distances[lane];
+				live[kept++] = lane;
+			}
+		}
+
+		return kept;
+	}
+
+	/**
+	 * Ends a path without reaching the sky, leaving only the light it
+	 * gathered from lights along the way.
+	 */
+	private void absorb(final int lane) {
+		r[lane] = paths[lane].lr;
+		g[lane] = paths[lane].lg;
+		b[lane] = paths[lane].lb;
+	}
+}
@@ -0,0 +1,523 @@
+package tracer.accelerators;
+
+import tracer.shapes.Shape;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
+
+/**
+ * A bounding volume hierarchy over bounded {@link Shape shapes}. The tree is
+ * built top-down with the surface area heuristic, and then flattened into
+ * primitive arrays in depth-first order, so the first child of every interior
+ * node is the node right after it.
+ * 
+ * Rays traverse the nearer child first and skip any node whose box begins
+ * beyond the nearest hit found so far.
+ * 
+ * A {@link Packet} of rays traverses the tree together, visiting every node
+ * that any of its rays enters.
+ * 
+ * The shapes of every leaf may also be {@link PackedShapes packed}, with each
+ * leaf becoming one run.
+ * 
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Bounding_volume_hierarchy">
+ *      Wikipedia: Bounding Volume Hierarchy</a>
+ */
+public class BoundingVolumeHierarchy {
+	/**
+	 * Nodes with this many shapes or fewer always become leaves.
+	 */
+	private static final int LEAF_SIZE = 2;
+
+	/**
+	 * Nodes with more shapes than this are always split, even if the
+	 * heuristic would rather not.
+	 */
+	private static final int MAX_LEAF_SIZE = 8;
+
+	/**
+	 * The number of buckets the centroids are sorted into when searching for
+	 * the cheapest split.
+	 */
+	private static final int BINS = 12;
+
+	/**
+	 * The cost of visiting a node, relative to testing a single shape.
+	 */
+	private static final double TRAVERSAL_COST = 0.5;
+
+	/**
+	 * Every shape of the scene, indexed the same way as the scene.
+	 */
+	private final Shape[] shapes;
+
+	/**
+	 * Indices of the contained shapes, ordered so every leaf holds a
+	 * contiguous run of them.
+	 */
+	private final int[] primitives;
+
+	/**
+	 * Six doubles per node: minX, minY, minZ, maxX, maxY, maxZ.
+	 */
+	private final double[] bounds;
+
+	/**
+	 * For a leaf, the index of its first shape; for an interior node, the
+	 * index of its second child.
+	 */
+	private final int[] offsets;
+
+	/**
+	 * For a leaf, its number of shapes; for an interior node, 0.
+	 */
+	private final int[] counts;
+
+	/**
+	 * The axis an interior node was split along, which decides which child
+	 * is nearer to a ray.
+	 */
+	private final byte[] axes;
+
+	private int nodeCount = 0, depth = 0;
+
+	/**
+	 * The shapes of the leaves packed into flat arrays, or null to test them
+	 * one by one.
+	 */
+	private final PackedShapes packed;
+
+	/**
+	 * For a leaf, the run of {@link BoundingVolumeHierarchy#packed packed}
+	 * that holds its shapes.
+	 */
+	private final int[] runs;
+
+	/**
+	 * Per-shape build information, indexed by the original position of the
+	 * shape.
+	 */
+	private final double[] shapeBounds, centroids;
+	private final int[] order;
+
+	/**
+	 * Builds a hierarchy over some of the shapes of a scene.
+	 * 
+	 * @param shapes
+	 *            Every shape of the scene
+	 * @param bounded
+	 *            Indices of the shapes to contain; every one must have
+	 *            {@link Shape#getBounds() bounds}
+	 */
+	public BoundingVolumeHierarchy(final Shape[] shapes, final int[] bounded) {
+		this(shapes, bounded, false);
+	}
+
+	/**
+	 * Builds a hierarchy over some of the shapes of a scene, optionally
+	 * packing the shapes of each leaf.
+	 * 
+	 * @param shapes
+	 *            Every shape of the scene
+	 * @param bounded
+	 *            Indices of the shapes to contain; every one must have
+	 *            {@link Shape#getBounds() bounds}
+	 * @param pack
+	 *            Whether to test the leaves with {@link PackedShapes}
+	 */
+	public BoundingVolumeHierarchy(final Shape[] shapes, final int[] bounded, final boolean pack) {
+		final int n = bounded.length;
+		this.shapes = shapes;
+
+		shapeBounds = new double[6 * n];
+		centroids = new double[3 * n];
+		order = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			final BoundingBox box = shapes[bounded[i]].getBounds();
+			shapeBounds[6 * i] = box.minX;
+			shapeBounds[6 * i + 1] = box.minY;
+			shapeBounds[6 * i + 2] = box.minZ;
+			shapeBounds[6 * i + 3] = box.maxX;
+			shapeBounds[6 * i + 4] = box.maxY;
+			shapeBounds[6 * i + 5] = box.maxZ;
+			centroids[3 * i] = 0.5 * (box.minX + box.maxX);
+			centroids[3 * i + 1] = 0.5 * (box.minY + box.maxY);
+			centroids[3 * i + 2] = 0.5 * (box.minZ + box.maxZ);
+			order[i] = i;
+		}
+
+		// A binary tree with n leaves at most has 2n - 1 nodes
+		final int maxNodes = Math.max(2 * n - 1, 1);
+		bounds = new double[6 * maxNodes];
+		offsets = new int[maxNodes];
+		counts = new int[maxNodes];
+		axes = new byte[maxNodes];
+
+		if (n > 0)
+			build(0, n, 1);
+
+		this.primitives = new int[n];
+		for (int i = 0; i < n; i++)
+			primitives[i] = bounded[order[i]];
+
+		// Leaves are numbered in the order they were built, which is also the
+		// order of their shapes
+		runs = new int[nodeCount];
+		int leaves = 0;
+		for (int node = 0; node < nodeCount; node++)
+			if (counts[node] > 0)
+				runs[node] = leaves++;
+
+		if (pack) {
+			final int[] starts = new int[leaves];
+			for (int node = 0; node < nodeCount; node++)
+				if (counts[node] > 0)
+					starts[runs[node]] = offsets[node];
+			packed = new PackedShapes(shapes, primitives, starts);
+		} else
+			packed = null;
+	}
+
+	/**
+	 * Recursively builds the subtree over {@code order[start, end)} and
+	 * returns the index of its root.
+	 */
+	private int build(final int start, final int end, final int level) {
+		final int node = nodeCount++;
+		depth = Math.max(depth, level);
+
+		// Compute the bounds of this node and of its centroids
+		double minX = Double.POSITIVE_INFINITY, minY = minX, minZ = minX;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = maxX, maxZ = maxX;
+		final double[] cMin = { minX, minX, minX }, cMax = { maxX, maxX, maxX };
+
+		for (int i = start; i < end; i++) {
+			final int s = order[i];
+			minX = Math.min(minX, shapeBounds[6 * s]);
+			minY = Math.min(minY, shapeBounds[6 * s + 1]);
+			minZ = Math.min(minZ, shapeBounds[6 * s + 2]);
+			maxX = Math.max(maxX, shapeBounds[6 * s + 3]);
+			maxY = Math.max(maxY, shapeBounds[6 * s + 4]);
+			maxZ = Math.max(maxZ, shapeBounds[6 * s + 5]);
+
+			for (int a = 0; a < 3; a++) {
+				cMin[a] = Math.min(cMin[a], centroids[3 * s + a]);
+				cMax[a] = Math.max(cMax[a], centroids[3 * s + a]);
+			}
+		}
+
+		bounds[6 * node] = minX;
+		bounds[6 * node + 1] = minY;
+		bounds[6 * node + 2] = minZ;
+		bounds[6 * node + 3] = maxX;
+		bounds[6 * node + 4] = maxY;
+		bounds[6 * node + 5] = maxZ;
+
+		final int count = end - start;
+
+		// Split along the axis where the centroids are most spread out
+		int axis = 0;
+		for (int a = 1; a < 3; a++)
+			if (cMax[a] - cMin[a] > cMax[axis] - cMin[axis])
+				axis = a;
+		final double extent = cMax[axis] - cMin[axis];
+
+		if (count <= LEAF_SIZE || extent <= 0.0)
+			return makeLeaf(node, start, count);
+
+		// Sort the centroids into buckets and find the cheapest split between
+		// them according to the surface area heuristic
+		final int[] binCounts = new int[BINS];
+		final double[] binBounds = new double[6 * BINS];
+		for (int b = 0; b < BINS; b++)
+			resetBox(binBounds, b);
+
+		for (int i = start; i < end; i++) {
+			final int s = order[i];
+			final int b = bin(centroids[3 * s + axis], cMin[axis], extent);
+			binCounts[b]++;
+			growBox(binBounds, b, shapeBounds, s);
+		}
+
+		final double[] leftArea = new double[BINS - 1];
+		final int[] leftCount = new int[BINS - 1];
+		final double[] sweep = new double[6];
+		resetBox(sweep, 0);
+		for (int b = 0, total = 0; b < BINS - 1; b++) {
+			growBox(sweep, 0, binBounds, b);
+			total += binCounts[b];
+			leftCount[b] = total;
+			leftArea[b] = total > 0 ? area(sweep, 0) : 0.0;
+		}
+
+		int bestSplit = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		resetBox(sweep, 0);
+		for (int b = BINS - 1, total = 0; b > 0; b--) {
+			growBox(sweep, 0, binBounds, b);
+			total += binCounts[b];
+
+			final double rightArea = total > 0 ? area(sweep, 0) : 0.0;
+			final double cost = leftArea[b - 1] * leftCount[b - 1] + rightArea * total;
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestSplit = b;
+			}
+		}
+
+		final double parentArea = area(bounds, node);
+		final double splitCost = TRAVERSAL_COST + (parentArea > 0.0 ? bestCost / parentArea : count);
+
+		if (splitCost >= count && count <= MAX_LEAF_SIZE)
+			return makeLeaf(node, start, count);
+
+		// Partition the shapes around the chosen bucket
+		int middle = start;
+		for (int i = start; i < end; i++) {
+			if (bin(centroids[3 * order[i] + axis], cMin[axis], extent) < bestSplit) {
+				final int swap = order[i];
+				order[i] = order[middle];
+				order[middle++] = swap;
+			}
+		}
+
+		// If every centroid landed on the same side, fall back to an even split
+		if (middle == start || middle == end)
+			middle = (start + end) >>> 1;
+
+		axes[node] = (byte) axis;
+		build(start, middle, level + 1);
+		offsets[node] = build(middle, end, level + 1);
+		counts[node] = 0;
+
+		return node;
+	}
+
+	private int makeLeaf(final int node, final int start, final int count) {
+		offsets[node] = start;
+		counts[node] = count;
+		return node;
+	}
+
+	private static int bin(final double centroid, final double min, final double extent) {
+		return Math.min((int) (BINS * (centroid - min) / extent), BINS - 1);
+	}
+
+	private static void resetBox(final double[] boxes, final int box) {
+		for (int a = 0; a < 3; a++) {
+			boxes[6 * box + a] = Double.POSITIVE_INFINITY;
+			boxes[6 * box + 3 + a] = Double.NEGATIVE_INFINITY;
+		}
+	}
+
+	private static void growBox(final double[] boxes, final int box, final double[] other, final int with) {
+		for (int a = 0; a < 3; a++) {
+			boxes[6 * box + a] = Math.min(boxes[6 * box + a], other[6 * with + a]);
+			boxes[6 * box + 3 + a] = Math.max(boxes[6 * box + 3 + a], other[6 * with + 3 + a]);
+		}
+	}
+
+	private static double area(final double[] boxes, final int box) {
+		final double dx = boxes[6 * box + 3] - boxes[6 * box];
+		final double dy = boxes[6 * box + 4] - boxes[6 * box + 1];
+		final double dz = boxes[6 * box + 5] - boxes[6 * box + 2];
+		return 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * The slab test of a ray against the box of a node.
+	 * 
+	 * @return The distance at which the ray enters the box, or positive
+	 *         infinity if it misses the box inside the window
+	 */
+	private double enter(final int node, final double ox, final double oy, final double oz, final double ix,
+			final double iy, final double iz, final double lower, final double upper) {
+		final int b = 6 * node;
+		double t0 = (bounds[b] - ox) * ix, t1 = (bounds[b + 3] - ox) * ix;
+		double near = Math.max(lower, Math.min(t0, t1)), far = Math.min(upper, Math.max(t0, t1));
+
+		t0 = (bounds[b + 1] - oy) * iy;
+		t1 = (bounds[b + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+
+		t0 = (bounds[b + 2] - oz) * iz;
+		t1 = (bounds[b + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+
+		return near <= far ? near : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Finds the nearest shape in the hierarchy that our ray intersects.
+	 * 
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape, if one
+	 *            is nearer than upper; its stack is used for the traversal
+	 * @return true if a shape was hit
+	 */
+	public boolean findNearest(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double lower, final double upper, final Hit hit) {
+		return search(null, ox, oy, oz, dx, dy, dz, lower, upper, hit);
+	}
+
+	/**
+	 * Finds the nearest shape in the hierarchy that a ray from a cached
+	 * origin intersects. Packed leaves are still tested the packed way.
+	 * 
+	 * @param origin
+	 *            The origin of the ray, with the terms of every shape cached
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape, if one
+	 *            is nearer than upper; its stack is used for the traversal
+	 * @return true if a shape was hit
+	 */
+	public boolean findNearest(final OriginCache origin, final double dx, final double dy, final double dz,
+			final double lower, final double upper, final Hit hit) {
+		return search(origin, origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper, hit);
+	}
+
+	/**
+	 * The traversal behind both searches, with origin left null if it isn't
+	 * cached.
+	 */
+	private boolean search(final OriginCache origin, final double ox, final double oy, final double oz,
+			final double dx, final double dy, final double dz, final double lower, double upper, final Hit hit) {
+		if (primitives.length == 0)
+			return false;
+
+		final double ix = 1.0 / dx, iy = 1.0 / dy, iz = 1.0 / dz;
+
+		if (hit.stack.length < depth)
+			hit.stack = new int[depth];
+		final int[] stack = hit.stack;
+
+		int top = 0, node = 0;
+		boolean found = false;
+
+		while (true) {
+			if (enter(node, ox, oy, oz, ix, iy, iz, lower, upper) <= upper) {
+				if (counts[node] > 0 && packed != null) {
+					// Test the packed shapes of the leaf all at once
+					if (packed.findNearest(runs[node], ox, oy, oz, dx, dy, dz, lower, upper, hit)) {
+						found = true;
+						upper = hit.distance;
+					}
+				} else if (counts[node] > 0) {
+					// Test every shape in the leaf, narrowing our window
+					final int first = offsets[node], last = first + counts[node];
+					for (int i = first; i < last; i++) {
+						final int id = primitives[i];
+						final double distance = origin != null
+								? shapes[id].intersectRay(origin, id, dx, dy, dz, lower, upper, hit)
+								: shapes[id].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+
+						if (distance != Shape.MISS) {
+							found = true;
+							upper = distance;
+							hit.distance = distance;
+							hit.shape = id;
+						}
+					}
+				} else {
+					// Visit the nearer child first and save the other for later
+					final double direction = axes[node] == 0 ? dx : axes[node] == 1 ? dy : dz;
+					if (direction < 0.0) {
+						stack[top++] = node + 1;
+						node = offsets[node];
+					} else {
+						stack[top++] = offsets[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+
+		return found;
+	}
+
+	/**
+	 * Finds the nearest shape in the hierarchy for every ray of a packet. The
+	 * packet visits a node if any of its rays enters the node's box inside
+	 * that ray's window, and orders the children by its first ray.
+	 * 
+	 * @param packet
+	 *            The rays to check, whose nearest hits are updated in place
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param scratch
+	 *            Space for one-sided materials and for the traversal stack
+	 */
+	public void findNearest(final Packet packet, final double lower, final Hit scratch) {
+		if (primitives.length == 0 || packet.size == 0)
+			return;
+
+		if (scratch.stack.length < depth)
+			scratch.stack = new int[depth];
+		final int[] stack = scratch.stack;
+
+		int top = 0, node = 0;
+
+		while (true) {
+			if (entered(node, packet, lower)) {
+				if (counts[node] > 0) {
+					final int first = offsets[node], last = first + counts[node];
+					for (int i = first; i < last; i++)
+						shapes[primitives[i]].intersectPacket(primitives[i], packet, lower, scratch);
+				} else {
+					final double direction = axes[node] == 0 ? packet.dx[0]
+							: axes[node] == 1 ? packet.dy[0] : packet.dz[0];
+					if (direction < 0.0) {
+						stack[top++] = node + 1;
+						node = offsets[node];
+					} else {
+						stack[top++] = offsets[node];
+						node = node + 1;
+					}
+					continue;
+				}
+			}
+
+			if (top == 0)
+				break;
+			node = stack[--top];
+		}
+	}
+
+	/**
+	 * @return true if any ray of the packet enters the box of a node before
+	 *         its nearest hit so far
+	 */
+	private boolean entered(final int node, final Packet packet, final double lower) {
+		for (int i = 0; i < packet.size; i++) {
+			final double upper = packet.nearest[i];
+			if (enter(node, packet.ox, packet.oy, packet.oz, packet.ix[i], packet.iy[i], packet.iz[i], lower,
+					upper) <= upper)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,324 @@
+package tracer.accelerators;
+
+import tracer.shapes.Quadric;
+import tracer.shapes.Shape;
+import tracer.shapes.Sphere;
+import tracer.utils.Hit;
+
+/**
+ * A structure-of-arrays copy of the shapes of a scene. Spheres and general
+ * quadrics have their coefficients packed into contiguous arrays of doubles,
+ * so testing a ray against many of them is a tight loop over memory instead of
+ * a walk through {@link Shape}, {@link Quadric.Equation} and
+ * {@link tracer.utils.Vector Vector} objects.
+ * 
+ * Testing happens in two passes. The first computes the discriminant for
+ * every packed shape at once into scratch lanes, with no branches, so the JIT
+ * is free to vectorize it. The second takes the roots of only the shapes the
+ * ray can hit, and picks the nearest one, narrowing the window as it goes. Shapes that can't be
+ * packed, like planes or clipped quadrics, are tested one by one.
+ * 
+ * The shapes are divided into runs, such as the leaves of a
+ * {@link BoundingVolumeHierarchy}, which can be tested separately. When two
+ * shapes of a run are hit at exactly the same distance, the one that comes
+ * later in the run wins, just as it would if the run were checked in order.
+ * 
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/AoS_and_SoA">Wikipedia: AoS and
+ *      SoA</a>
+ */
+public class PackedShapes {
+	/**
+	 * Every shape of the scene, indexed the same way as the scene.
+	 */
+	private final Shape[] shapes;
+
+	/**
+	 * The runs of each group; run r holds the lanes from {@code start[r]} up
+	 * to {@code start[r + 1]}.
+	 */
+	private final int[] sphereStart, quadricStart, otherStart;
+
+	/**
+	 * Centers and squared radii of the spheres.
+	 */
+	private final double[] sx, sy, sz, sr2;
+
+	/**
+	 * Positions and coefficients of the quadrics.
+	 */
+	private final double[] qx, qy, qz, qA, qB, qC, qD, qE, qF, qG, qH, qI, qJ;
+
+	/**
+	 * Indices in the scene of the shapes in each lane.
+	 */
+	private final int[] sphereIds, quadricIds, otherIds;
+
+	/**
+	 * Where the shape in each lane came in its run, to break ties between
+	 * shapes hit at the same distance.
+	 */
+	private final int[] sphereOrder, quadricOrder, otherOrder;
+
+	/**
+	 * Whether the shape in each lane is made of a one-sided material, and
+	 * so needs its normal checked before a hit counts.
+	 */
+	private final boolean[] sphereOneSided, quadricOneSided;
+
+	/**
+	 * Whether a shape can be tested by the packed sphere kernel.
+	 */
+	private static boolean packsAsSphere(final Shape shape) {
+		return shape.getClass() == Sphere.class && !((Quadric) shape).isClipped();
+	}
+
+	/**
+	 * Whether a shape can be tested by the packed general quadric kernel.
+	 */
+	private static boolean packsAsQuadric(final Shape shape) {
+		return shape.getClass() == Quadric.class && !((Quadric) shape).isClipped();
+	}
+
+	/**
+	 * Packs some of the shapes of a scene.
+	 * 
+	 * @param shapes
+	 *            Every shape of the scene
+	 * @param ids
+	 *            Indices of the shapes to pack, in order
+	 * @param runs
+	 *            Where each run begins in ids; the final run ends at the end
+	 *            of ids
+	 */
+	public PackedShapes(final Shape[] shapes, final int[] ids, final int[] runs) {
+		this.shapes = shapes;
+
+		int spheres = 0, quadrics = 0;
+		for (int id : ids) {
+			if (packsAsSphere(shapes[id]))
+				spheres++;
+			else if (packsAsQuadric(shapes[id]))
+				quadrics++;
+		}
+
+		sx = new double[spheres];
+		sy = new double[spheres];
+		sz = new double[spheres];
+		sr2 = new double[spheres];
+		sphereIds = new int[spheres];
+		sphereOrder = new int[spheres];
+		sphereOneSided = new boolean[spheres];
+
+		qx = new double[quadrics];
+		qy = new double[quadrics];
+		qz = new double[quadrics];
+		qA = new double[quadrics];
+		qB = new double[quadrics];
+		qC = new double[quadrics];
+		qD = new double[quadrics];
+		qE = new double[quadrics];
+		qF = new double[quadrics];
+		qG = new double[quadrics];
+		qH = new double[quadrics];
+		qI = new double[quadrics];
+		qJ = new double[quadrics];
+		quadricIds = new int[quadrics];
+		quadricOrder = new int[quadrics];
+		quadricOneSided = new boolean[quadrics];
+
+		otherIds = new int[ids.length - spheres - quadrics];
+		otherOrder = new int[otherIds.length];
+
+		sphereStart = new int[runs.length + 1];
+		quadricStart = new int[runs.length + 1];
+		otherStart = new int[runs.length + 1];
+
+		int s = 0, q = 0, o = 0;
+		for (int r = 0; r < runs.length; r++) {
+			sphereStart[r] = s;
+			quadricStart[r] = q;
+			otherStart[r] = o;
+
+			final int end = r + 1 < runs.length ? runs[r + 1] : ids.length;
+			for (int i = runs[r]; i < end; i++) {
+				final int id = ids[i];
+				final Shape shape = shapes[id];
+
+				if (packsAsSphere(shape)) {
+					final Sphere sphere = (Sphere) shape;
+					sx[s] = sphere.position.x;
+					sy[s] = sphere.position.y;
+					sz[s] = sphere.position.z;
+					sr2[s] = sphere.radius * sphere.radius;
+					sphereOneSided[s] = shape.material.oneSided;
+					sphereOrder[s] = i;
+					sphereIds[s++] = id;
+				} else if (packsAsQuadric(shape)) {
+					final double[] e = ((Quadric) shape).getCoefficients();
+					qx[q] = shape.position.x;
+					qy[q] = shape.position.y;
+					qz[q] = shape.position.z;
+					qA[q] = e[0];
+					qB[q] = e[1];
+					qC[q] = e[2];
+					qD[q] = e[3];
+					qE[q] = e[4];
+					qF[q] = e[5];
+					qG[q] = e[6];
+					qH[q] = e[7];
+					qI[q] = e[8];
+					qJ[q] = e[9];
+					quadricOneSided[q] = shape.material.oneSided;
+					quadricOrder[q] = i;
+					quadricIds[q++] = id;
+				} else {
+					otherOrder[o] = i;
+					otherIds[o++] = id;
+				}
+			}
+		}
+
+		sphereStart[runs.length] = s;
+		quadricStart[runs.length] = q;
+		otherStart[runs.length] = o;
+	}
+
+	/**
+	 * Finds the nearest shape of a run that our ray intersects.
+	 * 
+	 * @param run
+	 *            The run to test
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape, if one
+	 *            is nearer than upper; its lanes are used as scratch space
+	 * @return true if a shape was hit
+	 */
+	public boolean findNearest(final int run, final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, double upper, final Hit hit) {
+		boolean found = false;
+		int winner = -1;
+
+		// Spheres; the first pass is plain arithmetic over every lane, and
+		// only the lanes with real roots take a square root in the second. The
+		// scratch lanes share their indices with the packed arrays, which lets
+		// the JIT vectorize the first pass
+		final int s0 = sphereStart[run], s1 = sphereStart[run + 1];
+		final double[] halfB = hit.lanes(s1, 0), squares = hit.lanes(s1, 1);
+		for (int i = s0; i < s1; i++) {
+			final double cx = ox - sx[i], cy = oy - sy[i], cz = oz - sz[i];
+			final double B = cx * dx + cy * dy + cz * dz;
+			final double C = cx * cx + cy * cy + cz * cz - sr2[i];
+			halfB[i] = B;
+			squares[i] = B * B - C;
+		}
+
+		for (int i = s0; i < s1; i++) {
+			final double square = squares[i];
+
+			// No collision if the root is imaginary
+			if (square < 0)
+				continue;
+
+			final double B = halfB[i], root = Math.sqrt(square);
+			final double D1 = -B - root, D2 = -B + root;
+			final double distance = D1 >= lower && D1 <= upper ? D1 : D2;
+
+			if (distance >= lower && closer(distance, upper, found, sphereOrder[i], winner)) {
+				final int id = sphereIds[i];
+
+				if (sphereOneSided[i]
+						&& shapes[id].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit) == Shape.MISS)
+					continue;
+
+				found = true;
+				winner = sphereOrder[i];
+				upper = distance;
+				hit.distance = distance;
+				hit.shape = id;
+			}
+		}
+
+		// General quadrics, the same way
+		final int q0 = quadricStart[run], q1 = quadricStart[run + 1];
+		final double[] quadA = hit.lanes(q1, 0), quadB = hit.lanes(q1, 1),
+				quadSquares = hit.lanes(q1, 2);
+		for (int i = q0; i < q1; i++) {
+			final double cx = ox - qx[i], cy = oy - qy[i], cz = oz - qz[i];
+
+			final double A = (qA[i] * dx * dx + qB[i] * dy * dy + qC[i] * dz * dz)
+					+ 2 * (qD[i] * dx * dy + qE[i] * dy * dz + qF[i] * dz * dx);
+			final double B = (qA[i] * cx * dx + qB[i] * cy * dy + qC[i] * cz * dz)
+					+ (qD[i] * (dx * cy + cx * dy) + qE[i] * (cy * dz + dy * cz) + qF[i] * (cx * dz + dx * cz))
+					+ (qG[i] * dx + qH[i] * dy + qI[i] * dz);
+			final double C = (qA[i] * cx * cx + qB[i] * cy * cy + qC[i] * cz * cz)
+					+ 2 * (qD[i] * cx * cy + qE[i] * cy * cz + qF[i] * cz * cx)
+					+ 2 * (qG[i] * cx + qH[i] * cy + qI[i] * cz) + qJ[i];
+
+			quadA[i] = A;
+			quadB[i] = B;
+			quadSquares[i] = B * B - A * C;
+		}
+
+		for (int i = q0; i < q1; i++) {
+			final double square = quadSquares[i];
+
+			if (square < 0)
+				continue;
+
+			// The roots may come in either order, if A is negative
+			final double A = quadA[i], B = quadB[i], root = Math.sqrt(square);
+			final double D1 = (-B - root) / A, D2 = (-B + root) / A;
+			final double distance = D1 >= lower && D1 <= upper ? D1 : D2;
+
+			if (distance >= lower && closer(distance, upper, found, quadricOrder[i], winner)) {
+				final int id = quadricIds[i];
+
+				if (quadricOneSided[i]
+						&& shapes[id].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit) == Shape.MISS)
+					continue;
+
+				found = true;
+				winner = quadricOrder[i];
+				upper = distance;
+				hit.distance = distance;
+				hit.shape = id;
+			}
+		}
+
+		// Everything else, one by one
+		for (int i = otherStart[run], end = otherStart[run + 1]; i < end; i++) {
+			final int id = otherIds[i];
+			final double distance = shapes[id].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit);
+
+			if (distance != Shape.MISS && closer(distance, upper, found, otherOrder[i], winner)) {
+				found = true;
+				winner = otherOrder[i];
+				upper = distance;
+				hit.distance = distance;
+				hit.shape = id;
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Whether a hit replaces the nearest one found so far in a run. The
+	 * window is inclusive, so a hit as far as the window reaches counts if
+	 * nothing in the run was hit yet, and otherwise only if it comes later in
+	 * the run than the shape it would replace.
+	 */
+	private static boolean closer(final double distance, final double upper, final boolean found, final int order,
+			final int winner) {
+		return distance < upper || (distance == upper && (!found || order > winner));
+	}
+}
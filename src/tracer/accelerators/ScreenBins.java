@@ -0,0 +1,258 @@
+package tracer.accelerators;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import tracer.shapes.Shape;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Vector;
+
+/**
+ * The first hits of a camera's rays, found by rasterizing instead of
+ * searching. Before a capture, the bounds of every shape are projected onto
+ * the camera's screen, and each shape is dropped into the square bins its
+ * projection covers, nearest shapes first. A camera ray then only checks the
+ * shapes of its own bin whose projection covers its pixel, and stops as soon
+ * as the next shape's bounds are farther away than the nearest hit so far;
+ * much like a depth buffer, shapes behind a closer one are never touched.
+ *
+ * Projected bounds only say where a shape might be, so each candidate is
+ * still intersected exactly, and the nearest hit is the same one a full
+ * search would find. When two shapes are hit at exactly the same distance,
+ * only the order of the full search can say which one is in front, so the
+ * ray is left for that search instead.
+ *
+ * Once built, ScreenBins are only read, so they can be shared between
+ * workers.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Z-buffering">Wikipedia:
+ *      Z-buffering</a>
+ * @see <a href="https://en.wikipedia.org/wiki/Tiled_rendering">Wikipedia:
+ *      Tiled Rendering</a>
+ */
+public final class ScreenBins {
+	/**
+	 * How far past its projection a shape is spread, in pixels, so rounding
+	 * can never leave it out of a pixel a ray through it could hit.
+	 */
+	private static final double MARGIN = 0.01;
+
+	/**
+	 * How much nearer than its bounds a shape is taken to be, relative to
+	 * their distance, so rounding in its intersection can never put a hit in
+	 * front of them.
+	 */
+	private static final double SLACK = 1e-6;
+
+	private final Shape[] shapes;
+	private final int binSize, binsWide;
+
+	/**
+	 * Where the entries of each bin begin, and one past the last bin.
+	 */
+	private final int[] binStart;
+
+	/**
+	 * For every entry, its shape, the nearest distance its bounds reach, and
+	 * the pixels its projection covers, all inclusive.
+	 */
+	private final int[] shape, left, right, top, bottom;
+	private final double[] near;
+
+	/**
+	 * Rasterizes a scene's shapes for a camera.
+	 *
+	 * @param shapes
+	 *            Every shape of the scene, indexed the same way
+	 * @param position
+	 *            The position of the camera
+	 * @param origin
+	 *            The top left of the camera's screen, relative to its position
+	 * @param iHat
+	 *            The width of a single pixel on the screen
+	 * @param jHat
+	 *            The height of a single pixel on the screen
+	 * @param width
+	 *            The width of the screen in pixels
+	 * @param height
+	 *            The height of the screen in pixels
+	 * @param binSize
+	 *            The width and height of each bin in pixels
+	 */
+	public ScreenBins(final Shape[] shapes, final Vector position, final Vector origin, final Vector iHat,
+			final Vector jHat, final int width, final int height, final int binSize) {
+		this.shapes = shapes;
+		this.binSize = binSize;
+		this.binsWide = (width + binSize - 1) / binSize;
+
+		final int binsHigh = (height + binSize - 1) / binSize;
+		final int[] x0 = new int[shapes.length], x1 = new int[shapes.length];
+		final int[] y0 = new int[shapes.length], y1 = new int[shapes.length];
+		final double[] depths = new double[shapes.length];
+		final boolean[] visible = new boolean[shapes.length];
+
+		// The screen faces along its normal, at a depth of one
+		Vector forward = Vector.cross(iHat, jHat).normalize();
+		if (Vector.dot(forward, origin) < 0)
+			forward = forward.invert();
+		final double screen = Vector.dot(forward, origin);
+		final double ii = Vector.dot(iHat, iHat), jj = Vector.dot(jHat, jHat);
+
+		for (int id = 0; id < shapes.length; id++) {
+			final BoundingBox bounds = shapes[id].getBounds();
+
+			// Unbounded shapes could be anywhere
+			x0[id] = y0[id] = 0;
+			x1[id] = width - 1;
+			y1[id] = height - 1;
+			visible[id] = true;
+
+			if (bounds == null)
+				continue;
+
+			// The nearest any point of the box gets to the camera
+			final double ex = Math.max(Math.max(bounds.minX - position.x, position.x - bounds.maxX), 0.0);
+			final double ey = Math.max(Math.max(bounds.minY - position.y, position.y - bounds.maxY), 0.0);
+			final double ez = Math.max(Math.max(bounds.minZ - position.z, position.z - bounds.maxZ), 0.0);
+			depths[id] = Math.sqrt(ex * ex + ey * ey + ez * ez) * (1.0 - SLACK);
+
+			double uMin = Double.POSITIVE_INFINITY, uMax = Double.NEGATIVE_INFINITY;
+			double vMin = Double.POSITIVE_INFINITY, vMax = Double.NEGATIVE_INFINITY;
+			boolean behind = true, straddles = false;
+
+			for (int corner = 0; corner < 8; corner++) {
+				final double wx = ((corner & 1) == 0 ? bounds.minX : bounds.maxX) - position.x;
+				final double wy = ((corner & 2) == 0 ? bounds.minY : bounds.maxY) - position.y;
+				final double wz = ((corner & 4) == 0 ? bounds.minZ : bounds.maxZ) - position.z;
+				final double length = Math.sqrt(wx * wx + wy * wy + wz * wz);
+				final double z = wx * forward.x + wy * forward.y + wz * forward.z;
+
+				if (z >= -SLACK * length)
+					behind = false;
+				if (z <= SLACK * length) {
+					straddles = true;
+					continue;
+				}
+
+				// Where the corner lands on the screen, in pixels
+				final double scale = screen / z;
+				final double sx = wx * scale - origin.x, sy = wy * scale - origin.y, sz = wz * scale - origin.z;
+				final double u = (sx * iHat.x + sy * iHat.y + sz * iHat.z) / ii;
+				final double v = (sx * jHat.x + sy * jHat.y + sz * jHat.z) / jj;
+
+				uMin = Math.min(uMin, u);
+				uMax = Math.max(uMax, u);
+				vMin = Math.min(vMin, v);
+				vMax = Math.max(vMax, v);
+			}
+
+			// Boxes wholly behind the camera can't be seen, and those reaching
+			// around beside it could show up anywhere
+			if (behind) {
+				visible[id] = false;
+				continue;
+			} else if (straddles)
+				continue;
+
+			if (uMax + MARGIN < 0.0 || vMax + MARGIN < 0.0 || uMin - MARGIN >= width || vMin - MARGIN >= height) {
+				visible[id] = false;
+				continue;
+			}
+
+			x0[id] = (int) Math.floor(Math.max(uMin - MARGIN, 0.0));
+			x1[id] = (int) Math.floor(Math.min(uMax + MARGIN, width - 1));
+			y0[id] = (int) Math.floor(Math.max(vMin - MARGIN, 0.0));
+			y1[id] = (int) Math.floor(Math.min(vMax + MARGIN, height - 1));
+		}
+
+		// Filling the bins nearest shape first keeps each one sorted by depth
+		final Integer[] order = new Integer[shapes.length];
+		for (int id = 0; id < order.length; id++)
+			order[id] = id;
+		Arrays.sort(order, Comparator.comparingDouble(id -> depths[id]));
+
+		binStart = new int[binsWide * binsHigh + 1];
+		for (int id = 0; id < shapes.length; id++)
+			if (visible[id])
+				for (int by = y0[id] / binSize; by <= y1[id] / binSize; by++)
+					for (int bx = x0[id] / binSize; bx <= x1[id] / binSize; bx++)
+						binStart[by * binsWide + bx + 1]++;
+
+		for (int bin = 0; bin < binsWide * binsHigh; bin++)
+			binStart[bin + 1] += binStart[bin];
+
+		final int entries = binStart[binsWide * binsHigh];
+		shape = new int[entries];
+		left = new int[entries];
+		right = new int[entries];
+		top = new int[entries];
+		bottom = new int[entries];
+		near = new double[entries];
+
+		final int[] filled = Arrays.copyOf(binStart, binsWide * binsHigh);
+		for (int id : order) {
+			if (!visible[id])
+				continue;
+
+			for (int by = y0[id] / binSize; by <= y1[id] / binSize; by++)
+				for (int bx = x0[id] / binSize; bx <= x1[id] / binSize; bx++) {
+					final int entry = filled[by * binsWide + bx]++;
+					shape[entry] = id;
+					left[entry] = x0[id];
+					right[entry] = x1[id];
+					top[entry] = y0[id];
+					bottom[entry] = y1[id];
+					near[entry] = depths[id];
+				}
+		}
+	}
+
+	/**
+	 * Finds the nearest shape hit by a ray from the camera through a pixel.
+	 *
+	 * @param origin
+	 *            The camera's position, with the terms of every shape cached
+	 * @param x
+	 *            The column of the pixel the ray passes through
+	 * @param y
+	 *            The row of the pixel the ray passes through
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape, or -1
+	 *            if there is none
+	 * @return false if two shapes were hit at exactly the nearest distance,
+	 *         in which case the hit is undecided
+	 */
+	public boolean findNearest(final OriginCache origin, final int x, final int y, final double dx,
+			final double dy, final double dz, final double lower, double upper, final Hit hit) {
+		final int bin = (y / binSize) * binsWide + x / binSize;
+		int nearest = -1;
+		boolean tied = false;
+
+		for (int entry = binStart[bin], end = binStart[bin + 1]; entry < end && near[entry] <= upper; entry++) {
+			if (x < left[entry] || x > right[entry] || y < top[entry] || y > bottom[entry])
+				continue;
+
+			final int id = shape[entry];
+			final double distance = shapes[id].intersectRay(origin, id, dx, dy, dz, lower, upper, hit);
+
+			if (distance != Shape.MISS) {
+				tied = nearest >= 0 && distance == upper;
+				upper = distance;
+				nearest = id;
+			}
+		}
+
+		hit.shape = nearest;
+		hit.distance = upper;
+		return !tied;
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * This package contains the acceleration structures that let a ray skip the
+ * shapes it cannot possibly hit, instead of testing every shape in the scene.
+ * 
+ * @author mld2443
+ */
+package tracer.accelerators;
@@ -0,0 +1,70 @@
+package tracer.compiler;
+
+import tracer.materials.Material;
+import tracer.samplers.Sampler;
+import tracer.shapes.Shape;
+import tracer.utils.Hit;
+import tracer.utils.Path;
+
+/**
+ * The parent of every class the {@link SceneCompiler} generates. A
+ * CompiledScene checks a fixed list of shapes with their coefficients written
+ * in as constants, and scatters off of their materials without a virtual
+ * call.
+ * 
+ * @author mld2443
+ */
+public abstract class CompiledScene {
+	/**
+	 * Every shape of the scene, for the shapes the compiler leaves to their
+	 * own methods.
+	 */
+	protected final Shape[] shapes;
+
+	/**
+	 * Sets up the compiled scene.
+	 * 
+	 * @param shapes
+	 *            Every shape of the scene, indexed the same way as the scene
+	 */
+	protected CompiledScene(final Shape[] shapes) {
+		this.shapes = shapes;
+	}
+
+	/**
+	 * Finds the nearest of the compiled shapes that our ray intersects, in
+	 * the order they were compiled.
+	 * 
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param hit
+	 *            Receives the distance and index of the nearest shape, if one
+	 *            is nearer than upper
+	 * @return The far end of the window after the search; upper itself if
+	 *         nothing was hit
+	 */
+	public abstract double findNearest(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, double upper, final Hit hit);
+
+	/**
+	 * Bounces a path off of the material of the shape it hit.
+	 * 
+	 * @param path
+	 *            The path to bounce
+	 * @param hit
+	 *            The resolved hit
+	 * @param sceneIndex
+	 *            The index of refraction of the scene
+	 * @param sampler
+	 *            Source of the random numbers
+	 * @return false if the path was absorbed
+	 * @see Material#scatter(Path, Hit, double, Sampler)
+	 */
+	public abstract boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler);
+}
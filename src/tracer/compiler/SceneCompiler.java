@@ -0,0 +1,355 @@
+package tracer.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+
+import tracer.materials.Material;
+import tracer.shapes.Quadric;
+import tracer.shapes.Shape;
+import tracer.shapes.Sphere;
+
+/**
+ * Compiles a loaded scene into a {@link CompiledScene} of its own. The
+ * compiler writes out the Java source of a class that checks every shape in
+ * turn, with the loop unrolled and the coefficients of each sphere and general
+ * quadric written in as constants; terms whose coefficient is zero are left
+ * out altogether. Other shapes, and shapes made of one-sided materials, are
+ * called directly through their own methods. Each material gets a field of
+ * its exact class, so scattering needs no virtual call.
+ *
+ * The source is compiled in memory by the system Java compiler and loaded by
+ * a class loader of its own. A runtime without a compiler gets no
+ * CompiledScene, and the scene is checked the usual way.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Partial_evaluation">Wikipedia:
+ *      Partial Evaluation</a>
+ */
+public class SceneCompiler {
+	/**
+	 * The number of shapes checked by each generated method. The JIT won't
+	 * compile a method bigger than 8000 bytes of bytecode, so a large scene
+	 * is split into small groups the JIT can inline.
+	 */
+	private static final int GROUP_SIZE = 16;
+
+	/**
+	 * The most shapes worth compiling. Past this the unrolled code outgrows
+	 * the instruction cache and takes the JIT longer to compile than it saves,
+	 * and a {@link tracer.accelerators.BoundingVolumeHierarchy hierarchy} is
+	 * the better choice anyway.
+	 */
+	public static final int MAX_SHAPES = 256;
+
+	/**
+	 * Gives every generated class a name of its own.
+	 */
+	private static final AtomicInteger classes = new AtomicInteger();
+
+	/**
+	 * Compiles some of the shapes of a scene.
+	 *
+	 * @param shapes
+	 *            Every shape of the scene
+	 * @param ids
+	 *            Indices of the shapes to compile, in the order to check them
+	 * @return The compiled scene, or null if there are more than
+	 *         {@link SceneCompiler#MAX_SHAPES} shapes, there's no compiler
+	 *         available, or compiling failed
+	 */
+	public static CompiledScene compile(final Shape[] shapes, final int[] ids) {
+		if (ids.length > MAX_SHAPES)
+			return null;
+
+		final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null)
+			return null;
+
+		// Number the materials in the order they first appear
+		final IdentityHashMap<Material, Integer> numbers = new IdentityHashMap<>();
+		final int[] materialOf = new int[shapes.length];
+		for (int i = 0; i < shapes.length; i++) {
+			if (!numbers.containsKey(shapes[i].material))
+				numbers.put(shapes[i].material, numbers.size());
+			materialOf[i] = numbers.get(shapes[i].material);
+		}
+
+		final Material[] materials = new Material[numbers.size()];
+		for (Map.Entry<Material, Integer> entry : numbers.entrySet())
+			materials[entry.getValue()] = entry.getKey();
+
+		final String name = "CompiledScene" + classes.getAndIncrement();
+		final String source = generate(name, shapes, ids, materials);
+
+		final MemoryFileManager files = new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+		final JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + name + ".java"), Kind.SOURCE) {
+			@Override
+			public CharSequence getCharContent(final boolean ignoreEncodingErrors) {
+				return source;
+			}
+		};
+
+		final StringWriter messages = new StringWriter();
+		final Boolean compiled = compiler.getTask(messages, files, null,
+				Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none", "-proc:none"), null,
+				Arrays.asList(file)).call();
+		if (compiled == null || !compiled)
+			return null;
+
+		final ClassLoader loader = new ClassLoader(SceneCompiler.class.getClassLoader()) {
+			@Override
+			protected Class<?> findClass(final String className) throws ClassNotFoundException {
+				final ByteArrayOutputStream bytes = files.classes.get(className);
+				if (bytes == null)
+					throw new ClassNotFoundException(className);
+				return defineClass(className, bytes.toByteArray(), 0, bytes.size());
+			}
+		};
+
+		try {
+			return (CompiledScene) loader.loadClass(name)
+					.getConstructor(Shape[].class, Material[].class, int[].class)
+					.newInstance(shapes, materials, materialOf);
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the source of the compiled scene.
+	 */
+	private static String generate(final String name, final Shape[] shapes, final int[] ids,
+			final Material[] materials) {
+		final StringBuilder out = new StringBuilder();
+		final String check = "final double ox, final double oy, final double oz, final double dx, final double dy, "
+				+ "final double dz, final double lower, double upper, final tracer.utils.Hit hit";
+		final String pass = "ox, oy, oz, dx, dy, dz, lower, upper, hit";
+
+		out.append("public final class ").append(name).append(" extends tracer.compiler.CompiledScene {\n");
+
+		// A field of the exact class of every material
+		for (int m = 0; m < materials.length; m++)
+			out.append("\tprivate final ").append(typeOf(materials[m])).append(" m").append(m).append(";\n");
+		out.append("\tprivate final int[] materialOf;\n\n");
+
+		out.append("\tpublic ").append(name).append("(final tracer.shapes.Shape[] shapes, ")
+				.append("final tracer.materials.Material[] materials, final int[] materialOf) {\n");
+		out.append("\t\tsuper(shapes);\n");
+		for (int m = 0; m < materials.length; m++)
+			out.append("\t\tm").append(m).append(" = (").append(typeOf(materials[m])).append(") materials[")
+					.append(m).append("];\n");
+		out.append("\t\tthis.materialOf = materialOf;\n\t}\n\n");
+
+		// The search calls each group in turn, passing the narrowed window on
+		final int groups = (ids.length + GROUP_SIZE - 1) / GROUP_SIZE;
+		out.append("\tpublic double findNearest(").append(check).append(") {\n");
+		for (int g = 0; g < groups; g++)
+			out.append("\t\tupper = group").append(g).append("(").append(pass).append(");\n");
+		out.append("\t\treturn upper;\n\t}\n\n");
+
+		for (int g = 0; g < groups; g++) {
+			out.append("\tprivate double group").append(g).append("(").append(check).append(") {\n");
+			for (int i = g * GROUP_SIZE; i < Math.min(ids.length, (g + 1) * GROUP_SIZE); i++)
+				shape(out, ids[i], shapes[ids[i]]);
+			out.append("\t\treturn upper;\n\t}\n\n");
+		}
+
+		out.append("\tpublic boolean scatter(final tracer.utils.Path path, final tracer.utils.Hit hit, ")
+				.append("final double sceneIndex, final tracer.samplers.Sampler sampler) {\n");
+		out.append("\t\tswitch (materialOf[hit.shape]) {\n");
+		for (int m = 0; m < materials.length; m++)
+			out.append("\t\tcase ").append(m).append(":\n\t\t\treturn m").append(m)
+					.append(".scatter(path, hit, sceneIndex, sampler);\n");
+		out.append("\t\tdefault:\n\t\t\tthrow new IllegalStateException();\n\t\t}\n\t}\n}\n");
+
+		return out.toString();
+	}
+
+	/**
+	 * Writes the check of a single shape.
+	 */
+	private static void shape(final StringBuilder out, final int id, final Shape shape) {
+		out.append("\t\t{\n");
+
+		final boolean plain = !shape.material.oneSided && shape instanceof Quadric
+				&& !((Quadric) shape).isClipped();
+
+		if (plain && shape.getClass() == Sphere.class) {
+			final Sphere sphere = (Sphere) shape;
+			relative(out, shape);
+			out.append("\t\t\tfinal double B = cx * dx + cy * dy + cz * dz;\n");
+			out.append("\t\t\tfinal double C = cx * cx + cy * cy + cz * cz - ")
+					.append(literal(sphere.radius * sphere.radius)).append(";\n");
+			out.append("\t\t\tfinal double square = B * B - C;\n");
+			out.append("\t\t\tif (square >= 0) {\n");
+			out.append("\t\t\t\tfinal double root = Math.sqrt(square);\n");
+			out.append("\t\t\t\tfinal double D1 = -B - root, D2 = -B + root;\n");
+			roots(out, id);
+			out.append("\t\t\t}\n");
+		} else if (plain && shape.getClass() == Quadric.class) {
+			final double[] e = ((Quadric) shape).getCoefficients();
+			relative(out, shape);
+			out.append("\t\t\tfinal double A = ").append(orZero(join(
+					sum(term(e[0], "dx * dx"), term(e[1], "dy * dy"), term(e[2], "dz * dz")),
+					twice(sum(term(e[3], "dx * dy"), term(e[4], "dy * dz"), term(e[5], "dz * dx")))))).append(";\n");
+			out.append("\t\t\tfinal double B = ").append(orZero(join(
+					sum(term(e[0], "cx * dx"), term(e[1], "cy * dy"), term(e[2], "cz * dz")),
+					sum(term(e[3], "(dx * cy + cx * dy)"), term(e[4], "(cy * dz + dy * cz)"),
+							term(e[5], "(cx * dz + dx * cz)")),
+					sum(term(e[6], "dx"), term(e[7], "dy"), term(e[8], "dz"))))).append(";\n");
+			out.append("\t\t\tfinal double C = ").append(orZero(join(
+					sum(term(e[0], "cx * cx"), term(e[1], "cy * cy"), term(e[2], "cz * cz")),
+					twice(sum(term(e[3], "cx * cy"), term(e[4], "cy * cz"), term(e[5], "cz * cx"))),
+					twice(sum(term(e[6], "cx"), term(e[7], "cy"), term(e[8], "cz"))),
+					e[9] == 0 ? null : literal(e[9])))).append(";\n");
+			out.append("\t\t\tfinal double square = B * B - A * C;\n");
+			out.append("\t\t\tif (square >= 0) {\n");
+			out.append("\t\t\t\tfinal double root = Math.sqrt(square);\n");
+			out.append("\t\t\t\tfinal double D1 = (-B - root) / A, D2 = (-B + root) / A;\n");
+			roots(out, id);
+			out.append("\t\t\t}\n");
+		} else {
+			out.append("\t\t\tfinal double distance = shapes[").append(id)
+					.append("].intersectRay(ox, oy, oz, dx, dy, dz, lower, upper, hit);\n");
+			out.append("\t\t\tif (distance != tracer.shapes.Shape.MISS) {\n");
+			record(out, id, "distance", "\t\t\t\t");
+			out.append("\t\t\t}\n");
+		}
+
+		out.append("\t\t}\n");
+	}
+
+	/**
+	 * Writes the position of the ray relative to a shape.
+	 */
+	private static void relative(final StringBuilder out, final Shape shape) {
+		out.append("\t\t\tfinal double cx = ox - ").append(literal(shape.position.x)).append(", cy = oy - ")
+				.append(literal(shape.position.y)).append(", cz = oz - ").append(literal(shape.position.z))
+				.append(";\n");
+	}
+
+	/**
+	 * Writes the choice between two roots, the same as
+	 * {@link Quadric#nearestRoot} makes for an unclipped Quadric.
+	 */
+	private static void roots(final StringBuilder out, final int id) {
+		out.append("\t\t\t\tif (D1 >= lower && D1 <= upper) {\n");
+		record(out, id, "D1", "\t\t\t\t\t");
+		out.append("\t\t\t\t} else if (D2 >= lower && D2 <= upper) {\n");
+		record(out, id, "D2", "\t\t\t\t\t");
+		out.append("\t\t\t\t}\n");
+	}
+
+	private static void record(final StringBuilder out, final int id, final String distance, final String indent) {
+		out.append(indent).append("upper = ").append(distance).append(";\n");
+		out.append(indent).append("hit.distance = ").append(distance).append(";\n");
+		out.append(indent).append("hit.shape = ").append(id).append(";\n");
+	}
+
+	/**
+	 * A coefficient times a product, or null if the coefficient is zero. A
+	 * coefficient of one is left out, which doesn't change the result.
+	 */
+	private static String term(final double coefficient, final String product) {
+		if (coefficient == 0)
+			return null;
+		if (coefficient == 1)
+			return product;
+		return literal(coefficient) + " * " + product;
+	}
+
+	/**
+	 * The parenthesized sum of the terms that aren't null, or null if they
+	 * all are.
+	 */
+	private static String sum(final String... terms) {
+		final String joined = join(terms);
+		return joined == null ? null : "(" + joined + ")";
+	}
+
+	private static String orZero(final String expression) {
+		return expression == null ? "0.0" : expression;
+	}
+
+	private static String twice(final String sum) {
+		return sum == null ? null : "2 * " + sum;
+	}
+
+	/**
+	 * The terms that aren't null joined by plus signs, or null if they all
+	 * are.
+	 */
+	private static String join(final String... terms) {
+		final StringBuilder joined = new StringBuilder();
+		for (String term : terms) {
+			if (term == null)
+				continue;
+			if (joined.length() > 0)
+				joined.append(" + ");
+			joined.append(term);
+		}
+		return joined.length() == 0 ? null : joined.toString();
+	}
+
+	/**
+	 * A Java literal for exactly the given double.
+	 */
+	private static String literal(final double value) {
+		if (Double.isNaN(value))
+			return "Double.NaN";
+		if (Double.isInfinite(value))
+			return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+		return "(" + Double.toHexString(value) + ")";
+	}
+
+	/**
+	 * The name of the most exact public class to hold a material in.
+	 */
+	private static String typeOf(final Material material) {
+		Class<?> type = material.getClass();
+		while (!java.lang.reflect.Modifier.isPublic(type.getModifiers()) || type.getCanonicalName() == null)
+			type = type.getSuperclass();
+		return type.getCanonicalName();
+	}
+
+	/**
+	 * Keeps the compiled classes in memory instead of writing them out.
+	 */
+	private static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+		final Map<String, ByteArrayOutputStream> classes = new HashMap<>();
+
+		MemoryFileManager(final JavaFileManager files) {
+			super(files);
+		}
+
+		@Override
+		public JavaFileObject getJavaFileForOutput(final Location location, final String className, final Kind kind,
+				final FileObject sibling) {
+			return new SimpleJavaFileObject(URI.create("bytes:///" + className.replace('.', '/') + kind.extension),
+					kind) {
+				@Override
+				public OutputStream openOutputStream() {
+					final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					classes.put(className, bytes);
+					return bytes;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,8 @@
+/**
+ * This package contains the scene compiler, which turns a loaded scene into a
+ * class of its own, so its shapes and materials become constants the JIT can
+ * see through.
+ * 
+ * @author mld2443
+ */
+package tracer.compiler;
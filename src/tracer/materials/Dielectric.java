@@ -1,10 +1,12 @@
 package tracer.materials;
 
 import java.util.Map;
-import java.util.Random;
 
 import tracer.Engine.SceneFormattingException;
+import tracer.samplers.Sampler;
 import tracer.utils.Color;
+import tracer.utils.Hit;
+import tracer.utils.Path;
 import tracer.utils.Ray;
 import tracer.utils.Vector;
 
@@ -16,11 +18,6 @@ import tracer.utils.Vector;
 public class Dielectric extends Material {
 	private final double refractionIndex;
 
-	/**
-	 * A static Random object with which to generate random floats [0,1).
-	 */
-	private static final Random rand = new Random();
-
 	/**
 	 * Constructor for a new dielectric material. For reference, the refraction
 	 * index of a vacuum (and approximately air) is 1.0; water is about 1.33;
@@ -70,7 +67,8 @@ public class Dielectric extends Material {
 	}
 
 	@Override
-	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex) {
+	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex,
+			final Sampler sampler) {
 		final double entering = Vector.dot(incoming.direction, normal);
 		double cosX;
 		Vector refracted;
@@ -87,7 +85,7 @@ public class Dielectric extends Material {
 
 		// Reflect with probability given by the Schlick approximation, or if
 		// there's Total Internal Reflection
-		if (refracted == null || rand.nextDouble() < schlickApproximation(cosX, sceneIndex)) {
+		if (refracted == null || sampler.nextDouble() < schlickApproximation(cosX, sceneIndex)) {
 			return new Ray(collision, Vector.reflect(incoming.direction, normal));
 		}
 
@@ -95,4 +93,50 @@ public class Dielectric extends Material {
 		return new Ray(collision, refracted);
 	}
 
+	@Override
+	public boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler) {
+		final double entering = path.dx * hit.nx + path.dy * hit.ny + path.dz * hit.nz;
+		final double cosX, eta, nx, ny, nz;
+
+		if (entering > 0) {
+			// The ray is outside and potentially entering the object
+			cosX = entering;
+			eta = refractionIndex / sceneIndex;
+			nx = -hit.nx;
+			ny = -hit.ny;
+			nz = -hit.nz;
+		} else {
+			// the ray is inside and potentially exiting the object
+			cosX = -entering;
+			eta = sceneIndex / refractionIndex;
+			nx = hit.nx;
+			ny = hit.ny;
+			nz = hit.nz;
+		}
+
+		// Snell's law, as in Vector.refract
+		final double cosI = -(path.dx * nx + path.dy * ny + path.dz * nz);
+		final double sinT2 = eta * eta * (1.0 - cosI * cosI);
+
+		// Reflect with probability given by the Schlick approximation, or if
+		// there's Total Internal Reflection
+		if (sinT2 > 1.0 || sampler.nextDouble() < schlickApproximation(cosX, sceneIndex)) {
+			final double twice = 2.0 * entering;
+			path.set(hit.px, hit.py, hit.pz, path.dx - hit.nx * twice, path.dy - hit.ny * twice,
+					path.dz - hit.nz * twice);
+			return true;
+		}
+
+		// Refract
+		final double cosT = Math.sqrt(1.0 - sinT2);
+		final double scale = eta * cosI - cosT;
+		path.set(hit.px, hit.py, hit.pz, path.dx * eta + nx * scale, path.dy * eta + ny * scale,
+				path.dz * eta + nz * scale);
+		return true;
+	}
+
+	@Override
+	public boolean scattersRandomly() {
+		return true;
+	}
 }
@@ -0,0 +1,71 @@
+package tracer.materials;
+
+import java.util.Map;
+
+import tracer.Engine.SceneFormattingException;
+import tracer.samplers.Sampler;
+import tracer.utils.Color;
+import tracer.utils.Hit;
+import tracer.utils.Path;
+import tracer.utils.Ray;
+import tracer.utils.Vector;
+
+/**
+ * A material that gives off light of its own, like a lamp. It reflects
+ * nothing, so a path that reaches it ends there, carrying its light back.
+ *
+ * Spheres made of an Emissive material are also
+ * {@link tracer.Scene#prepare() gathered} as lights, which are sampled
+ * directly from every {@link Material#isDiffuse() diffuse} bounce.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Radiance">Wikipedia:
+ *      Radiance</a>
+ */
+public class Emissive extends Material {
+	/**
+	 * How many times brighter than its color the material glows.
+	 */
+	public final double strength;
+
+	/**
+	 * Constructs a new Emissive material.
+	 *
+	 * @param color
+	 *            {@link Color} of the light given off
+	 * @param strength
+	 *            How many times brighter than its color the material glows
+	 */
+	public Emissive(final Color color, final double strength) {
+		super(color, false);
+		this.strength = strength;
+	}
+
+	/**
+	 * Constructs a new Emissive material from a list of properties.
+	 *
+	 * @param properties
+	 *            Map of properties; Expects "color", and optionally
+	 *            "strength"
+	 * @throws SceneFormattingException
+	 */
+	public Emissive(final Map<String, String> properties) throws SceneFormattingException {
+		this(new Color(properties.get("color")), Double.parseDouble(properties.getOrDefault("strength", "1")));
+	}
+
+	@Override
+	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex,
+			final Sampler sampler) {
+		return null;
+	}
+
+	@Override
+	public boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler) {
+		return false;
+	}
+
+	@Override
+	public boolean emits() {
+		return true;
+	}
+}
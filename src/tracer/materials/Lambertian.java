@@ -3,7 +3,10 @@ package tracer.materials;
 import java.util.Map;
 
 import tracer.Engine.SceneFormattingException;
+import tracer.samplers.Sampler;
 import tracer.utils.Color;
+import tracer.utils.Hit;
+import tracer.utils.Path;
 import tracer.utils.Ray;
 import tracer.utils.Vector;
 
@@ -40,10 +43,30 @@ public class Lambertian extends Material {
 	}
 
 	@Override
-	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex) {
-		Vector target = Vector.sum(collision, normal, Vector.randomInUnitSphere());
+	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex,
+			final Sampler sampler) {
+		Vector target = Vector.sum(collision, normal, Vector.randomInUnitSphere(sampler));
 
 		return new Ray(collision, Vector.sub(target, collision));
 	}
 
+	@Override
+	public boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler) {
+		path.randomInUnitSphere(sampler);
+
+		final double tx = hit.px + hit.nx + path.rx, ty = hit.py + hit.ny + path.ry, tz = hit.pz + hit.nz + path.rz;
+
+		path.set(hit.px, hit.py, hit.pz, tx - hit.px, ty - hit.py, tz - hit.pz);
+		return true;
+	}
+
+	@Override
+	public boolean scattersRandomly() {
+		return true;
+	}
+
+	@Override
+	public boolean isDiffuse() {
+		return true;
+	}
 }
@@ -1,6 +1,9 @@
 package tracer.materials;
 
+import tracer.samplers.Sampler;
 import tracer.utils.Color;
+import tracer.utils.Hit;
+import tracer.utils.Path;
 import tracer.utils.Ray;
 import tracer.utils.Vector;
 
@@ -13,14 +16,21 @@ import tracer.utils.Vector;
  */
 public abstract class Material {
 	public final Color color;
-	public final Boolean oneSided;
+	public final boolean oneSided;
+
+	/**
+	 * The number of bounces a path may take before reaching this Material
+	 * and still be scattered by it; a path that has bounced more is absorbed
+	 * instead. Glass usually deserves more bounces than a matte surface.
+	 */
+	public int bounces = Integer.MAX_VALUE;
 	
 	/**
 	 * Protected constructor for subclasses to set the color.
 	 * 
 	 * @param color Color of this material
 	 */
-	protected Material(final Color color, final Boolean oneSided) {
+	protected Material(final Color color, final boolean oneSided) {
 		this.color = color;
 		this.oneSided = oneSided;
 	}
@@ -32,7 +42,53 @@ public abstract class Material {
 	 * @param collision Point at which the ray intersected this material surface
 	 * @param normal Normal vector of the point of collision
 	 * @param sceneIndex Index of refraction for the global scene
+	 * @param sampler Source of any random numbers the bounce needs
 	 * @return
 	 */
-	abstract public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex);
+	abstract public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex,
+			final Sampler sampler);
+
+	/**
+	 * Bounces a path off of this Material in place, without allocating. This
+	 * must make the same choices as
+	 * {@link Material#scatter(Ray, Vector, Vector, double, Sampler)}.
+	 * 
+	 * @param path {@link Path} which reached this Material; its next segment is written back to it
+	 * @param hit Resolved point and normal of the collision
+	 * @param sceneIndex Index of refraction for the global scene
+	 * @param sampler Source of any random numbers the bounce needs
+	 * @return false if the path was absorbed
+	 */
+	abstract public boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler);
+
+	/**
+	 * Whether this Material scatters in a random direction, and so adds noise
+	 * worth splitting a path over.
+	 * 
+	 * @return true if a bounce off of this Material is random
+	 */
+	public boolean scattersRandomly() {
+		return false;
+	}
+
+	/**
+	 * Whether this Material scatters with a cosine-weighted distribution
+	 * about its normal, so the light arriving directly from a light can be
+	 * sampled at a bounce off of it and weighed against the bounce itself.
+	 *
+	 * @return true if this Material is perfectly diffuse
+	 */
+	public boolean isDiffuse() {
+		return false;
+	}
+
+	/**
+	 * Whether this Material gives off light of its own, in which case a path
+	 * that reaches it ends there, carrying that light back.
+	 *
+	 * @return true if this Material is a light
+	 */
+	public boolean emits() {
+		return false;
+	}
 }
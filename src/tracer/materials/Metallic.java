@@ -3,7 +3,10 @@ package tracer.materials;
 import java.util.Map;
 
 import tracer.Engine.SceneFormattingException;
+import tracer.samplers.Sampler;
 import tracer.utils.Color;
+import tracer.utils.Hit;
+import tracer.utils.Path;
 import tracer.utils.Ray;
 import tracer.utils.Vector;
 
@@ -42,12 +45,13 @@ public class Metallic extends Material {
 	}
 
 	@Override
-	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex) {
+	public Ray scatter(final Ray incoming, final Vector collision, final Vector normal, final double sceneIndex,
+			final Sampler sampler) {
 		Vector reflected = Vector.reflect(incoming.direction, normal);
 
 		// Apply our fuzziness inside this if block
 		if (fuzz > 0.0)
-			reflected = Vector.sum(reflected, Vector.randomInUnitSphere().scale(fuzz));
+			reflected = Vector.sum(reflected, Vector.randomInUnitSphere(sampler).scale(fuzz));
 		
 		reflected = reflected.normalize();
 
@@ -57,4 +61,23 @@ public class Metallic extends Material {
 		// ray hits the front, it reflects
 		return bounce;
 	}
+
+	@Override
+	public boolean scatter(final Path path, final Hit hit, final double sceneIndex, final Sampler sampler) {
+		final double twice = 2.0 * (path.dx * hit.nx + path.dy * hit.ny + path.dz * hit.nz);
+		double x = path.dx - hit.nx * twice, y = path.dy - hit.ny * twice, z = path.dz - hit.nz * twice;
+
+		// Apply our fuzziness inside this if block
+		if (fuzz > 0.0) {
+			path.randomInUnitSphere(sampler);
+			x += path.rx * fuzz;
+			y += path.ry * fuzz;
+			z += path.rz * fuzz;
+		}
+
+		// Normalized here and once more by the path, just like the Ray above
+		final double magnitude = Math.sqrt(x * x + y * y + z * z);
+		path.set(hit.px, hit.py, hit.pz, x / magnitude, y / magnitude, z / magnitude);
+		return true;
+	}
 }
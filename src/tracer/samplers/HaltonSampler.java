@@ -0,0 +1,111 @@
+package tracer.samplers;
+
+/**
+ * A sampler built on the Halton sequence, with Owen's nested scrambling:
+ * each digit is permuted in a way that depends on every digit before it.
+ * Each dimension counts in a different prime base, so unlike the
+ * {@link SobolSampler} every dimension is stratified against every other,
+ * but the higher dimensions need many samples before their large bases pay
+ * off.
+ *
+ * Dimensions past the last prime fall back on pseudo-random numbers.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Halton_sequence">Wikipedia:
+ *      Halton Sequence</a>
+ */
+public class HaltonSampler extends SequenceSampler {
+	/**
+	 * The base of each dimension.
+	 */
+	private static final int[] PRIMES = new int[128];
+
+	static {
+		for (int candidate = 2, found = 0; found < PRIMES.length; candidate++) {
+			boolean prime = true;
+			for (int p = 0; p < found && PRIMES[p] * PRIMES[p] <= candidate; p++)
+				if (candidate % PRIMES[p] == 0) {
+					prime = false;
+					break;
+				}
+
+			if (prime)
+				PRIMES[found++] = candidate;
+		}
+	}
+
+	/**
+	 * Constructs a new Halton sampler.
+	 *
+	 * @param seed
+	 *            The global seed; the same seed always gives the same capture
+	 */
+	public HaltonSampler(final long seed) {
+		super(seed);
+		startSample(0, 0, 0);
+	}
+
+	@Override
+	protected double sample(final int dimension) {
+		final long key = key(dimension);
+
+		if (dimension >= PRIMES.length)
+			return (mix(key ^ index) >>> 11) * 0x1.0p-53;
+
+		final int base = PRIMES[dimension];
+		final double inverse = 1.0 / base;
+		double value = 0.0, scale = inverse;
+
+		// The radical inverse of our index, with every digit permuted by the
+		// digits before it; a leading 1 keeps prefixes of every length apart
+		long prefix = 1;
+		for (int remaining = index; remaining != 0; scale *= inverse) {
+			final int digit = remaining % base;
+			remaining /= base;
+
+			value += permute(digit, base, mix(key ^ prefix)) * scale;
+			prefix = prefix * base + digit;
+		}
+
+		// Past the index every digit is a zero, and zeros permuted at every
+		// level add up to a uniform offset within the last digit
+		value += (mix(key ^ prefix) >>> 11) * 0x1.0p-53 * scale * base;
+
+		// Rounding may land exactly on one
+		return Math.min(value, 0x1.fffffffffffffp-1);
+	}
+
+	/**
+	 * A pseudo-random permutation of the digits of a base. The digit is
+	 * shuffled among every number of as many bits as the base needs, over and
+	 * over, until it lands on a digit again.
+	 *
+	 * @param digit
+	 *            The digit to permute
+	 * @param base
+	 *            The base of the digit
+	 * @param key
+	 *            Selects the permutation
+	 * @return The permuted digit
+	 */
+	private static int permute(final int digit, final int base, final long key) {
+		final int mask = (Integer.highestOneBit(base - 1) << 1) - 1;
+		final int shift = (32 - Integer.numberOfLeadingZeros(mask) + 1) / 2;
+		final int scale = (int) key | 1, offset = (int) (key >>> 32);
+		int x = digit;
+
+		do {
+			x = (x * scale + offset) & mask;
+			x ^= x >>> shift;
+			x = (x * 0x2C1B3C6D + offset) & mask;
+			x ^= x >>> shift;
+		} while (x >= base);
+
+		return x;
+	}
+
+	@Override
+	public Sampler copy() {
+		return new HaltonSampler(seed);
+	}
+}
@@ -0,0 +1,68 @@
+package tracer.samplers;
+
+/**
+ * A pseudo-random sampler built on the xoroshiro128+ generator. It keeps its
+ * whole state in two longs, so reseeding it for every sample costs next to
+ * nothing and never touches memory shared with other workers.
+ * 
+ * @author mld2443
+ * @see <a href="https://prng.di.unimi.it/">xoshiro / xoroshiro generators</a>
+ */
+public class RandomSampler extends Sampler {
+	private long s0, s1;
+
+	/**
+	 * The key of the current sample's stream.
+	 */
+	private long key;
+
+	/**
+	 * Constructs a new pseudo-random sampler.
+	 * 
+	 * @param seed
+	 *            The global seed; the same seed always gives the same capture
+	 */
+	public RandomSampler(final long seed) {
+		super(seed);
+		startSample(0, 0, 0);
+	}
+
+	@Override
+	public void startSample(final int x, final int y, final int index) {
+		key = hash(x, y, index);
+		seed(key);
+	}
+
+	@Override
+	public void startSplit(final int split, final int splits) {
+		seed(mix(key ^ (0xD1B54A32D192ED03L * (split + 1))));
+	}
+
+	/**
+	 * Expands a key into the two halves of the state; they can't both be
+	 * zero since mix is a bijection.
+	 */
+	private void seed(final long key) {
+		s0 = mix(key);
+		s1 = mix(key + 0x9E3779B97F4A7C15L);
+	}
+
+	@Override
+	public double nextDouble() {
+		final long a = s0;
+		long b = s1;
+		final long result = a + b;
+
+		b ^= a;
+		s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+		s1 = Long.rotateLeft(b, 37);
+
+		// The top 53 bits fill a double's mantissa exactly
+		return (result >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public Sampler copy() {
+		return new RandomSampler(seed);
+	}
+}
@@ -0,0 +1,129 @@
+package tracer.samplers;
+
+/**
+ * Abstract class which defines the common behavior of samplers.
+ * 
+ * A sampler hands out the numbers for a single sample at a time. Before each
+ * sample it is {@link Sampler#startSample(int, int, int) positioned} on the
+ * stream belonging to that pixel and sample index, so the numbers a sample
+ * receives never depend on which worker took it, or in what order.
+ * 
+ * Samplers are not thread-safe; every worker should take its own
+ * {@link Sampler#copy() copy}.
+ * 
+ * @author mld2443
+ */
+public abstract class Sampler {
+	/**
+	 * The number of dimensions a sample draws from to aim its camera ray,
+	 * before its first bounce.
+	 */
+	public static final int CAMERA_DIMENSIONS = 2;
+
+	/**
+	 * The number of dimensions set aside for each bounce. No material draws
+	 * more than two numbers to scatter, sampling the environment draws two
+	 * more and sampling a light three more, and Russian roulette draws one
+	 * last.
+	 */
+	public static final int BOUNCE_DIMENSIONS = 8;
+
+	/**
+	 * The global seed, which every stream is derived from.
+	 */
+	public final long seed;
+
+	/**
+	 * Protected constructor for subclasses to set the seed.
+	 * 
+	 * @param seed
+	 *            The global seed
+	 */
+	protected Sampler(final long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Positions the sampler at the beginning of the stream for a single
+	 * sample.
+	 * 
+	 * @param x
+	 *            X coordinate of the pixel being sampled
+	 * @param y
+	 *            Y coordinate of the pixel being sampled
+	 * @param index
+	 *            Index of the sample within its pixel
+	 */
+	abstract public void startSample(final int x, final int y, final int index);
+
+	/**
+	 * Moves on to the numbers set aside for a bounce of the current sample,
+	 * so every bounce draws from the same dimensions in every sample, no
+	 * matter how many numbers the bounces before it drew. A pseudo-random
+	 * stream has no dimensions, so by default this does nothing.
+	 * 
+	 * @param bounce
+	 *            The number of times the sample has bounced so far
+	 */
+	public void startBounce(final int bounce) {
+	}
+
+	/**
+	 * Moves on to the stream of one split of the current sample, for a
+	 * sample that splits into several paths partway. Each split draws its
+	 * own numbers from then on, but every split of a sample is the same no
+	 * matter which split came before it.
+	 * 
+	 * @param split
+	 *            Index of the split
+	 * @param splits
+	 *            The number of splits of the sample
+	 */
+	abstract public void startSplit(final int split, final int splits);
+
+	/**
+	 * @return The next number in the current sample's stream, in [0,1)
+	 */
+	abstract public double nextDouble();
+
+	/**
+	 * Creates a new sampler of the same kind with the same seed, for use by
+	 * another worker.
+	 * 
+	 * @return An independent copy of this sampler
+	 */
+	abstract public Sampler copy();
+
+	/**
+	 * The SplitMix64 finalizer, which scrambles the bits of a long so that
+	 * nearby inputs give unrelated outputs.
+	 * 
+	 * @param z
+	 *            Value to scramble
+	 * @return The scrambled value
+	 * @see <a href="https://prng.di.unimi.it/splitmix64.c">SplitMix64</a>
+	 */
+	protected static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Combines the global seed with a pixel and sample index into a single key
+	 * for a stream.
+	 * 
+	 * @param x
+	 *            X coordinate of the pixel
+	 * @param y
+	 *            Y coordinate of the pixel
+	 * @param index
+	 *            Index of the sample within its pixel
+	 * @return A well mixed key unique to this sample
+	 */
+	protected long hash(final int x, final int y, final int index) {
+		long h = mix(seed + 0x9E3779B97F4A7C15L);
+		h = mix(h ^ (((long) x << 32) | (y & 0xFFFFFFFFL)));
+		return mix(h ^ index);
+	}
+}
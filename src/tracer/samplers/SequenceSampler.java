@@ -0,0 +1,114 @@
+package tracer.samplers;
+
+import java.util.Arrays;
+
+/**
+ * Abstract class for samplers that draw from a low-discrepancy sequence
+ * instead of a pseudo-random stream. The samples of a pixel are points of a
+ * sequence that covers the unit hypercube far more evenly than independent
+ * random numbers, so a pixel converges in fewer samples.
+ *
+ * Every number a sample draws comes from its own dimension of the sequence:
+ * the first {@link Sampler#CAMERA_DIMENSIONS} aim the camera ray, and each
+ * bounce then has {@link Sampler#BOUNCE_DIMENSIONS} of its own. Each pixel
+ * scrambles the sequence differently, so neighboring pixels don't share a
+ * pattern.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Low-discrepancy_sequence">
+ *      Wikipedia: Low-discrepancy Sequence</a>
+ */
+public abstract class SequenceSampler extends Sampler {
+	/**
+	 * The key of the pixel being sampled, which seeds its scrambling.
+	 */
+	protected long pixel;
+
+	/**
+	 * Index of the sample within its pixel, which is the index of its point
+	 * in the sequence. The splits of a sample take up a run of points of
+	 * their own.
+	 */
+	protected int index;
+
+	/**
+	 * Index of the sample within its pixel, before any split.
+	 */
+	private int sample;
+
+	/**
+	 * The dimension the next number is drawn from.
+	 */
+	private int dimension;
+
+	/**
+	 * The key of each dimension for the current pixel, and how many of them
+	 * have been worked out. Samples of the same pixel usually come one after
+	 * another, so they are only worked out again for a new pixel.
+	 */
+	private long[] keys = new long[CAMERA_DIMENSIONS + 16 * BOUNCE_DIMENSIONS];
+	private int known = 0;
+
+	/**
+	 * Protected constructor for subclasses to set the seed.
+	 *
+	 * @param seed
+	 *            The global seed; the same seed always gives the same capture
+	 */
+	protected SequenceSampler(final long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void startSample(final int x, final int y, final int index) {
+		final long pixel = hash(x, y, 0);
+		if (pixel != this.pixel) {
+			this.pixel = pixel;
+			known = 0;
+		}
+
+		this.index = this.sample = index;
+		this.dimension = 0;
+	}
+
+	@Override
+	public void startSplit(final int split, final int splits) {
+		index = sample * splits + split;
+	}
+
+	@Override
+	public void startBounce(final int bounce) {
+		dimension = CAMERA_DIMENSIONS + bounce * BOUNCE_DIMENSIONS;
+	}
+
+	@Override
+	public double nextDouble() {
+		return sample(dimension++);
+	}
+
+	/**
+	 * The key that seeds the scrambling of a dimension for the current pixel.
+	 *
+	 * @param dimension
+	 *            The dimension to scramble
+	 * @return A well mixed key unique to the pixel and dimension
+	 */
+	protected long key(final int dimension) {
+		if (dimension >= keys.length)
+			keys = Arrays.copyOf(keys, 2 * dimension);
+
+		for (; known <= dimension; known++)
+			keys[known] = mix(pixel + 0xD1B54A32D192ED03L * (known + 1));
+
+		return keys[dimension];
+	}
+
+	/**
+	 * Finds one coordinate of the current sample's point in the sequence.
+	 *
+	 * @param dimension
+	 *            The coordinate to find
+	 * @return The coordinate, scrambled for the current pixel, in [0,1)
+	 */
+	protected abstract double sample(final int dimension);
+}
@@ -0,0 +1,110 @@
+package tracer.samplers;
+
+/**
+ * A sampler built on the Sobol sequence, scrambled with Owen's nested uniform
+ * scrambling. Every pair of dimensions is a copy of the first two dimensions
+ * of the Sobol sequence, which are stratified in every way a pair can be,
+ * with the order of the points shuffled differently for each pair so they
+ * don't correlate with one another. Owen scrambling keeps the sequence
+ * stratified while making every pixel's points independent, and gives the
+ * fastest convergence of any sampler here on smooth pixels.
+ *
+ * Pixels converge fastest with a power of two samples.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Sobol_sequence">Wikipedia:
+ *      Sobol Sequence</a>
+ * @see "Burley, Practical Hash-based Owen Scrambling (2020)"
+ */
+public class SobolSampler extends SequenceSampler {
+	/**
+	 * The second dimension of the sequence for every byte of an index, one
+	 * table per byte. The first dimension is just the index reversed.
+	 */
+	private static final int[][] BYTES = new int[4][256];
+
+	static {
+		final int[] directions = new int[32];
+		for (int bit = 0; bit < 32; bit++)
+			directions[bit] = bit == 0 ? 1 << 31 : directions[bit - 1] ^ (directions[bit - 1] >>> 1);
+
+		for (int b = 0; b < 4; b++)
+			for (int value = 0; value < 256; value++)
+				for (int bit = 0; bit < 8; bit++)
+					if ((value & (1 << bit)) != 0)
+						BYTES[b][value] ^= directions[8 * b + bit];
+	}
+
+	/**
+	 * The shuffled index of the current point in the latest pair of
+	 * dimensions, since both dimensions of a pair are usually drawn one after
+	 * the other.
+	 */
+	private int pair = -1, pairIndex, shuffled;
+
+	/**
+	 * Constructs a new Sobol sampler.
+	 *
+	 * @param seed
+	 *            The global seed; the same seed always gives the same capture
+	 */
+	public SobolSampler(final long seed) {
+		super(seed);
+		startSample(0, 0, 0);
+	}
+
+	@Override
+	public void startSample(final int x, final int y, final int index) {
+		super.startSample(x, y, index);
+		pair = -1;
+	}
+
+	@Override
+	protected double sample(final int dimension) {
+		// Shuffle the points of this pair of dimensions
+		if (dimension >>> 1 != pair || index != pairIndex) {
+			pair = dimension >>> 1;
+			pairIndex = index;
+			shuffled = scramble(index, (int) (key(dimension & ~1) >>> 32));
+		}
+
+		// Look up the point, and scramble its coordinate
+		int point;
+		if ((dimension & 1) == 0)
+			point = Integer.reverse(shuffled);
+		else
+			point = BYTES[0][shuffled & 0xFF] ^ BYTES[1][(shuffled >>> 8) & 0xFF]
+					^ BYTES[2][(shuffled >>> 16) & 0xFF] ^ BYTES[3][shuffled >>> 24];
+
+		point = scramble(point, (int) key(dimension));
+		return Integer.toUnsignedLong(point) * 0x1.0p-32;
+	}
+
+	/**
+	 * Owen's nested uniform scrambling of a 32-bit fraction. Each bit is
+	 * flipped or not depending on every bit above it, which permutes the
+	 * fraction's intervals at every scale at once.
+	 *
+	 * @param x
+	 *            The fraction to scramble, as the high bits of an int
+	 * @param seed
+	 *            Selects the scrambling
+	 * @return The scrambled fraction
+	 */
+	private static int scramble(int x, final int seed) {
+		// The Laine-Karras hash only ever carries from low bits to high, so it
+		// works on the reversed fraction
+		x = Integer.reverse(x);
+		x += seed;
+		x ^= x * 0x6c50b47c;
+		x ^= x * 0xb82f1e52;
+		x ^= x * 0xc7afe638;
+		x ^= x * 0x8d22f6e6;
+		return Integer.reverse(x);
+	}
+
+	@Override
+	public Sampler copy() {
+		return new SobolSampler(seed);
+	}
+}
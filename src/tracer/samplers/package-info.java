@@ -0,0 +1,8 @@
+/**
+ * This package contains the samplers which supply every random number used by
+ * our ray tracer. Each sample draws from its own stream, so a capture comes
+ * out the same no matter how the work is divided.
+ * 
+ * @author mld2443
+ */
+package tracer.samplers;
@@ -0,0 +1,212 @@
+package tracer.shapes;
+
+import tracer.materials.Material;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
+import tracer.utils.Vector;
+
+/**
+ * An elliptic cylinder running along one of the coordinate axes. Along that
+ * axis the equation has no terms at all, so the intersection only needs the
+ * two components of the ray across the axis.
+ * 
+ * @author mld2443
+ * @see tracer.shapes.Quadric
+ */
+public class Cylinder extends Quadric {
+	/**
+	 * The axis the cylinder runs along; 0, 1 and 2 for x, y and z.
+	 */
+	private final int axis;
+
+	/**
+	 * The center of the cross section along the two other axes, in order.
+	 */
+	private final double cu, cv;
+
+	/**
+	 * The squared-term coefficients of the two other axes and the right side
+	 * of the centered equation, with the sign chosen so they are all positive.
+	 */
+	private final double a, b, k;
+
+	/**
+	 * Tests whether an equation describes an axis-aligned cylinder.
+	 * 
+	 * @param e
+	 *            The equation to test
+	 * @return true if exactly one axis has no terms at all, the other two
+	 *         squared terms share a sign, there are no cross terms, and the
+	 *         surface isn't empty
+	 */
+	static boolean describes(final Equation e) {
+		if (e.D != 0 || e.E != 0 || e.F != 0)
+			return false;
+
+		final int axis = missingAxis(e);
+		if (axis < 0)
+			return false;
+
+		final double[] squared = { e.A, e.B, e.C }, linear = { e.G, e.H, e.I };
+		final double p = squared[(axis + 1) % 3], q = squared[(axis + 2) % 3];
+		if (!(p > 0 && q > 0) && !(p < 0 && q < 0))
+			return false;
+
+		final double g = linear[(axis + 1) % 3], h = linear[(axis + 2) % 3];
+		return g * g / p + h * h / q - e.J > 0 == p > 0;
+	}
+
+	/**
+	 * @return The only axis without a squared or linear term, or -1 if there
+	 *         isn't exactly one
+	 */
+	private static int missingAxis(final Equation e) {
+		final boolean x = e.A == 0 && e.G == 0, y = e.B == 0 && e.H == 0, z = e.C == 0 && e.I == 0;
+
+		if (x && !y && !z)
+			return 0;
+		if (y && !x && !z)
+			return 1;
+		if (z && !x && !y)
+			return 2;
+		return -1;
+	}
+
+	/**
+	 * Picks one component of a vector by axis.
+	 */
+	private static double component(final Vector v, final int axis) {
+		return component(v.x, v.y, v.z, axis);
+	}
+
+	/**
+	 * Picks one of three components by axis.
+	 */
+	private static double component(final double x, final double y, final double z, final int axis) {
+		return axis == 0 ? x : axis == 1 ? y : z;
+	}
+
+	/**
+	 * Constructs an axis-aligned cylinder. The equation must satisfy
+	 * {@link Cylinder#describes(Equation)}.
+	 * 
+	 * @param material
+	 *            The material the cylinder will be made of
+	 * @param position
+	 *            The offset from the origin
+	 * @param equation
+	 *            The coefficients of the quadratic equation
+	 * @param clip
+	 *            The box relative to position outside of which the surface is
+	 *            cut away, or null to let it run forever
+	 */
+	public Cylinder(final Material material, final Vector position, final Equation equation,
+			final BoundingBox clip) {
+		super(material, position, equation, clip);
+
+		this.axis = missingAxis(equation);
+
+		final double[] squared = { equation.A, equation.B, equation.C };
+		final double[] linear = { equation.G, equation.H, equation.I };
+		final int u = (axis + 1) % 3, v = (axis + 2) % 3;
+		final double sign = squared[u] < 0 ? -1.0 : 1.0;
+
+		this.a = sign * squared[u];
+		this.b = sign * squared[v];
+		this.cu = component(position, u) - linear[u] / squared[u];
+		this.cv = component(position, v) - linear[v] / squared[v];
+		this.k = sign * (linear[u] * linear[u] / squared[u] + linear[v] * linear[v] / squared[v] - equation.J);
+	}
+
+	@Override
+	protected double computeNearestIntersection(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(ox, oy, oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		final int u = (axis + 1) % 3, v = (axis + 2) % 3;
+
+		// The ray across the axis, relative to the center of the cross section
+		final double ou = component(ox, oy, oz, u) - cu, ov = component(ox, oy, oz, v) - cv;
+		final double du = component(dx, dy, dz, u), dv = component(dx, dy, dz, v);
+
+		final double A = a * du * du + b * dv * dv;
+		final double B = a * ou * du + b * ov * dv;
+		final double C = a * ou * ou + b * ov * ov - k;
+
+		// No collision if the ray runs parallel to the axis, or the root is
+		// imaginary
+		final double square = B * B - A * C;
+		if (A == 0 || square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(ox, oy, oz, dx, dy, dz, lower, upper, (-B - root) / A, (-B + root) / A);
+	}
+
+	@Override
+	public void cacheOrigin(final OriginCache origin, final int id) {
+		final int t = OriginCache.TERMS * id, u = (axis + 1) % 3, v = (axis + 2) % 3;
+		final double ou = component(origin.ox, origin.oy, origin.oz, u) - cu;
+		final double ov = component(origin.ox, origin.oy, origin.oz, v) - cv;
+
+		origin.terms[t] = ou;
+		origin.terms[t + 1] = ov;
+		origin.terms[t + 2] = a * ou * ou + b * ov * ov - k;
+	}
+
+	@Override
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		final int t = OriginCache.TERMS * id, u = (axis + 1) % 3, v = (axis + 2) % 3;
+		final double ou = origin.terms[t], ov = origin.terms[t + 1];
+		final double du = component(dx, dy, dz, u), dv = component(dx, dy, dz, v);
+
+		final double A = a * du * du + b * dv * dv;
+		final double B = a * ou * du + b * ov * dv;
+		final double C = origin.terms[t + 2];
+
+		final double square = B * B - A * C;
+		if (A == 0 || square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper, (-B - root) / A,
+				(-B + root) / A);
+	}
+
+	@Override
+	public void intersectPacket(final int id, final Packet packet, final double lower, final Hit scratch) {
+		if (clip != null || material.oneSided) {
+			intersectEach(id, packet, lower, scratch);
+			return;
+		}
+
+		final int u = (axis + 1) % 3, v = (axis + 2) % 3;
+		final double ou = component(packet.ox, packet.oy, packet.oz, u) - cu;
+		final double ov = component(packet.ox, packet.oy, packet.oz, v) - cv;
+		final double C = a * ou * ou + b * ov * ov - k;
+
+		for (int i = 0; i < packet.size; i++) {
+			final double du = component(packet.dx[i], packet.dy[i], packet.dz[i], u);
+			final double dv = component(packet.dx[i], packet.dy[i], packet.dz[i], v);
+
+			final double A = a * du * du + b * dv * dv;
+			final double B = a * ou * du + b * ov * dv;
+
+			final double square = B * B - A * C;
+			if (A == 0 || square < 0)
+				continue;
+
+			final double root = Math.sqrt(square);
+			recordRoot(id, packet, i, lower, (-B - root) / A, (-B + root) / A);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package tracer.shapes;
+
+import tracer.materials.Material;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
+import tracer.utils.Vector;
+
+/**
+ * An ellipsoid whose axes line up with the coordinate axes. Without any cross
+ * terms its equation collapses to {@code a*x^2 + b*y^2 + c*z^2 = k} around its
+ * center, so the intersection skips most of the general Quadric's work.
+ * 
+ * @author mld2443
+ * @see tracer.shapes.Quadric
+ */
+public class Ellipsoid extends Quadric {
+	/**
+	 * The center of the ellipsoid, which the linear terms move away from its
+	 * position.
+	 */
+	private final double cx, cy, cz;
+
+	/**
+	 * The squared-term coefficients and the right side of the centered
+	 * equation, with the sign chosen so they are all positive.
+	 */
+	private final double a, b, c, k;
+
+	/**
+	 * Tests whether an equation describes an axis-aligned ellipsoid.
+	 * 
+	 * @param e
+	 *            The equation to test
+	 * @return true if the squared terms all share a sign, there are no cross
+	 *         terms, and the surface isn't empty
+	 */
+	static boolean describes(final Equation e) {
+		if (e.D != 0 || e.E != 0 || e.F != 0)
+			return false;
+		if (!(e.A > 0 && e.B > 0 && e.C > 0) && !(e.A < 0 && e.B < 0 && e.C < 0))
+			return false;
+
+		return e.G * e.G / e.A + e.H * e.H / e.B + e.I * e.I / e.C - e.J > 0 == e.A > 0;
+	}
+
+	/**
+	 * Constructs an axis-aligned ellipsoid. The equation must satisfy
+	 * {@link Ellipsoid#describes(Equation)}.
+	 * 
+	 * @param material
+	 *            The material the ellipsoid will be made of
+	 * @param position
+	 *            The offset from the origin
+	 * @param equation
+	 *            The coefficients of the quadratic equation
+	 * @param clip
+	 *            The box relative to position outside of which the surface is
+	 *            cut away, or null to keep the whole ellipsoid
+	 */
+	public Ellipsoid(final Material material, final Vector position, final Equation equation,
+			final BoundingBox clip) {
+		super(material, position, equation, clip);
+
+		final double sign = equation.A < 0 ? -1.0 : 1.0;
+		this.a = sign * equation.A;
+		this.b = sign * equation.B;
+		this.c = sign * equation.C;
+
+		this.cx = position.x - equation.G / equation.A;
+		this.cy = position.y - equation.H / equation.B;
+		this.cz = position.z - equation.I / equation.C;
+
+		this.k = sign * (equation.G * equation.G / equation.A + equation.H * equation.H / equation.B
+				+ equation.I * equation.I / equation.C - equation.J);
+	}
+
+	@Override
+	protected double computeNearestIntersection(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(ox, oy, oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		// Position of the ray relative to the center of the ellipsoid
+		final double rx = ox - cx, ry = oy - cy, rz = oz - cz;
+
+		final double A = a * dx * dx + b * dy * dy + c * dz * dz;
+		final double B = a * rx * dx + b * ry * dy + c * rz * dz;
+		final double C = a * rx * rx + b * ry * ry + c * rz * rz - k;
+
+		// No collision if the root is imaginary
+		final double square = B * B - A * C;
+		if (square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(ox, oy, oz, dx, dy, dz, lower, upper, (-B - root) / A, (-B + root) / A);
+	}
+
+	@Override
+	public void cacheOrigin(final OriginCache origin, final int id) {
+		final int t = OriginCache.TERMS * id;
+		final double rx = origin.ox - cx, ry = origin.oy - cy, rz = origin.oz - cz;
+
+		origin.terms[t] = rx;
+		origin.terms[t + 1] = ry;
+		origin.terms[t + 2] = rz;
+		origin.terms[t + 3] = a * rx * rx + b * ry * ry + c * rz * rz - k;
+	}
+
+	@Override
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		final int t = OriginCache.TERMS * id;
+		final double rx = origin.terms[t], ry = origin.terms[t + 1], rz = origin.terms[t + 2];
+
+		final double A = a * dx * dx + b * dy * dy + c * dz * dz;
+		final double B = a * rx * dx + b * ry * dy + c * rz * dz;
+		final double C = origin.terms[t + 3];
+
+		final double square = B * B - A * C;
+		if (square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper, (-B - root) / A,
+				(-B + root) / A);
+	}
+
+	@Override
+	public void intersectPacket(final int id, final Packet packet, final double lower, final Hit scratch) {
+		if (clip != null || material.oneSided) {
+			intersectEach(id, packet, lower, scratch);
+			return;
+		}
+
+		final double rx = packet.ox - cx, ry = packet.oy - cy, rz = packet.oz - cz;
+		final double C = a * rx * rx + b * ry * ry + c * rz * rz - k;
+
+		for (int i = 0; i < packet.size; i++) {
+			final double dx = packet.dx[i], dy = packet.dy[i], dz = packet.dz[i];
+
+			final double A = a * dx * dx + b * dy * dy + c * dz * dz;
+			final double B = a * rx * dx + b * ry * dy + c * rz * dz;
+
+			final double square = B * B - A * C;
+			if (square < 0)
+				continue;
+
+			final double root = Math.sqrt(square);
+			recordRoot(id, packet, i, lower, (-B - root) / A, (-B + root) / A);
+		}
+	}
+}
@@ -4,8 +4,8 @@ import java.util.Map;
 
 import tracer.Engine.SceneFormattingException;
 import tracer.materials.Material;
-import tracer.utils.Range;
-import tracer.utils.Ray;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
 import tracer.utils.Vector;
 
 /**
@@ -53,29 +53,56 @@ public class Plane extends Shape {
 	}
 
 	@Override
-	protected Vector computeNormalAt(final Vector point) {
+	protected void computeNormalAt(final Hit hit) {
 		// This one's pretty simple, though if you'd want to implement a normal
 		// map, here's where you would do it
-		return normal;
+		hit.nx = normal.x;
+		hit.ny = normal.y;
+		hit.nz = normal.z;
 	}
 
 	@Override
-	protected Double computeNearestIntersection(final Ray ray, final Range<Double> frustum) {
-		final double denominator = Vector.dot(normal, ray.direction);
+	protected double computeNearestIntersection(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		final double denominator = normal.x * dx + normal.y * dy + normal.z * dz;
 
 		// If the ray direction is parallel to our plane, there is no
 		// intersection
 		if (denominator == 0.0)
-			return null;
+			return MISS;
 
 		// Planar equation
-		final double distance = (normalDotPosition - Vector.dot(normal, ray.origin)) / denominator;
+		final double distance = (normalDotPosition - (normal.x * ox + normal.y * oy + normal.z * oz)) / denominator;
 
 		// Return the distance if it's within our bounds
-		if (frustum.contains(distance))
+		if (distance >= lower && distance <= upper)
 			return distance;
 
-		return null;
+		return MISS;
 	}
 
+	/**
+	 * Keeps the numerator of the planar equation.
+	 */
+	@Override
+	public void cacheOrigin(final OriginCache origin, final int id) {
+		origin.terms[OriginCache.TERMS * id] = normalDotPosition
+				- (normal.x * origin.ox + normal.y * origin.oy + normal.z * origin.oz);
+	}
+
+	@Override
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		final double denominator = normal.x * dx + normal.y * dy + normal.z * dz;
+
+		if (denominator == 0.0)
+			return MISS;
+
+		final double distance = origin.terms[OriginCache.TERMS * id] / denominator;
+
+		if (distance >= lower && distance <= upper)
+			return distance;
+
+		return MISS;
+	}
 }
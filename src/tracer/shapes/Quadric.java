@@ -4,8 +4,10 @@ import java.util.Map;
 
 import tracer.Engine.SceneFormattingException;
 import tracer.materials.Material;
-import tracer.utils.Range;
-import tracer.utils.Ray;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
 import tracer.utils.Vector;
 
 /**
@@ -26,7 +28,6 @@ public class Quadric extends Shape {
 	 */
 	public static class Equation {
 		final double A, B, C, D, E, F, G, H, I, J;
-		final Vector ABC, DEF, GHI;
 
 		public Equation(final double A, final double B, final double C, final double D, final double E, final double F,
 				final double G, final double H, final double I, final double J) {
@@ -40,9 +41,6 @@ public class Quadric extends Shape {
 			this.H = H;
 			this.I = I;
 			this.J = J;
-			ABC = new Vector(A, B, C);
-			DEF = new Vector(D, E, F);
-			GHI = new Vector(G, H, I);
 		}
 
 		/**
@@ -70,18 +68,69 @@ public class Quadric extends Shape {
 					this.H = Double.parseDouble(values[7]);
 					this.I = Double.parseDouble(values[8]);
 					this.J = Double.parseDouble(values[9]);
-					ABC = new Vector(A, B, C);
-					DEF = new Vector(D, E, F);
-					GHI = new Vector(G, H, I);
 				} else
 					throw new SceneFormattingException("Unknown Equation format: " + desc);
 			} catch (NumberFormatException e) {
 				throw new SceneFormattingException("Unknown Equation format: " + desc);
 			}
 		}
+
+		/**
+		 * If this equation describes an ellipsoid, finds the box that exactly
+		 * contains it. The symmetric matrix of the quadratic terms must be
+		 * definite for the surface to be closed, and the box then follows from
+		 * the inverse of that matrix.
+		 * 
+		 * @return The bounds of the ellipsoid relative to its position, or null
+		 *         if the surface is not an ellipsoid
+		 * @see <a href="https://en.wikipedia.org/wiki/Ellipsoid">Wikipedia:
+		 *      Ellipsoid</a>
+		 */
+		BoundingBox ellipsoidBounds() {
+			// Flip the sign of the whole equation if it's negative definite
+			final double s = A < 0 ? -1.0 : 1.0;
+			final double a = s * A, b = s * B, c = s * C, d = s * D, e = s * E, f = s * F;
+			final double g = s * G, h = s * H, i = s * I, j = s * J;
+
+			// Adjugate of the symmetric matrix {{a,d,f},{d,b,e},{f,e,c}}
+			final double n00 = b * c - e * e, n11 = a * c - f * f, n22 = a * b - d * d;
+			final double n01 = f * e - d * c, n02 = d * e - b * f, n12 = d * f - a * e;
+			final double det = a * n00 + d * n01 + f * n02;
+
+			// The leading principal minors must all be positive
+			if (a <= 0 || n22 <= 0 || det <= 0)
+				return null;
+
+			// The center of the ellipsoid, where the gradient is zero
+			final double cx = -(n00 * g + n01 * h + n02 * i) / det;
+			final double cy = -(n01 * g + n11 * h + n12 * i) / det;
+			final double cz = -(n02 * g + n12 * h + n22 * i) / det;
+
+			// The constant on the right side once centered; a non-positive
+			// value means the surface is empty or a single point
+			final double k = -(g * cx + h * cy + i * cz) - j;
+			if (k <= 0)
+				return null;
+
+			final double rx = Math.sqrt(k * n00 / det), ry = Math.sqrt(k * n11 / det), rz = Math.sqrt(k * n22 / det);
+
+			return new BoundingBox(cx - rx, cy - ry, cz - rz, cx + rx, cy + ry, cz + rz);
+		}
 	}
 
-	private final Equation equation;
+	protected final Equation equation;
+
+	/**
+	 * The box outside of which the surface is cut away, or null if the Quadric
+	 * extends forever.
+	 */
+	protected final BoundingBox clip;
+
+	/**
+	 * The conservative bounds, combining the clip box with the analytic bounds
+	 * of an ellipsoid.
+	 */
+	private final BoundingBox bounds;
 
 	/**
 	 * Constructs a Quadric with the given equation.
@@ -94,8 +143,34 @@ public class Quadric extends Shape {
 	 *            The coefficients of the quadratic equation
 	 */
 	public Quadric(final Material material, final Vector position, final Equation equation) {
+		this(material, position, equation, null);
+	}
+
+	/**
+	 * Constructs a Quadric with the given equation, clipped to a box.
+	 * 
+	 * @param material
+	 *            The material the Quadric will be made of
+	 * @param position
+	 *            The offset from the origin
+	 * @param Equation
+	 *            The coefficients of the quadratic equation
+	 * @param clip
+	 *            The box relative to position outside of which the surface is
+	 *            cut away, or null to leave it unbounded
+	 */
+	public Quadric(final Material material, final Vector position, final Equation equation, final BoundingBox clip) {
 		super(material, position);
 		this.equation = equation;
+		this.clip = clip == null ? null : clip.translate(position);
+
+		final BoundingBox analytic = equation.ellipsoidBounds();
+		if (analytic == null)
+			this.bounds = this.clip;
+		else if (this.clip == null)
+			this.bounds = analytic.translate(position);
+		else
+			this.bounds = BoundingBox.intersection(this.clip, analytic.translate(position));
 	}
 
 	/**
@@ -104,11 +179,172 @@ public class Quadric extends Shape {
 	 * @param material
 	 *            The material the Quadric will be made of
 	 * @param properties
-	 *            Map of properties; Expects "position" and "equation"
+	 *            Map of properties; Expects "position" and "equation", and
+	 *            optionally "min" and "max" corners of a clipping box relative
+	 *            to the position
 	 * @throws SceneFormattingException
 	 */
 	public Quadric(Material material, Map<String, String> properties) throws SceneFormattingException {
-		this(material, new Vector(properties.get("position")), new Equation(properties.get("equation")));
+		this(material, new Vector(properties.get("position")), new Equation(properties.get("equation")),
+				parseClip(properties));
+	}
+
+	/**
+	 * Reads the optional clipping box of a Quadric.
+	 * 
+	 * @param properties
+	 *            Map of properties; "min" and "max" must appear together
+	 * @return The clipping box, or null if there isn't one
+	 * @throws SceneFormattingException
+	 */
+	private static BoundingBox parseClip(Map<String, String> properties) throws SceneFormattingException {
+		final String min = properties.get("min"), max = properties.get("max");
+
+		if (min == null && max == null)
+			return null;
+		if (min == null || max == null)
+			throw new SceneFormattingException("Clipping box needs both \"min\" and \"max\"");
+
+		return new BoundingBox(new Vector(min), new Vector(max));
+	}
+
+	/**
+	 * Constructs a new Quadric from a list of properties, choosing a faster
+	 * intersection kernel whenever the equation turns out to describe a
+	 * {@link Sphere}, an axis-aligned {@link Ellipsoid} or an axis-aligned
+	 * {@link Cylinder}.
+	 * 
+	 * @param material
+	 *            The material the Quadric will be made of
+	 * @param properties
+	 *            Map of properties; as in
+	 *            {@link Quadric#Quadric(Material, Map)}
+	 * @return The most specialized Quadric for the equation
+	 * @throws SceneFormattingException
+	 */
+	public static Quadric fromProperties(Material material, Map<String, String> properties)
+			throws SceneFormattingException {
+		final Vector position = new Vector(properties.get("position"));
+		final Equation e = new Equation(properties.get("equation"));
+		final BoundingBox clip = parseClip(properties);
+
+		// Every fast form is free of the cross terms
+		if (e.D != 0 || e.E != 0 || e.F != 0)
+			return new Quadric(material, position, e, clip);
+
+		if (e.A == e.B && e.B == e.C && e.A != 0) {
+			// The center moves by the linear terms, which the sphere kernel
+			// doesn't have, so we move the sphere instead
+			final Vector center = Vector.sum(position, new Vector(-e.G / e.A, -e.H / e.A, -e.I / e.A));
+			final double squared = (e.G * e.G + e.H * e.H + e.I * e.I) / (e.A * e.A) - e.J / e.A;
+
+			if (squared > 0)
+				return new Sphere(material, center, Math.sqrt(squared),
+						clip == null ? null : clip.translate(Vector.sub(position, center)));
+		}
+
+		if (Ellipsoid.describes(e))
+			return new Ellipsoid(material, position, e, clip);
+		if (Cylinder.describes(e))
+			return new Cylinder(material, position, e, clip);
+
+		return new Quadric(material, position, e, clip);
+	}
+
+	@Override
+	public BoundingBox getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * @return true if the surface is cut away outside of a box
+	 */
+	public boolean isClipped() {
+		return clip != null;
+	}
+
+	/**
+	 * Copies out the coefficients of the equation, for packing them into
+	 * flat arrays.
+	 *
+	 * @return The coefficients A through J, in order
+	 */
+	public double[] getCoefficients() {
+		final Equation e = equation;
+		return new double[] { e.A, e.B, e.C, e.D, e.E, e.F, e.G, e.H, e.I, e.J };
+	}
+
+	/**
+	 * A cheap test to skip the intersection entirely.
+	 * 
+	 * @return true if the ray misses the clipping box, and so the Quadric
+	 */
+	protected boolean missesClip(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		return clip != null && !clip.intersectsRay(ox, oy, oz, dx, dy, dz, lower, upper);
+	}
+
+	/**
+	 * Picks which of the two roots of the quadratic our ray hits first.
+	 * 
+	 * @param D1
+	 *            The first root
+	 * @param D2
+	 *            The second root
+	 * @return The closest root in the window that isn't clipped, otherwise
+	 *         {@link Shape#MISS}
+	 */
+	protected double nearestRoot(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper, final double D1,
+			final double D2) {
+		if (D1 >= lower && D1 <= upper && unclipped(ox, oy, oz, dx, dy, dz, D1))
+			return D1;
+		else if (D2 >= lower && D2 <= upper && unclipped(ox, oy, oz, dx, dy, dz, D2))
+			return D2;
+		return MISS;
+	}
+
+	/**
+	 * Records the root {@link Quadric#nearestRoot} would pick as the nearest
+	 * hit of one ray of a packet, if there is one. Only for unclipped
+	 * Quadrics.
+	 * 
+	 * @param id
+	 *            Index of the Quadric in its scene
+	 * @param packet
+	 *            The packet the ray belongs to
+	 * @param lane
+	 *            Which ray of the packet
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param D1
+	 *            The first root
+	 * @param D2
+	 *            The second root
+	 */
+	protected static void recordRoot(final int id, final Packet packet, final int lane, final double lower,
+			final double D1, final double D2) {
+		final double upper = packet.nearest[lane];
+
+		if (D1 >= lower && D1 <= upper) {
+			packet.nearest[lane] = D1;
+			packet.shape[lane] = id;
+		} else if (D2 >= lower && D2 <= upper) {
+			packet.nearest[lane] = D2;
+			packet.shape[lane] = id;
+		}
+	}
+
+	/**
+	 * Checks whether a hit along a ray survives the clipping box.
+	 * 
+	 * @param distance
+	 *            Distance along the ray of the hit
+	 * @return true if the hit lies inside the clipping box, or there is none
+	 */
+	private boolean unclipped(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double distance) {
+		return clip == null || clip.contains(ox + dx * distance, oy + dy * distance, oz + dz * distance);
 	}
 
 	/**
@@ -116,49 +352,49 @@ public class Quadric extends Shape {
 	 * quadratic equation for the point.
 	 */
 	@Override
-	protected Vector computeNormalAt(final Vector point) {
+	protected void computeNormalAt(final Hit hit) {
 		// Relative direction of the point to the Quadric
-		final Vector r = Vector.sub(point, position);
+		final double rx = hit.px - position.x, ry = hit.py - position.y, rz = hit.pz - position.z;
 
 		// This is the literal derivative of the Quadric at point p
-		final double dx = (2 * equation.A * r.x + equation.E * r.z + equation.F * r.y + equation.G);
-		final double dy = (2 * equation.B * r.y + equation.D * r.z + equation.F * r.x + equation.H);
-		final double dz = (2 * equation.C * r.z + equation.D * r.y + equation.E * r.x + equation.I);
+		final double dx = (2 * equation.A * rx + equation.E * rz + equation.F * ry + equation.G);
+		final double dy = (2 * equation.B * ry + equation.D * rz + equation.F * rx + equation.H);
+		final double dz = (2 * equation.C * rz + equation.D * ry + equation.E * rx + equation.I);
 
-		return new Vector(dx, dy, dz).normalize();
+		final double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		hit.nx = dx / magnitude;
+		hit.ny = dy / magnitude;
+		hit.nz = dz / magnitude;
 	}
 
 	@Override
-	protected Double computeNearestIntersection(final Ray ray, final Range<Double> frustum) {
-		// Calculate the positions of the camera and the ray relative to the
-		// quadric
-		final Vector rCam = Vector.sub(ray.origin, position);
-		final Vector rRay = ray.direction;
-
-		// Pre-calculate these values for our quadratic equation; doing it this
-		// way would make more sense if our vector operations were SIMD
-		final Vector V1 = Vector.inlineMultiply(rRay, rRay);
-		final Vector V2 = new Vector(rRay.x * rRay.y, rRay.y * rRay.z, rRay.z * rRay.x).scale(2);
-		final Vector V3 = Vector.inlineMultiply(rCam, rRay);
-		final Vector V4 = new Vector(rRay.x * rCam.y + rCam.x * rRay.y, rCam.y * rRay.z + rRay.y * rCam.z,
-				rCam.x * rRay.z + rRay.x * rCam.z);
-		final Vector V5 = rRay;
-		final Vector V6 = Vector.inlineMultiply(rCam, rCam);
-		final Vector V7 = new Vector(rCam.x * rCam.y, rCam.y * rCam.z, rCam.z * rCam.x).scale(2);
-		final Vector V8 = rCam.scale(2);
-
-		// Calculate the quadratic coefficients
-		final double A = Vector.dot(equation.ABC, V1) + Vector.dot(equation.DEF, V2);
-		final double B = Vector.dot(equation.ABC, V3) + Vector.dot(equation.DEF, V4) + Vector.dot(equation.GHI, V5);
-		final double C = Vector.dot(equation.ABC, V6) + Vector.dot(equation.DEF, V7) + Vector.dot(equation.GHI, V8)
-				+ equation.J;
+	protected double computeNearestIntersection(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		// A ray that misses the clipping box can never hit what's inside it
+		if (missesClip(ox, oy, oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		// Calculate the position of the camera relative to the quadric
+		final double cx = ox - position.x, cy = oy - position.y, cz = oz - position.z;
+		final Equation e = equation;
+
+		// Calculate the quadratic coefficients; the squared terms, then the
+		// cross terms, then the linear terms
+		final double A = (e.A * dx * dx + e.B * dy * dy + e.C * dz * dz)
+				+ 2 * (e.D * dx * dy + e.E * dy * dz + e.F * dz * dx);
+		final double B = (e.A * cx * dx + e.B * cy * dy + e.C * cz * dz)
+				+ (e.D * (dx * cy + cx * dy) + e.E * (cy * dz + dy * cz) + e.F * (cx * dz + dx * cz))
+				+ (e.G * dx + e.H * dy + e.I * dz);
+		final double C = (e.A * cx * cx + e.B * cy * cy + e.C * cz * cz)
+				+ 2 * (e.D * cx * cy + e.E * cy * cz + e.F * cz * cx) + 2 * (e.G * cx + e.H * cy + e.I * cz)
+				+ e.J;
 
 		// Calculate the squared value for our quadratic formula
 		final double square = B * B - A * C;
 
 		// No collision if the root is imaginary
 		if (square < 0)
-			return null;
+			return MISS;
 
 		// Take its square root if it's real
 		final double root = Math.sqrt(square);
@@ -167,12 +403,89 @@ public class Quadric extends Shape {
 		final double D1 = (-B - root) / A;
 		final double D2 = (-B + root) / A;
 
-		// Return closest intersection thats in the frustum
-		if (frustum.contains(D1))
-			return D1;
-		else if (frustum.contains(D2))
-			return D2;
-		return null;
+		// Return closest intersection thats in the window
+		return nearestRoot(ox, oy, oz, dx, dy, dz, lower, upper, D1, D2);
+	}
+
+	/**
+	 * Keeps the position of the origin relative to the Quadric and the
+	 * constant coefficient.
+	 */
+	@Override
+	public void cacheOrigin(final OriginCache origin, final int id) {
+		final int t = OriginCache.TERMS * id;
+		final double cx = origin.ox - position.x, cy = origin.oy - position.y, cz = origin.oz - position.z;
+		final Equation e = equation;
+
+		origin.terms[t] = cx;
+		origin.terms[t + 1] = cy;
+		origin.terms[t + 2] = cz;
+		origin.terms[t + 3] = (e.A * cx * cx + e.B * cy * cy + e.C * cz * cz)
+				+ 2 * (e.D * cx * cy + e.E * cy * cz + e.F * cz * cx) + 2 * (e.G * cx + e.H * cy + e.I * cz)
+				+ e.J;
+	}
+
+	@Override
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		final int t = OriginCache.TERMS * id;
+		final double cx = origin.terms[t], cy = origin.terms[t + 1], cz = origin.terms[t + 2];
+		final Equation e = equation;
+
+		final double A = (e.A * dx * dx + e.B * dy * dy + e.C * dz * dz)
+				+ 2 * (e.D * dx * dy + e.E * dy * dz + e.F * dz * dx);
+		final double B = (e.A * cx * dx + e.B * cy * dy + e.C * cz * dz)
+				+ (e.D * (dx * cy + cx * dy) + e.E * (cy * dz + dy * cz) + e.F * (cx * dz + dx * cz))
+				+ (e.G * dx + e.H * dy + e.I * dz);
+		final double C = origin.terms[t + 3];
+
+		final double square = B * B - A * C;
+		if (square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper, (-B - root) / A,
+				(-B + root) / A);
+	}
+
+	/**
+	 * The rays of a packet share their position relative to the Quadric, and
+	 * so the constant coefficient as well.
+	 */
+	@Override
+	public void intersectPacket(final int id, final Packet packet, final double lower, final Hit scratch) {
+		if (clip != null || material.oneSided) {
+			intersectEach(id, packet, lower, scratch);
+			return;
+		}
+
+		final double cx = packet.ox - position.x, cy = packet.oy - position.y, cz = packet.oz - position.z;
+		final Equation e = equation;
+
+		final double C = (e.A * cx * cx + e.B * cy * cy + e.C * cz * cz)
+				+ 2 * (e.D * cx * cy + e.E * cy * cz + e.F * cz * cx) + 2 * (e.G * cx + e.H * cy + e.I * cz)
+				+ e.J;
+
+		for (int i = 0; i < packet.size; i++) {
+			final double dx = packet.dx[i], dy = packet.dy[i], dz = packet.dz[i];
+
+			final double A = (e.A * dx * dx + e.B * dy * dy + e.C * dz * dz)
+					+ 2 * (e.D * dx * dy + e.E * dy * dz + e.F * dz * dx);
+			final double B = (e.A * cx * dx + e.B * cy * dy + e.C * cz * dz)
+					+ (e.D * (dx * cy + cx * dy) + e.E * (cy * dz + dy * cz) + e.F * (cx * dz + dx * cz))
+					+ (e.G * dx + e.H * dy + e.I * dz);
+
+			final double square = B * B - A * C;
+			if (square < 0)
+				continue;
+
+			final double root = Math.sqrt(square);
+			recordRoot(id, packet, i, lower, (-B - root) / A, (-B + root) / A);
+		}
 	}
 
 }
@@ -1,17 +1,28 @@
 package tracer.shapes;
 
 import tracer.materials.Material;
-import tracer.utils.Intersection;
-import tracer.utils.Range;
-import tracer.utils.Ray;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
 import tracer.utils.Vector;
 
 /**
  * A shape is an object that resides in 3D space, and can interact with our rays.
  * 
+ * Intersecting a shape happens in two phases. While searching for the nearest
+ * shape only the distance of each hit is computed, on plain doubles; the point
+ * and normal are {@link Shape#resolve(Hit, double, double, double, double,
+ * double, double) resolved} only for the final nearest hit.
+ * 
  * @author mld2443
  */
 public abstract class Shape {
+	/**
+	 * The distance returned when a ray misses; it lies beyond every window.
+	 */
+	public static final double MISS = Double.POSITIVE_INFINITY;
+
 	public final Material material;
 	public final Vector position;
 
@@ -26,48 +37,194 @@ public abstract class Shape {
 	}
 
 	/**
-	 * Computes the normal Vector of a point on the Shape.
+	 * A conservative box around the Shape. Any ray that misses the box is
+	 * guaranteed to miss the Shape.
+	 * 
+	 * @return The bounds of the Shape, or null if it is unbounded
+	 */
+	public BoundingBox getBounds() {
+		return null;
+	}
+
+	/**
+	 * Computes the normal of a point on the Shape.
 	 * 
-	 * @param point
-	 *            Point of the surface to find a normal for
-	 * @return A unit vector normal to the surface
+	 * @param hit
+	 *            Holds the point of the surface to find a normal for, and
+	 *            receives the unit normal
 	 */
-	abstract protected Vector computeNormalAt(final Vector point);
+	abstract protected void computeNormalAt(final Hit hit);
 
 	/**
 	 * Computes the distance of the nearest intersection with the Shape.
 	 * 
-	 * @param ray
-	 *            ray to trace
-	 * @param frustum
-	 *            range within to register a collision
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
 	 * @return the unit distance closest intersection if there is one within
-	 *         range, otherwise null
+	 *         range, otherwise {@link Shape#MISS}
 	 */
-	abstract protected Double computeNearestIntersection(final Ray ray, final Range<Double> frustum);
+	abstract protected double computeNearestIntersection(final double ox, final double oy, final double oz,
+			final double dx, final double dy, final double dz, final double lower, final double upper);
 
 	/**
 	 * Check if our mathematically defined ray intersects our mathematically
-	 * defined shape inside the frustum.
+	 * defined shape inside the window. Hits on the back of a one-sided
+	 * material don't count.
 	 * 
-	 * @param ray
-	 *            ray to trace
-	 * @param frustum
-	 *            range within to register a collision
-	 * @return the closest intersection if there is one within range, otherwise
-	 *         null
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param scratch
+	 *            Space to compute a normal in, for one-sided materials; its
+	 *            point and normal are overwritten
+	 * @return the distance of the closest intersection if there is one within
+	 *         range, otherwise {@link Shape#MISS}
 	 */
-	public Intersection intersectRay(final Ray ray, final Range<Double> frustum) {
-		Double distance = computeNearestIntersection(ray, frustum);
+	public double intersectRay(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz, final double lower, final double upper, final Hit scratch) {
+		return facing(computeNearestIntersection(ox, oy, oz, dx, dy, dz, lower, upper), ox, oy, oz, dx, dy, dz,
+				scratch);
+	}
 
-		if (distance == null)
-			return null;
+	/**
+	 * The same check as {@link Shape#intersectRay(double, double, double,
+	 * double, double, double, double, double, Hit) intersectRay}, for a ray
+	 * from an origin whose terms were already cached.
+	 * 
+	 * @param origin
+	 *            The origin of the ray, with this Shape's terms
+	 *            {@link Shape#cacheOrigin cached}
+	 * @param id
+	 *            Index of the Shape in its scene
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 * @param scratch
+	 *            Space to compute a normal in, for one-sided materials
+	 * @return the distance of the closest intersection if there is one within
+	 *         range, otherwise {@link Shape#MISS}
+	 */
+	public double intersectRay(final OriginCache origin, final int id, final double dx, final double dy,
+			final double dz, final double lower, final double upper, final Hit scratch) {
+		return facing(computeNearestIntersection(origin, id, dx, dy, dz, lower, upper), origin.ox, origin.oy,
+				origin.oz, dx, dy, dz, scratch);
+	}
+
+	/**
+	 * Rejects a hit on the back of a one-sided material.
+	 * 
+	 * @return the distance, or {@link Shape#MISS} if it was rejected
+	 */
+	private double facing(final double distance, final double ox, final double oy, final double oz,
+			final double dx, final double dy, final double dz, final Hit scratch) {
+		if (distance == MISS || !material.oneSided)
+			return distance;
 
-		final Vector point = ray.project(distance), normal = computeNormalAt(point);
-		
-		if (material.oneSided && Vector.dot(ray.direction, normal) >= 0.0f)
-			return null;
+		scratch.px = ox + dx * distance;
+		scratch.py = oy + dy * distance;
+		scratch.pz = oz + dz * distance;
+		computeNormalAt(scratch);
 
-		return new Intersection(distance, point, normal, material);
+		if (dx * scratch.nx + dy * scratch.ny + dz * scratch.nz >= 0.0)
+			return MISS;
+
+		return distance;
+	}
+
+	/**
+	 * Works out the terms of the intersection that depend only on the origin
+	 * of a ray, and keeps them in a cache. Shapes without such terms keep
+	 * nothing.
+	 * 
+	 * @param origin
+	 *            The cache to fill
+	 * @param id
+	 *            Index of the Shape in its scene, which decides where its
+	 *            terms go
+	 */
+	public void cacheOrigin(final OriginCache origin, final int id) {
+	}
+
+	/**
+	 * Computes the distance of the nearest intersection with the Shape, using
+	 * the terms {@link Shape#cacheOrigin cached} for the origin of the ray. By
+	 * default nothing is cached and the full computation is done.
+	 * 
+	 * @see Shape#computeNearestIntersection(double, double, double, double,
+	 *      double, double, double, double)
+	 */
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		return computeNearestIntersection(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper);
+	}
+
+	/**
+	 * Checks every ray of a packet against the Shape, and records the Shape as
+	 * the nearest hit of each ray it intersects inside that ray's window.
+	 * Shapes with work that depends only on the origin of a ray should
+	 * override this to do that work once for the whole packet.
+	 * 
+	 * @param id
+	 *            Index of the Shape in its scene
+	 * @param packet
+	 *            The rays to check, whose nearest hits are updated in place
+	 * @param lower
+	 *            Nearest distance at which to register a collision
+	 * @param scratch
+	 *            Space to compute a normal in, for one-sided materials
+	 */
+	public void intersectPacket(final int id, final Packet packet, final double lower, final Hit scratch) {
+		intersectEach(id, packet, lower, scratch);
+	}
+
+	/**
+	 * Checks the rays of a packet against the Shape one at a time with
+	 * {@link Shape#intersectRay}, for shapes that can't do better.
+	 * 
+	 * @see Shape#intersectPacket(int, Packet, double, Hit)
+	 */
+	protected final void intersectEach(final int id, final Packet packet, final double lower, final Hit scratch) {
+		for (int i = 0; i < packet.size; i++) {
+			final double distance = intersectRay(packet.ox, packet.oy, packet.oz, packet.dx[i], packet.dy[i],
+					packet.dz[i], lower, packet.nearest[i], scratch);
+
+			if (distance != MISS) {
+				packet.nearest[i] = distance;
+				packet.shape[i] = id;
+			}
+		}
+	}
+
+	/**
+	 * Fills in the point and normal of a hit on this Shape, once it is known to
+	 * be the nearest.
+	 * 
+	 * @param hit
+	 *            The hit, whose distance is already set
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Unit direction of the ray, with dy and dz
+	 */
+	public void resolve(final Hit hit, final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz) {
+		hit.px = ox + dx * hit.distance;
+		hit.py = oy + dy * hit.distance;
+		hit.pz = oz + dz * hit.distance;
+		computeNormalAt(hit);
 	}
 }
@@ -4,15 +4,21 @@ import java.util.Map;
 
 import tracer.Engine.SceneFormattingException;
 import tracer.materials.Material;
+import tracer.utils.BoundingBox;
+import tracer.utils.Hit;
+import tracer.utils.OriginCache;
+import tracer.utils.Packet;
 import tracer.utils.Vector;
 
 /**
- * A sphere is just a Quadric with a special simple normal function.
+ * A sphere is just a Quadric with a special simple normal function, and an
+ * intersection that needs only one dot product per coefficient.
  * 
  * @author mld2443
  * @see tracer.shapes.Quadric
  */
 public class Sphere extends Quadric {
+	public final double radius;
 
 	/**
 	 * Constructs a spherical Quadric converting the radius to the required
@@ -26,7 +32,25 @@ public class Sphere extends Quadric {
 	 *            The radius of the sphere
 	 */
 	public Sphere(final Material material, final Vector position, final double radius) {
-		super(material, position, new Quadric.Equation(1, 1, 1, 0, 0, 0, 0, 0, 0, -(radius * radius)));
+		this(material, position, radius, null);
+	}
+
+	/**
+	 * Constructs a spherical Quadric clipped to a box.
+	 * 
+	 * @param material
+	 *            The material the sphere will be made of
+	 * @param position
+	 *            The offset from the origin
+	 * @param radius
+	 *            The radius of the sphere
+	 * @param clip
+	 *            The box relative to position outside of which the surface is
+	 *            cut away, or null to keep the whole sphere
+	 */
+	public Sphere(final Material material, final Vector position, final double radius, final BoundingBox clip) {
+		super(material, position, new Quadric.Equation(1, 1, 1, 0, 0, 0, 0, 0, 0, -(radius * radius)), clip);
+		this.radius = radius;
 	}
 
 	/**
@@ -48,7 +72,102 @@ public class Sphere extends Quadric {
 	 * without computing the generic derivative.
 	 */
 	@Override
-	protected Vector computeNormalAt(final Vector point) {
-		return Vector.sub(point, position).normalize();
+	protected void computeNormalAt(final Hit hit) {
+		final double x = hit.px - position.x, y = hit.py - position.y, z = hit.pz - position.z;
+		final double magnitude = Math.sqrt(x * x + y * y + z * z);
+
+		hit.nx = x / magnitude;
+		hit.ny = y / magnitude;
+		hit.nz = z / magnitude;
+	}
+
+	/**
+	 * Shortcut intersection for a sphere. Our ray directions are unit length,
+	 * so the quadratic coefficient is always 1 and the others are a single
+	 * dot product each.
+	 */
+	@Override
+	protected double computeNearestIntersection(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(ox, oy, oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		// Position of the ray relative to the center of the sphere
+		final double cx = ox - position.x, cy = oy - position.y, cz = oz - position.z;
+
+		final double B = cx * dx + cy * dy + cz * dz;
+		final double C = cx * cx + cy * cy + cz * cz - radius * radius;
+
+		// No collision if the root is imaginary
+		final double square = B * B - C;
+		if (square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(ox, oy, oz, dx, dy, dz, lower, upper, -B - root, -B + root);
+	}
+
+	/**
+	 * Keeps the position of the origin relative to the center and the
+	 * constant coefficient.
+	 */
+	@Override
+	public void cacheOrigin(final OriginCache origin, final int id) {
+		final int t = OriginCache.TERMS * id;
+		final double cx = origin.ox - position.x, cy = origin.oy - position.y, cz = origin.oz - position.z;
+
+		origin.terms[t] = cx;
+		origin.terms[t + 1] = cy;
+		origin.terms[t + 2] = cz;
+		origin.terms[t + 3] = cx * cx + cy * cy + cz * cz - radius * radius;
+	}
+
+	@Override
+	protected double computeNearestIntersection(final OriginCache origin, final int id, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		if (missesClip(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper))
+			return MISS;
+
+		final int t = OriginCache.TERMS * id;
+		final double cx = origin.terms[t], cy = origin.terms[t + 1], cz = origin.terms[t + 2];
+
+		final double B = cx * dx + cy * dy + cz * dz;
+		final double C = origin.terms[t + 3];
+
+		// No collision if the root is imaginary
+		final double square = B * B - C;
+		if (square < 0)
+			return MISS;
+
+		final double root = Math.sqrt(square);
+
+		return nearestRoot(origin.ox, origin.oy, origin.oz, dx, dy, dz, lower, upper, -B - root, -B + root);
+	}
+
+	/**
+	 * The rays of a packet share their position relative to the center, and
+	 * so the constant coefficient as well.
+	 */
+	@Override
+	public void intersectPacket(final int id, final Packet packet, final double lower, final Hit scratch) {
+		if (clip != null || material.oneSided) {
+			intersectEach(id, packet, lower, scratch);
+			return;
+		}
+
+		final double cx = packet.ox - position.x, cy = packet.oy - position.y, cz = packet.oz - position.z;
+		final double C = cx * cx + cy * cy + cz * cz - radius * radius;
+
+		for (int i = 0; i < packet.size; i++) {
+			final double B = cx * packet.dx[i] + cy * packet.dy[i] + cz * packet.dz[i];
+
+			final double square = B * B - C;
+			if (square < 0)
+				continue;
+
+			final double root = Math.sqrt(square);
+			recordRoot(id, packet, i, lower, -B - root, -B + root);
+		}
 	}
 }
@@ -0,0 +1,177 @@
+package tracer.utils;
+
+/**
+ * An axis-aligned bounding box, the cheapest volume to test a ray against.
+ * Shapes offer one as a conservative bound, so a ray that misses the box can
+ * skip the shape's own, more expensive intersection.
+ * 
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Minimum_bounding_box">Wikipedia:
+ *      Minimum Bounding Box</a>
+ */
+public final class BoundingBox {
+	public final double minX, minY, minZ, maxX, maxY, maxZ;
+
+	/**
+	 * Constructs a box from its two extreme corners.
+	 * 
+	 * @param min
+	 *            The corner with the smallest coordinates
+	 * @param max
+	 *            The corner with the largest coordinates
+	 */
+	public BoundingBox(final Vector min, final Vector max) {
+		this(min.x, min.y, min.z, max.x, max.y, max.z);
+	}
+
+	/**
+	 * Constructs a box from the coordinates of its two extreme corners.
+	 */
+	public BoundingBox(final double minX, final double minY, final double minZ, final double maxX,
+			final double maxY, final double maxZ) {
+		this.minX = minX;
+		this.minY = minY;
+		this.minZ = minZ;
+		this.maxX = maxX;
+		this.maxY = maxY;
+		this.maxZ = maxZ;
+	}
+
+	/**
+	 * Tests if a point lies inside the box or on its surface.
+	 * 
+	 * @param point
+	 *            The point to test
+	 * @return true if the point is inside the box
+	 */
+	public boolean contains(final Vector point) {
+		return contains(point.x, point.y, point.z);
+	}
+
+	/**
+	 * Tests if a point lies inside the box or on its surface.
+	 * 
+	 * @return true if the point (x, y, z) is inside the box
+	 */
+	public boolean contains(final double x, final double y, final double z) {
+		return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+	}
+
+	/**
+	 * The slab test of a ray against the box. This is much cheaper than
+	 * intersecting whatever the box contains.
+	 * 
+	 * @param ox
+	 *            Origin of the ray, with oy and oz
+	 * @param dx
+	 *            Direction of the ray, with dy and dz
+	 * @param lower
+	 *            Nearest distance along the ray at which a hit counts
+	 * @param upper
+	 *            Farthest distance along the ray at which a hit counts
+	 * @return true if the ray passes through the box inside the window
+	 * @see <a href="https://en.wikipedia.org/wiki/Slab_method">Wikipedia: Slab
+	 *      Method</a>
+	 */
+	public boolean intersectsRay(final double ox, final double oy, final double oz, final double dx,
+			final double dy, final double dz, final double lower, final double upper) {
+		double near = lower, far = upper;
+
+		double t0 = (minX - ox) / dx, t1 = (maxX - ox) / dx;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+
+		t0 = (minY - oy) / dy;
+		t1 = (maxY - oy) / dy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+
+		t0 = (minZ - oz) / dz;
+		t1 = (maxZ - oz) / dz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+
+		return near <= far;
+	}
+
+	/**
+	 * Tests whether the whole box lies behind a plane, which makes it
+	 * invisible to every ray that stays in front of the plane.
+	 * 
+	 * @param ox
+	 *            A point on the plane, with oy and oz
+	 * @param nx
+	 *            Normal of the plane, pointing to its front, with ny and nz
+	 * @return true if every corner of the box is strictly behind the plane
+	 */
+	public boolean behindPlane(final double ox, final double oy, final double oz, final double nx,
+			final double ny, final double nz) {
+		// Only the corner farthest along the normal needs checking
+		final double x = nx > 0 ? maxX : minX, y = ny > 0 ? maxY : minY, z = nz > 0 ? maxZ : minZ;
+
+		return nx * (x - ox) + ny * (y - oy) + nz * (z - oz) < 0;
+	}
+
+	/**
+	 * Moves the box without changing its size.
+	 * 
+	 * @param offset
+	 *            The distance to move the box
+	 * @return The moved box
+	 */
+	public BoundingBox translate(final Vector offset) {
+		return new BoundingBox(minX + offset.x, minY + offset.y, minZ + offset.z, maxX + offset.x, maxY + offset.y,
+				maxZ + offset.z);
+	}
+
+	/**
+	 * @return The surface area of the box
+	 */
+	public double surfaceArea() {
+		final double dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+		return 2.0 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * @return The center of the box
+	 */
+	public Vector centroid() {
+		return new Vector(0.5 * (minX + maxX), 0.5 * (minY + maxY), 0.5 * (minZ + maxZ));
+	}
+
+	/**
+	 * The smallest box containing both boxes.
+	 * 
+	 * @param lhs
+	 *            BoundingBox
+	 * @param rhs
+	 *            BoundingBox
+	 * @return Union of the two boxes
+	 */
+	public static BoundingBox union(final BoundingBox lhs, final BoundingBox rhs) {
+		return new BoundingBox(Math.min(lhs.minX, rhs.minX), Math.min(lhs.minY, rhs.minY),
+				Math.min(lhs.minZ, rhs.minZ), Math.max(lhs.maxX, rhs.maxX), Math.max(lhs.maxY, rhs.maxY),
+				Math.max(lhs.maxZ, rhs.maxZ));
+	}
+
+	/**
+	 * The region shared by both boxes. If they don't overlap, the result is
+	 * inverted on some axis and no ray will pass through it.
+	 * 
+	 * @param lhs
+	 *            BoundingBox
+	 * @param rhs
+	 *            BoundingBox
+	 * @return Intersection of the two boxes
+	 */
+	public static BoundingBox intersection(final BoundingBox lhs, final BoundingBox rhs) {
+		return new BoundingBox(Math.max(lhs.minX, rhs.minX), Math.max(lhs.minY, rhs.minY),
+				Math.max(lhs.minZ, rhs.minZ), Math.min(lhs.maxX, rhs.maxX), Math.min(lhs.maxY, rhs.maxY),
+				Math.min(lhs.maxZ, rhs.maxZ));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[<%.2f,%.2f,%.2f>,<%.2f,%.2f,%.2f>]", minX, minY, minZ, maxX, maxY, maxZ);
+	}
+}
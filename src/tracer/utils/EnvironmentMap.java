@@ -0,0 +1,393 @@
+package tracer.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A high dynamic range image of everything surrounding a scene, stored in
+ * latitude-longitude layout: each row is a band of constant angle from
+ * straight up, and each column a constant heading. The middle of the image
+ * lies along the positive x axis, with straight up along positive z.
+ *
+ * Directions can be drawn toward the bright parts of the image. When the
+ * map is read, the luminance of every pixel, times the solid angle it
+ * covers, is gathered into a marginal distribution over its rows and a
+ * conditional distribution over the columns of each row. Drawing a
+ * direction is then two binary searches, and a small bright sun is found as
+ * often as its share of the light calls for, instead of only when a bounce
+ * happens to stray into it.
+ *
+ * Once read, an EnvironmentMap is never changed, so it can be shared between
+ * workers.
+ *
+ * @author mld2443
+ * @see <a href="https://pbr-book.org/3ed-2018/Light_Transport_I_Surface_Reflection/Sampling_Light_Sources#InfiniteAreaLights">
+ *      Physically Based Rendering: Infinite Area Lights</a>
+ * @see <a href="https://en.wikipedia.org/wiki/RGBE_image_format">Wikipedia:
+ *      RGBE Image Format</a>
+ */
+public final class EnvironmentMap {
+	public final int width, height;
+
+	/**
+	 * The linear color of each pixel, row by row from the top.
+	 */
+	public final double[] r, g, b;
+
+	/**
+	 * The running total of the chance of each row being drawn, starting with
+	 * a 0 and ending with a 1.
+	 */
+	private final double[] rows;
+
+	/**
+	 * The running total of the chance of each column being drawn within its
+	 * row, with each row laid out the same way as {@link EnvironmentMap#rows}.
+	 */
+	private final double[] columns;
+
+	/**
+	 * Sets up a map from its pixels, and builds the distributions that
+	 * directions are drawn from.
+	 *
+	 * @param width
+	 *            The width of the image in pixels
+	 * @param height
+	 *            The height of the image in pixels
+	 * @param r
+	 *            The linear color of each pixel, row by row from the top,
+	 *            with g and b
+	 */
+	public EnvironmentMap(final int width, final int height, final double[] r, final double[] g,
+			final double[] b) {
+		this.width = width;
+		this.height = height;
+		this.r = r;
+		this.g = g;
+		this.b = b;
+
+		rows = new double[height + 1];
+		columns = new double[height * (width + 1)];
+
+		for (int y = 0; y < height; y++) {
+			// Rows near the poles cover less of the sphere
+			final double sine = Math.sin(Math.PI * (y + 0.5) / height);
+			final int start = y * (width + 1);
+			double total = 0.0;
+
+			for (int x = 0; x < width; x++) {
+				final int p = y * width + x;
+				total += Math.max(0.0, 0.2126 * r[p] + 0.7152 * g[p] + 0.0722 * b[p]) * sine;
+				columns[start + x + 1] = total;
+			}
+
+			// A black row is never drawn, but is kept uniform all the same
+			for (int x = 1; x <= width; x++)
+				columns[start + x] = total > 0.0 ? columns[start + x] / total : (double) x / width;
+			columns[start + width] = 1.0;
+
+			rows[y + 1] = rows[y] + total;
+		}
+
+		final double total = rows[height];
+		for (int y = 1; y <= height; y++)
+			rows[y] = total > 0.0 ? rows[y] / total : (double) y / height;
+		rows[height] = 1.0;
+	}
+
+	/**
+	 * The pixel seen in a direction.
+	 *
+	 * @param dx
+	 *            Unit direction, with dy and dz
+	 * @return Index of the pixel, into {@link EnvironmentMap#r r},
+	 *         {@link EnvironmentMap#g g} and {@link EnvironmentMap#b b}
+	 */
+	public int pixel(final double dx, final double dy, final double dz) {
+		final double u = 0.5 - Math.atan2(dy, dx) / (2.0 * Math.PI);
+		final double v = Math.acos(Math.max(-1.0, Math.min(1.0, dz))) / Math.PI;
+
+		final int x = Math.max(0, Math.min((int) (u * width), width - 1));
+		final int y = Math.max(0, Math.min((int) (v * height), height - 1));
+		return y * width + x;
+	}
+
+	/**
+	 * The chance density of {@link EnvironmentMap#sample drawing} a
+	 * direction, per unit of solid angle.
+	 *
+	 * @param dx
+	 *            Unit direction, with dy and dz
+	 * @return The density
+	 */
+	public double pdf(final double dx, final double dy, final double dz) {
+		final double sine = Math.sqrt(Math.max(0.0, dx * dx + dy * dy));
+		if (sine == 0.0)
+			return 0.0;
+
+		final int p = pixel(dx, dy, dz), x = p % width, y = p / width, start = y * (width + 1);
+		final double chance = (rows[y + 1] - rows[y]) * (columns[start + x + 1] - columns[start + x]);
+
+		return chance * width * height / (2.0 * Math.PI * Math.PI * sine);
+	}
+
+	/**
+	 * Draws a direction in proportion to the light the map sends along it.
+	 *
+	 * @param s
+	 *            A random number in [0,1) that picks the row
+	 * @param t
+	 *            A random number in [0,1) that picks the column
+	 * @param path
+	 *            Receives the unit direction in rx, ry and rz
+	 * @return The chance density of the direction, per unit of solid angle,
+	 *         or 0 if it can't be used
+	 */
+	public double sample(final double s, final double t, final Path path) {
+		final int y = search(rows, 0, height, s);
+		final double rowChance = rows[y + 1] - rows[y];
+		final double v = (y + (s - rows[y]) / rowChance) / height;
+
+		final int start = y * (width + 1);
+		final int x = search(columns, start, width, t);
+		final double columnChance = columns[start + x + 1] - columns[start + x];
+		final double u = (x + (t - columns[start + x]) / columnChance) / width;
+
+		final double theta = Math.PI * v, phi = 2.0 * Math.PI * (0.5 - u);
+		final double sine = Math.sin(theta);
+		if (!(rowChance * columnChance > 0.0) || sine <= 0.0)
+			return 0.0;
+
+		path.rx = sine * Math.cos(phi);
+		path.ry = sine * Math.sin(phi);
+		path.rz = Math.cos(theta);
+
+		return rowChance * columnChance * width * height / (2.0 * Math.PI * Math.PI * sine);
+	}
+
+	/**
+	 * Finds the bin of a running total that a number falls in.
+	 *
+	 * @param totals
+	 *            The running totals
+	 * @param start
+	 *            Where the totals begin, at the 0
+	 * @param bins
+	 *            The number of bins
+	 * @param x
+	 *            A number in [0,1)
+	 * @return The bin, counted from start
+	 */
+	private static int search(final double[] totals, final int start, final int bins, final double x) {
+		int low = 0, high = bins - 1;
+
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (totals[start + middle + 1] > x)
+				high = middle;
+			else
+				low = middle + 1;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Reads a map from a Radiance .hdr file or a portable float map, telling
+	 * them apart by their headers.
+	 *
+	 * @param filename
+	 *            The image to read
+	 * @return The map
+	 * @throws IOException
+	 *             If the file can't be read, or isn't in either format
+	 */
+	public static EnvironmentMap read(final String filename) throws IOException {
+		try (InputStream file = new BufferedInputStream(Files.newInputStream(Paths.get(filename)))) {
+			final DataInputStream in = new DataInputStream(file);
+			final String magic = readLine(in);
+
+			if (magic.equals("PF") || magic.equals("Pf"))
+				return readFloatMap(in, magic.equals("PF"));
+			if (magic.startsWith("#?"))
+				return readRadiance(in);
+
+			throw new IOException("Unknown environment map format: " + filename);
+		}
+	}
+
+	/**
+	 * Reads the rest of a portable float map, whose rows run from the bottom
+	 * up.
+	 *
+	 * @param color
+	 *            Whether each pixel has three channels, rather than one gray
+	 *            one
+	 */
+	private static EnvironmentMap readFloatMap(final DataInputStream in, final boolean color) throws IOException {
+		final String[] size = readToken(in, 2);
+		final int width = Integer.parseInt(size[0]), height = Integer.parseInt(size[1]);
+		final double scale = Double.parseDouble(readToken(in, 1)[0]);
+		final int channels = color ? 3 : 1;
+
+		final byte[] bytes = new byte[width * height * channels * 4];
+		in.readFully(bytes);
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes)
+				.order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+
+		final double[] r = new double[width * height], g = new double[width * height], b = new double[width * height];
+		for (int y = height - 1; y >= 0; y--)
+			for (int x = 0; x < width; x++) {
+				final int p = y * width + x;
+				r[p] = buffer.getFloat();
+				g[p] = color ? buffer.getFloat() : r[p];
+				b[p] = color ? buffer.getFloat() : r[p];
+			}
+
+		return new EnvironmentMap(width, height, r, g, b);
+	}
+
+	/**
+	 * Reads the rest of a Radiance .hdr file, whose scanlines are either flat
+	 * or run-length encoded one channel at a time.
+	 */
+	private static EnvironmentMap readRadiance(final DataInputStream in) throws IOException {
+		// The header runs until a blank line
+		for (String line = readLine(in); !line.isEmpty(); line = readLine(in))
+			if (line.startsWith("FORMAT=") && !line.equals("FORMAT=32-bit_rle_rgbe"))
+				throw new IOException("Unsupported Radiance format: " + line);
+
+		final String[] size = readLine(in).trim().split("\\s+");
+		if (size.length != 4 || !size[0].equals("-Y") || !size[2].equals("+X"))
+			throw new IOException("Unsupported Radiance orientation: " + String.join(" ", size));
+
+		final int height = Integer.parseInt(size[1]), width = Integer.parseInt(size[3]);
+		final double[] r = new double[width * height], g = new double[width * height], b = new double[width * height];
+		final byte[] scanline = new byte[width * 4];
+
+		for (int y = 0; y < height; y++) {
+			readScanline(in, scanline, width);
+
+			for (int x = 0; x < width; x++) {
+				final int exponent = scanline[4 * x + 3] & 0xFF;
+				if (exponent == 0)
+					continue;
+
+				final double factor = Math.scalb(1.0, exponent - 136);
+				final int p = y * width + x;
+				r[p] = ((scanline[4 * x] & 0xFF) + 0.5) * factor;
+				g[p] = ((scanline[4 * x + 1] & 0xFF) + 0.5) * factor;
+				b[p] = ((scanline[4 * x + 2] & 0xFF) + 0.5) * factor;
+			}
+		}
+
+		return new EnvironmentMap(width, height, r, g, b);
+	}
+
+	/**
+	 * Reads a single scanline of RGBE pixels.
+	 *
+	 * @param scanline
+	 *            Receives four bytes for each pixel
+	 */
+	private static void readScanline(final DataInputStream in, final byte[] scanline, final int width)
+			throws IOException {
+		final int first = in.readUnsignedByte(), second = in.readUnsignedByte();
+		final int third = in.readUnsignedByte(), fourth = in.readUnsignedByte();
+
+		// Flat, or with the old runs of repeated pixels
+		if (width < 8 || width > 0x7FFF || first != 2 || second != 2 || (third & 0x80) != 0) {
+			scanline[0] = (byte) first;
+			scanline[1] = (byte) second;
+			scanline[2] = (byte) third;
+			scanline[3] = (byte) fourth;
+
+			for (int x = 1, shift = 0; x < width;) {
+				in.readFully(scanline, 4 * x, 4);
+
+				if (scanline[4 * x] == 1 && scanline[4 * x + 1] == 1 && scanline[4 * x + 2] == 1) {
+					final int count = (scanline[4 * x + 3] & 0xFF) << shift;
+					for (int k = 0; k < count && x < width; k++, x++)
+						System.arraycopy(scanline, 4 * (x - 1), scanline, 4 * x, 4);
+					shift += 8;
+				} else {
+					x++;
+					shift = 0;
+				}
+			}
+			return;
+		}
+
+		if (((third << 8) | fourth) != width)
+			throw new IOException("Radiance scanline has the wrong length");
+
+		// Each channel in turn, as runs and literal stretches
+		for (int channel = 0; channel < 4; channel++)
+			for (int x = 0; x < width;) {
+				int count = in.readUnsignedByte();
+
+				if (count > 128) {
+					count -= 128;
+					if (x + count > width)
+						throw new IOException("Radiance run overflows its scanline");
+
+					final byte value = in.readByte();
+					for (; count > 0; count--)
+						scanline[4 * x++ + channel] = value;
+				} else {
+					if (count == 0 || x + count > width)
+						throw new IOException("Radiance stretch overflows its scanline");
+
+					for (; count > 0; count--)
+						scanline[4 * x++ + channel] = in.readByte();
+				}
+			}
+	}
+
+	/**
+	 * Reads a line of a text header.
+	 */
+	private static String readLine(final DataInputStream in) throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		for (int c = in.read(); c != '\n'; c = in.read()) {
+			if (c < 0)
+				throw new EOFException("The environment map ended in its header");
+			line.write(c);
+		}
+
+		return line.toString("US-ASCII").trim();
+	}
+
+	/**
+	 * Reads whitespace separated words of a text header, where the last word
+	 * ends at a single whitespace character.
+	 */
+	private static String[] readToken(final DataInputStream in, final int count) throws IOException {
+		final String[] tokens = new String[count];
+
+		for (int t = 0; t < count; t++) {
+			final StringBuilder token = new StringBuilder();
+			int c = in.read();
+			while (Character.isWhitespace(c))
+				c = in.read();
+
+			for (; c >= 0 && !Character.isWhitespace(c); c = in.read())
+				token.append((char) c);
+
+			if (c < 0)
+				throw new EOFException("The environment map ended in its header");
+			tokens[t] = token.toString();
+		}
+
+		return tokens;
+	}
+}
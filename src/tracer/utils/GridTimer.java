@@ -2,10 +2,14 @@ package tracer.utils;
 
 import java.awt.image.BufferedImage;
 import java.io.PrintStream;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * 
+ * A timer for named events and for every cell of a grid. The grid is kept in
+ * flat primitive arrays, so timing a 4K capture allocates nothing per pixel,
+ * and any number of workers may time their own cells at once without locking.
  * 
  * @author mld2443
  */
@@ -48,21 +52,44 @@ public class GridTimer implements GridTimerDelegate {
 		}
 	}
 
+	/**
+	 * Marks a grid cell that has not been started or stopped yet. The clock
+	 * can legitimately read 0, but it will never read this.
+	 */
+	private static final long UNSET = Long.MIN_VALUE;
+
 	/**
 	 * A delegate for logging the events as they finish
 	 */
 	public PrintStream logger;
 
-	private HashMap<String, Event> events;
+	private ConcurrentHashMap<String, Event> events;
 	private int width, height;
-	private Event[][] grid;
+
+	/**
+	 * Start and stop times of every grid cell, indexed by {@code y * width + x}.
+	 */
+	private long[] starts, stops;
+
+	/**
+	 * The worker that timed every grid cell, as handed out by
+	 * {@link GridTimer#worker}.
+	 */
+	private int[] workers;
+
+	/**
+	 * Hands each thread that touches the grid a small, dense number, so the
+	 * grid can remember who did the work without storing a thread.
+	 */
+	private final AtomicInteger workerCount = new AtomicInteger();
+	private final ThreadLocal<Integer> worker = ThreadLocal.withInitial(workerCount::getAndIncrement);
 
 	/**
 	 * Default constructor. This does not set up the actual grid, be sure to
 	 * call {@link GridTimer#setGridSize(int, int)}.
 	 */
 	public GridTimer() {
-		this.events = new HashMap<>();
+		this.events = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -73,17 +100,15 @@ public class GridTimer implements GridTimerDelegate {
 	 *            The {@link PrintStream} to use as the logger
 	 */
 	public GridTimer(PrintStream stream) {
-		this.events = new HashMap<>();
+		this.events = new ConcurrentHashMap<>();
 		this.logger = stream;
 	}
 
 	@Override
 	public void eventStart(final String eventName) throws TimerEventException {
 		// Catch some simple exceptions
-		if (events.containsKey(eventName))
+		if (events.putIfAbsent(eventName, new Event()) != null)
 			throw new TimerEventException("Event with the name \"" + eventName + "\" already exists.");
-		
-		events.put(eventName, new Event());
 	}
 
 	@Override
@@ -110,44 +135,74 @@ public class GridTimer implements GridTimerDelegate {
 	public void setGridSize(final int width, final int height) {
 		this.width = width;
 		this.height = height;
-		this.grid = new Event[width][height];
+		this.starts = new long[width * height];
+		this.stops = new long[width * height];
+		this.workers = new int[width * height];
+
+		Arrays.fill(starts, UNSET);
+		Arrays.fill(stops, UNSET);
 	}
 
 	@Override
 	public void gridEventStart(final int x, final int y) throws TimerEventException {
+		final int cell = y * width + x;
+
 		// Catch some simple exceptions
-		if (grid[x][y] != null)
+		if (starts[cell] != UNSET)
 			throw new TimerEventException("Event at Grid[" + x + "][" + y + "] already exists.");
 		
-		grid[x][y] = new Event();
+		workers[cell] = worker.get();
+		starts[cell] = System.nanoTime();
 	}
 
 	@Override
 	public void gridEventStop(final int x, final int y) throws TimerEventException {
+		final long now = System.nanoTime();
+		final int cell = y * width + x;
+
 		// Catch some simple exceptions
-		if (grid[x][y] == null)
+		if (starts[cell] == UNSET)
 			throw new TimerEventException("Event at Grid[" + x + "][" + y + "] was not started.");
-		if (grid[x][y].completed)
+		if (stops[cell] != UNSET)
 			throw new TimerEventException("Event at Grid[" + x + "][" + y + "] is already stopped.");
 		
-		grid[x][y].finish();
+		stops[cell] = now;
 	}
 
+	/**
+	 * Finds the value below which a given fraction of a sorted array falls.
+	 * 
+	 * @param sorted
+	 *            Values in ascending order
+	 * @param fraction
+	 *            Fraction between 0.0 and 1.0
+	 * @return The nearest-rank percentile
+	 */
+	private static long percentile(final long[] sorted, final double fraction) {
+		final int rank = (int) Math.ceil(fraction * sorted.length) - 1;
+		return sorted[Math.min(Math.max(rank, 0), sorted.length - 1)];
+	}
 
 	@Override
 	public void logSpeedup() {
 		if (logger != null) {
-			long netGridTime = 0, firstStarted = grid[0][0].startTime, lastFinished = grid[0][0].stopTime;
+			final int cells = width * height;
+			final long[] elapsed = new long[cells];
+			final long[] busy = new long[workerCount.get()];
+			long netGridTime = 0, firstStarted = Long.MAX_VALUE, lastFinished = Long.MIN_VALUE;
 			
-			for (Event[] row : grid) {
-				for (Event e : row) {
-					netGridTime += e.elapsedTime;
-					
-					if (e.startTime < firstStarted)
-						firstStarted = e.startTime;
-					if (e.stopTime > lastFinished)
-						lastFinished = e.stopTime;
-				}
+			for (int cell = 0; cell < cells; cell++) {
+				if (stops[cell] == UNSET)
+					throw new TimerEventException("Grid[" + (cell % width) + "][" + (cell / width) + "] uninitialized.");
+
+				elapsed[cell] = stops[cell] - starts[cell];
+				netGridTime += elapsed[cell];
+				busy[workers[cell]] += elapsed[cell];
+				
+				if (starts[cell] < firstStarted)
+					firstStarted = starts[cell];
+				if (stops[cell] > lastFinished)
+					lastFinished = stops[cell];
 			}
 			
 			long totalElapsedTime = lastFinished - firstStarted;
@@ -159,6 +214,29 @@ public class GridTimer implements GridTimerDelegate {
 			logger.println("Estimated speedup factor:\t" + speedup);
 			logger.println("Average time to draw pixel:\t" + drawAverage);
 			logger.println("Average time per pixel:\t" + average);
+
+			// Utilization is the share of the grid's wall time each worker
+			// spent drawing; imbalance compares the busiest worker to the mean
+			int active = 0;
+			long mostBusy = 0;
+			for (int w = 0; w < busy.length; w++) {
+				if (busy[w] == 0)
+					continue;
+
+				active++;
+				mostBusy = Math.max(mostBusy, busy[w]);
+				logger.println(String.format("Worker %d utilization:\t%.1f%%", w,
+						100.0 * busy[w] / totalElapsedTime));
+			}
+
+			final double meanBusy = (double) netGridTime / (double) active;
+			logger.println(String.format("Load imbalance (max/mean):\t%.3f", mostBusy / meanBusy));
+
+			// Percentiles of the time taken to draw a single pixel
+			Arrays.sort(elapsed);
+			logger.println(String.format("Pixel time p50/p90/p99/max:\t%d / %d / %d / %d ns",
+					percentile(elapsed, 0.5), percentile(elapsed, 0.9), percentile(elapsed, 0.99),
+					elapsed[cells - 1]));
 		}
 	}
 
@@ -198,15 +276,15 @@ public class GridTimer implements GridTimerDelegate {
 		eventStart("Generate Heatmap");
 
 		// Instantiate the extremes
-		long low = grid[0][0].elapsedTime, high = low;
+		long low = stops[0] - starts[0], high = low;
 
 		// Find the largest and smallest values in the grid
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
-				if (grid[x][y] == null)
+				if (stops[y * width + x] == UNSET)
 					throw new TimerEventException("Grid[" + x + "][" + y + "] uninitialized.");
 				
-				final long element = grid[x][y].elapsedTime;
+				final long element = stops[y * width + x] - starts[y * width + x];
 
 				if (element > high)
 					high = element;
@@ -225,7 +303,7 @@ public class GridTimer implements GridTimerDelegate {
 		for (int y = 0; y < height; y++) {
 			for (int x = 0; x < width; x++) {
 				// Calculate the interpolation value of this grid location
-				double interpolation = ((double) (grid[x][y].elapsedTime - low)) / span;
+				double interpolation = ((double) (stops[y * width + x] - starts[y * width + x] - low)) / span;
 
 				// Apply the associated color to this location
 				heatmap.setRGB(x, y, colorScale(interpolation));
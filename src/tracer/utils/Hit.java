@@ -0,0 +1,56 @@
+package tracer.utils;
+
+/**
+ * A mutable record of the nearest hit found so far while searching a scene.
+ * During the search only the {@link Hit#distance distance} and the
+ * {@link Hit#shape index} of the shape are kept; the point and normal are
+ * filled in once, for the final nearest hit only.
+ * 
+ * A Hit also carries the scratch space for the search, so a worker that
+ * reuses a single Hit never allocates while tracing. Like a
+ * {@link tracer.samplers.Sampler Sampler}, a Hit must not be shared between
+ * workers.
+ * 
+ * @author mld2443
+ */
+public final class Hit {
+	/**
+	 * Distance along the ray of the nearest hit.
+	 */
+	public double distance;
+
+	/**
+	 * Index of the shape that was hit in its scene, or -1 if nothing was hit.
+	 */
+	public int shape = -1;
+
+	/**
+	 * Point and unit normal of the surface at the hit.
+	 */
+	public double px, py, pz, nx, ny, nz;
+
+	/**
+	 * Stack of nodes still to visit while traversing a hierarchy.
+	 */
+	public int[] stack = new int[64];
+
+	/**
+	 * Scratch lanes for testing many packed shapes at once.
+	 */
+	private double[][] lanes = new double[3][64];
+
+	/**
+	 * Fetches a row of scratch lanes, growing it if it is too short.
+	 *
+	 * @param length
+	 *            The number of lanes needed
+	 * @param row
+	 *            Which row, from 0 to 2, so several can be used at the same time
+	 * @return The row, at least length long, with unspecified contents
+	 */
+	public double[] lanes(final int length, final int row) {
+		if (lanes[row].length < length)
+			lanes[row] = new double[Math.max(length, lanes[row].length * 2)];
+		return lanes[row];
+	}
+}
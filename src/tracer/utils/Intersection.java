@@ -14,6 +14,11 @@ public class Intersection {
 	public final Vector normal;
 	public final Material material;
 
+	/**
+	 * Index of the shape that was hit, as a {@link Hit} refers to it.
+	 */
+	public final int shape;
+
 	/**
 	 * The default constructor.
 	 * 
@@ -26,11 +31,15 @@ public class Intersection {
 	 *            The normal of the surface which we intersected
 	 * @param material
 	 *            The {@link Material} that surface was made of
+	 * @param shape
+	 *            Index of the shape that was hit
 	 */
-	public Intersection(final double distance, final Vector point, final Vector normal, final Material material) {
+	public Intersection(final double distance, final Vector point, final Vector normal, final Material material,
+			final int shape) {
 		this.distance = distance;
 		this.point = point;
 		this.normal = normal;
 		this.material = material;
+		this.shape = shape;
 	}
 }
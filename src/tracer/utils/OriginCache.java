@@ -0,0 +1,46 @@
+package tracer.utils;
+
+/**
+ * The terms of every shape's intersection that depend only on where a ray
+ * starts, worked out once for a fixed origin. Every camera ray starts at the
+ * camera, so a capture can fill one OriginCache and have each shape skip that
+ * work for every primary ray; any other batch of rays sharing an origin can
+ * do the same.
+ *
+ * Once filled an OriginCache is only read, so it can be shared between
+ * workers.
+ *
+ * @author mld2443
+ */
+public final class OriginCache {
+	/**
+	 * The number of terms each shape may keep.
+	 */
+	public static final int TERMS = 4;
+
+	/**
+	 * The origin the terms were worked out for.
+	 */
+	public final double ox, oy, oz;
+
+	/**
+	 * {@link OriginCache#TERMS} terms for each shape, indexed the same way as
+	 * its scene.
+	 */
+	public final double[] terms;
+
+	/**
+	 * Allocates an empty cache for an origin.
+	 *
+	 * @param ox
+	 *            The origin, with oy and oz
+	 * @param shapes
+	 *            The number of shapes in the scene
+	 */
+	public OriginCache(final double ox, final double oy, final double oz, final int shapes) {
+		this.ox = ox;
+		this.oy = oy;
+		this.oz = oz;
+		this.terms = new double[TERMS * shapes];
+	}
+}
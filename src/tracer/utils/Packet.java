@@ -0,0 +1,107 @@
+package tracer.utils;
+
+/**
+ * A bundle of rays that share an origin and point in nearly the same
+ * direction, like the camera rays through a single pixel. A scene can search
+ * for the nearest hits of every ray of a Packet at once, so the work that
+ * depends only on the origin is done once per shape instead of once per ray,
+ * and a box is skipped only when every ray misses it.
+ *
+ * Like a {@link Hit}, a Packet must not be shared between workers.
+ *
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Ray_tracing_(graphics)">
+ *      Wikipedia: Ray Tracing</a>
+ */
+public final class Packet {
+	/**
+	 * The shared origin of every ray.
+	 */
+	public double ox, oy, oz;
+
+	/**
+	 * Unit direction of each ray.
+	 */
+	public final double[] dx, dy, dz;
+
+	/**
+	 * Inverse of the direction of each ray, for testing boxes.
+	 */
+	public final double[] ix, iy, iz;
+
+	/**
+	 * Distance of the nearest hit of each ray so far, which is also the far
+	 * end of its window.
+	 */
+	public final double[] nearest;
+
+	/**
+	 * Index of the nearest shape each ray hit so far, or -1.
+	 */
+	public final int[] shape;
+
+	/**
+	 * The number of rays in use.
+	 */
+	public int size = 0;
+
+	/**
+	 * Allocates room for a packet of rays.
+	 *
+	 * @param capacity
+	 *            The greatest number of rays the packet will hold
+	 */
+	public Packet(final int capacity) {
+		dx = new double[capacity];
+		dy = new double[capacity];
+		dz = new double[capacity];
+		ix = new double[capacity];
+		iy = new double[capacity];
+		iz = new double[capacity];
+		nearest = new double[capacity];
+		shape = new int[capacity];
+	}
+
+	/**
+	 * @return The greatest number of rays the packet can hold
+	 */
+	public int capacity() {
+		return nearest.length;
+	}
+
+	/**
+	 * Empties the packet and moves its origin.
+	 *
+	 * @param ox
+	 *            New origin, with oy and oz
+	 */
+	public void reset(final double ox, final double oy, final double oz) {
+		this.ox = ox;
+		this.oy = oy;
+		this.oz = oz;
+		size = 0;
+	}
+
+	/**
+	 * Adds a ray to the packet. The direction is normalized the same way a
+	 * {@link Path} normalizes its own.
+	 *
+	 * @param dx
+	 *            Direction of any length, with dy and dz
+	 * @param upper
+	 *            Farthest distance at which to register a collision
+	 */
+	public void add(final double dx, final double dy, final double dz, final double upper) {
+		final double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		final int lane = size++;
+
+		this.dx[lane] = dx / magnitude;
+		this.dy[lane] = dy / magnitude;
+		this.dz[lane] = dz / magnitude;
+		ix[lane] = 1.0 / this.dx[lane];
+		iy[lane] = 1.0 / this.dy[lane];
+		iz[lane] = 1.0 / this.dz[lane];
+		nearest[lane] = upper;
+		shape[lane] = -1;
+	}
+}
@@ -0,0 +1,109 @@
+package tracer.utils;
+
+import tracer.samplers.Sampler;
+
+/**
+ * A mutable ray being followed through a scene, along with how much of the
+ * light it eventually finds will make it back to the camera. Materials bounce
+ * a Path in place, so following one never allocates.
+ * 
+ * Like a {@link Hit}, a Path must not be shared between workers.
+ * 
+ * @author mld2443
+ * @see <a href="https://en.wikipedia.org/wiki/Path_tracing">Wikipedia: Path
+ *      Tracing</a>
+ */
+public final class Path {
+	/**
+	 * Origin and unit direction of the current segment of the path.
+	 */
+	public double ox, oy, oz, dx, dy, dz;
+
+	/**
+	 * The product of every color the path has bounced off of so far.
+	 */
+	public double r, g, b;
+
+	/**
+	 * The light the path has gathered from lights so far, already scaled by
+	 * its throughput along the way.
+	 */
+	public double lr, lg, lb;
+
+	/**
+	 * Where the path last bounced off of a diffuse surface, and the chance
+	 * density of the direction it bounced in, or a density of 0 if its last
+	 * bounce wasn't diffuse.
+	 */
+	public double sx, sy, sz, pdf;
+
+	/**
+	 * The number of times the path has bounced off of a diffuse surface.
+	 */
+	public int diffuseBounces;
+
+	/**
+	 * Whether the path's latest bounce was off of a shape that focuses light
+	 * into caustics, with a diffuse bounce somewhere before it and only
+	 * mirrors and glass since.
+	 */
+	public boolean caustic;
+
+	/**
+	 * Empties the path out before it is aimed from the camera, with a
+	 * throughput of one and no light gathered.
+	 */
+	public void reset() {
+		r = g = b = 1.0;
+		lr = lg = lb = 0.0;
+		pdf = 0.0;
+		diffuseBounces = 0;
+		caustic = false;
+	}
+
+	/**
+	 * The direction picked by the latest call to
+	 * {@link Path#randomInUnitSphere(Sampler)}, or drawn from an
+	 * {@link EnvironmentMap#sample(double, double, Path) environment map}.
+	 */
+	public double rx, ry, rz;
+
+	/**
+	 * Starts the next segment of the path. The direction is normalized the
+	 * same way a {@link Ray} normalizes its own.
+	 * 
+	 * @param ox
+	 *            New origin, with oy and oz
+	 * @param dx
+	 *            New direction of any length, with dy and dz
+	 */
+	public void set(final double ox, final double oy, final double oz, final double dx, final double dy,
+			final double dz) {
+		final double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+		this.ox = ox;
+		this.oy = oy;
+		this.oz = oz;
+		this.dx = dx / magnitude;
+		this.dy = dy / magnitude;
+		this.dz = dz / magnitude;
+	}
+
+	/**
+	 * Picks a uniformly distributed direction exactly as
+	 * {@link Vector#randomInUnitSphere(Sampler)} does, and keeps it in rx, ry
+	 * and rz.
+	 * 
+	 * @param sampler
+	 *            Source of the random numbers
+	 */
+	public void randomInUnitSphere(final Sampler sampler) {
+		final double z = 1.0 - 2.0 * sampler.nextDouble();
+		final double phi = 2.0 * Math.PI * sampler.nextDouble();
+		final double r = Math.sqrt(Math.max(0.0, 1.0 - z * z));
+
+		rx = r * Math.cos(phi);
+		ry = r * Math.sin(phi);
+		rz = z;
+	}
+}
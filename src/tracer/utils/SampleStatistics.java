@@ -0,0 +1,63 @@
+package tracer.utils;
+
+/**
+ * The running mean and variance of the samples of a single pixel, kept for
+ * each color channel with Welford's method, so they can be updated one
+ * sample at a time without storing the samples or losing precision to
+ * cancellation.
+ *
+ * Like a {@link Hit}, SampleStatistics must not be shared between workers.
+ *
+ * @author mld2443
+ * @see <a href=
+ *      "https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Welford's_online_algorithm">
+ *      Wikipedia: Welford's Online Algorithm</a>
+ */
+public final class SampleStatistics {
+	/**
+	 * The number of samples seen.
+	 */
+	public int count = 0;
+
+	/**
+	 * The mean of each channel.
+	 */
+	public double r = 0.0, g = 0.0, b = 0.0;
+
+	/**
+	 * The sum of squared differences from the mean of each channel.
+	 */
+	private double r2 = 0.0, g2 = 0.0, b2 = 0.0;
+
+	/**
+	 * Adds a sample.
+	 *
+	 * @param r
+	 *            Red channel of the sample, with g and b
+	 */
+	public void add(final double r, final double g, final double b) {
+		count++;
+
+		final double dr = r - this.r, dg = g - this.g, db = b - this.b;
+		this.r += dr / count;
+		this.g += dg / count;
+		this.b += db / count;
+		r2 += dr * (r - this.r);
+		g2 += dg * (g - this.g);
+		b2 += db * (b - this.b);
+	}
+
+	/**
+	 * The standard error of the mean of the noisiest channel, which is how
+	 * far the mean is likely to be from the color the pixel would converge to.
+	 *
+	 * @return The standard error, or infinity with fewer than two samples
+	 */
+	public double standardError() {
+		if (count < 2)
+			return Double.POSITIVE_INFINITY;
+
+		final double variance = Math.max(r2, Math.max(g2, b2)) / (count - 1);
+		return Math.sqrt(variance / count);
+	}
+}
@@ -1,8 +1,7 @@
 package tracer.utils;
 
-import java.util.Random;
-
 import tracer.Engine.SceneFormattingException;
+import tracer.samplers.Sampler;
 
 /**
  * A mathematical vector representing either a point or direction in
@@ -12,7 +11,6 @@ import tracer.Engine.SceneFormattingException;
  */
 public final class Vector {
 	public final double x, y, z;
-	private final static Random gen = new Random();
 
 	/**
 	 * Default constructor which creates <0,0,0>
@@ -76,10 +74,22 @@ public final class Vector {
 	}
 
 	/**
+	 * Picks a uniformly distributed direction by choosing a height along the
+	 * z-axis and an angle around it. This takes two numbers from the sampler
+	 * instead of normalizing three Gaussians.
+	 * 
+	 * @param sampler
+	 *            Source of the random numbers
 	 * @return a randomly generated vector with a length of 1.0
+	 * @see <a href="https://mathworld.wolfram.com/SpherePointPicking.html">
+	 *      MathWorld: Sphere Point Picking</a>
 	 */
-	public static Vector randomInUnitSphere() {
-		return new Vector(gen.nextGaussian(), gen.nextGaussian(), gen.nextGaussian()).normalize();
+	public static Vector randomInUnitSphere(final Sampler sampler) {
+		final double z = 1.0 - 2.0 * sampler.nextDouble();
+		final double phi = 2.0 * Math.PI * sampler.nextDouble();
+		final double r = Math.sqrt(Math.max(0.0, 1.0 - z * z));
+
+		return new Vector(r * Math.cos(phi), r * Math.sin(phi), z);
 	}
 
 	////////////////